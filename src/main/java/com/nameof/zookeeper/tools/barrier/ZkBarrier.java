@@ -3,6 +3,8 @@ package com.nameof.zookeeper.tools.barrier;
 import com.google.common.base.Preconditions;
 import com.nameof.zookeeper.tools.common.ZkContext;
 import com.nameof.zookeeper.tools.common.ZkPrimitiveSupport;
+import com.nameof.zookeeper.tools.metrics.ZkMetric;
+import com.nameof.zookeeper.tools.metrics.ZkOperation;
 import com.nameof.zookeeper.tools.utils.ZkUtils;
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.WatchedEvent;
@@ -35,8 +37,14 @@ public class ZkBarrier extends ZkContext implements Barrier, Watcher {
 
     private AtomicBoolean allReady = new AtomicBoolean(false);
 
+    /** 等待ready节点使用独立的监视器，避免事件线程在enter/leave持有栅栏锁期间被阻塞 */
+    private final Object readyMonitor = new Object();
+
     private boolean destory = false;
 
+    /** 已进入且尚未离开栅栏 */
+    private volatile boolean entered = false;
+
     public ZkBarrier(String barrierName, String connectString, int size) throws IOException, InterruptedException, KeeperException {
         super(connectString);
         checkArgs(barrierName, size);
@@ -52,7 +60,7 @@ public class ZkBarrier extends ZkContext implements Barrier, Watcher {
     private void init(String barrierName, int size) throws KeeperException, InterruptedException {
         this.barrierPath = NAMESPACE + "/" + barrierName;
         this.size = size;
-        this.zkPrimitiveSupport = new ZkPrimitiveSupport(zk);
+        this.zkPrimitiveSupport = new ZkPrimitiveSupport(this);
 
         checkState();
         ZkUtils.createPersist(zk, NAMESPACE);
@@ -62,36 +70,52 @@ public class ZkBarrier extends ZkContext implements Barrier, Watcher {
     @Override
     public synchronized void enter() throws Exception {
         checkState();
+        ZkOperation op = beginOperation(ZkMetric.BARRIER_ENTER, barrierPath);
 
         prepareEnter();
 
-        if (ready()) return;
-
-        waitOthersEnter();
+        if (!ready()) {
+            waitOthersEnter();
 
-        notifyOthers();
+            notifyOthers();
+        }
+        op.end();
     }
 
     private void prepareEnter() throws KeeperException, InterruptedException {
         ZkUtils.createTemp(zk, barrierPath + "/" + nodeName);
+        trackEphemeral(barrierPath + "/" + nodeName);
+        entered = true;
     }
 
     private boolean ready() throws KeeperException, InterruptedException {
-        return zk.exists(getBarrierReadyPath(), new Watcher() {
+        boolean ready = zk.exists(getBarrierReadyPath(), new Watcher() {
             @Override
             public void process(WatchedEvent event) {
-                allReady.set(true);
-                synchronized (ZkBarrier.this) {
-                    ZkBarrier.this.notifyAll();
-                }
+                //会话过期由onSessionRecovered重新注册watch
+                if (event.getType() != Event.EventType.NodeCreated)
+                    return;
+                notifyReady();
             }
         }) != null;
+        if (ready)
+            allReady.set(true);
+        return ready;
+    }
+
+    private void notifyReady() {
+        allReady.set(true);
+        synchronized (readyMonitor) {
+            readyMonitor.notifyAll();
+        }
     }
 
     private void waitOthersEnter() throws InterruptedException, KeeperException {
         List<String> list = zk.getChildren(barrierPath, false);
-        while (!allReady.get() && list.size() < size) {
-            wait();
+        synchronized (readyMonitor) {
+            while (!allReady.get() && list.size() < size) {
+                readyMonitor.wait();
+            }
         }
     }
 
@@ -102,15 +126,19 @@ public class ZkBarrier extends ZkContext implements Barrier, Watcher {
     @Override
     public synchronized void leave() throws Exception {
         checkState();
+        ZkOperation op = beginOperation(ZkMetric.BARRIER_LEAVE, barrierPath);
 
         prepareLeave();
 
         waitOthersLeave();
 
         cleanup();
+        op.end();
     }
 
     private void prepareLeave() throws KeeperException {
+        entered = false;
+        untrackEphemeral(barrierPath + "/" + nodeName);
         ZkUtils.deleteNodeIgnoreInterrupt(zk, barrierPath + "/" + nodeName);
     }
 
@@ -126,6 +154,18 @@ public class ZkBarrier extends ZkContext implements Barrier, Watcher {
         }
     }
 
+    /**
+     * 已进入但尚未离开栅栏时，在新会话上重建成员节点，并重新注册ready节点的watch
+     */
+    @Override
+    protected void onSessionRecovered() throws KeeperException, InterruptedException {
+        if (destory || !entered)
+            return;
+        prepareEnter();
+        if (ready())
+            notifyReady();
+    }
+
     private String getBarrierReadyPath() {
         return barrierPath + "_ready";
     }
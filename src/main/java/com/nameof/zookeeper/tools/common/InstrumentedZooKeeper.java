@@ -0,0 +1,124 @@
+package com.nameof.zookeeper.tools.common;
+
+import com.nameof.zookeeper.tools.metrics.ZkCallCounter;
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.OpResult;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Stat;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * 会话使用的zookeeper客户端，每次请求通过{@link ZkCallCounter}计数
+ * <p>只覆盖实际发出请求的方法，boolean watch的重载方法在zookeeper内部委托给Watcher重载，不会重复计数
+ * @Author: chengpan
+ * @Date: 2018/12/14
+ */
+class InstrumentedZooKeeper extends ZooKeeper {
+
+    InstrumentedZooKeeper(String connectString, int sessionTimeout, Watcher watcher) throws IOException {
+        super(connectString, sessionTimeout, watcher);
+    }
+
+    @Override
+    public String create(String path, byte[] data, List<ACL> acl, CreateMode createMode) throws KeeperException, InterruptedException {
+        ZkCallCounter.increment();
+        return super.create(path, data, acl, createMode);
+    }
+
+    @Override
+    public void create(String path, byte[] data, List<ACL> acl, CreateMode createMode, AsyncCallback.StringCallback cb, Object ctx) {
+        ZkCallCounter.increment();
+        super.create(path, data, acl, createMode, cb, ctx);
+    }
+
+    @Override
+    public void delete(String path, int version) throws InterruptedException, KeeperException {
+        ZkCallCounter.increment();
+        super.delete(path, version);
+    }
+
+    @Override
+    public void delete(String path, int version, AsyncCallback.VoidCallback cb, Object ctx) {
+        ZkCallCounter.increment();
+        super.delete(path, version, cb, ctx);
+    }
+
+    @Override
+    public List<OpResult> multi(Iterable<Op> ops) throws InterruptedException, KeeperException {
+        ZkCallCounter.increment();
+        return super.multi(ops);
+    }
+
+    @Override
+    public void multi(Iterable<Op> ops, AsyncCallback.MultiCallback cb, Object ctx) {
+        ZkCallCounter.increment();
+        super.multi(ops, cb, ctx);
+    }
+
+    @Override
+    public Stat exists(String path, Watcher watcher) throws KeeperException, InterruptedException {
+        ZkCallCounter.increment();
+        return super.exists(path, watcher);
+    }
+
+    @Override
+    public void exists(String path, Watcher watcher, AsyncCallback.StatCallback cb, Object ctx) {
+        ZkCallCounter.increment();
+        super.exists(path, watcher, cb, ctx);
+    }
+
+    @Override
+    public byte[] getData(String path, Watcher watcher, Stat stat) throws KeeperException, InterruptedException {
+        ZkCallCounter.increment();
+        return super.getData(path, watcher, stat);
+    }
+
+    @Override
+    public void getData(String path, Watcher watcher, AsyncCallback.DataCallback cb, Object ctx) {
+        ZkCallCounter.increment();
+        super.getData(path, watcher, cb, ctx);
+    }
+
+    @Override
+    public Stat setData(String path, byte[] data, int version) throws KeeperException, InterruptedException {
+        ZkCallCounter.increment();
+        return super.setData(path, data, version);
+    }
+
+    @Override
+    public void setData(String path, byte[] data, int version, AsyncCallback.StatCallback cb, Object ctx) {
+        ZkCallCounter.increment();
+        super.setData(path, data, version, cb, ctx);
+    }
+
+    @Override
+    public List<String> getChildren(String path, Watcher watcher) throws KeeperException, InterruptedException {
+        ZkCallCounter.increment();
+        return super.getChildren(path, watcher);
+    }
+
+    @Override
+    public void getChildren(String path, Watcher watcher, AsyncCallback.ChildrenCallback cb, Object ctx) {
+        ZkCallCounter.increment();
+        super.getChildren(path, watcher, cb, ctx);
+    }
+
+    @Override
+    public List<String> getChildren(String path, Watcher watcher, Stat stat) throws KeeperException, InterruptedException {
+        ZkCallCounter.increment();
+        return super.getChildren(path, watcher, stat);
+    }
+
+    @Override
+    public void getChildren(String path, Watcher watcher, AsyncCallback.Children2Callback cb, Object ctx) {
+        ZkCallCounter.increment();
+        super.getChildren(path, watcher, cb, ctx);
+    }
+}
@@ -0,0 +1,274 @@
+package com.nameof.zookeeper.tools.common;
+
+import com.nameof.zookeeper.tools.metrics.ZkMetric;
+import com.nameof.zookeeper.tools.utils.ZkUtils;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.OpResult;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * <p>基于zookeeper回调API为原语的异步实现提供支持
+ * <p>所有future都在一个共享的小线程池中完成，后续的回调不会占用zookeeper的事件线程；
+ * 等待中的异步调用只在会话的{@link ZkWatchDispatcher}中持有一个本地等待者，不占用任何线程
+ * @Author: chengpan
+ * @Date: 2018/12/8
+ */
+public class ZkAsyncSupport {
+
+    private static final ExecutorService executor = Executors.newFixedThreadPool(
+            Math.max(2, Runtime.getRuntime().availableProcessors()), daemonThreadFactory("zk-async"));
+
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(daemonThreadFactory("zk-async-timer"));
+
+    private final ZkContext context;
+
+    private final ZkSession session;
+
+    public ZkAsyncSupport(ZkContext context) {
+        this.context = context;
+        this.session = context.session;
+    }
+
+    public static Executor executor() {
+        return executor;
+    }
+
+    public CompletableFuture<String> create(String path, byte[] data, CreateMode mode) {
+        return withZk(zk -> {
+            CompletableFuture<String> f = new CompletableFuture<>();
+            zk.create(path, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, mode, (rc, p, ctx, name) -> {
+                if (rc == KeeperException.Code.OK.intValue())
+                    complete(f, name);
+                else
+                    fail(f, rc, p);
+            }, null);
+            return f;
+        });
+    }
+
+    public CompletableFuture<List<String>> getChildren(String path, Watcher watcher) {
+        return withZk(zk -> {
+            CompletableFuture<List<String>> f = new CompletableFuture<>();
+            zk.getChildren(path, watcher, (rc, p, ctx, children) -> {
+                if (rc == KeeperException.Code.OK.intValue())
+                    complete(f, children);
+                else
+                    fail(f, rc, p);
+            }, null);
+            return f;
+        });
+    }
+
+    /**
+     * @return 节点不存在时为null
+     */
+    public CompletableFuture<Stat> exists(String path, Watcher watcher) {
+        return withZk(zk -> {
+            CompletableFuture<Stat> f = new CompletableFuture<>();
+            zk.exists(path, watcher, (rc, p, ctx, stat) -> {
+                if (rc == KeeperException.Code.OK.intValue() || rc == KeeperException.Code.NONODE.intValue())
+                    complete(f, stat);
+                else
+                    fail(f, rc, p);
+            }, null);
+            return f;
+        });
+    }
+
+    public CompletableFuture<byte[]> getData(String path) {
+        return withZk(zk -> {
+            CompletableFuture<byte[]> f = new CompletableFuture<>();
+            zk.getData(path, false, (rc, p, ctx, data, stat) -> {
+                if (rc == KeeperException.Code.OK.intValue())
+                    complete(f, data);
+                else
+                    fail(f, rc, p);
+            }, null);
+            return f;
+        });
+    }
+
+    public CompletableFuture<Stat> setData(String path, byte[] data, int version) {
+        return withZk(zk -> {
+            CompletableFuture<Stat> f = new CompletableFuture<>();
+            zk.setData(path, data, version, (rc, p, ctx, stat) -> {
+                if (rc == KeeperException.Code.OK.intValue())
+                    complete(f, stat);
+                else
+                    fail(f, rc, p);
+            }, null);
+            return f;
+        });
+    }
+
+    public CompletableFuture<Void> delete(String path, int version) {
+        return withZk(zk -> {
+            CompletableFuture<Void> f = new CompletableFuture<>();
+            zk.delete(path, version, (rc, p, ctx) -> {
+                if (rc == KeeperException.Code.OK.intValue())
+                    complete(f, null);
+                else
+                    fail(f, rc, p);
+            }, null);
+            return f;
+        });
+    }
+
+    public CompletableFuture<List<OpResult>> multi(Iterable<Op> ops) {
+        return withZk(zk -> {
+            CompletableFuture<List<OpResult>> f = new CompletableFuture<>();
+            zk.multi(ops, (rc, p, ctx, results) -> {
+                if (rc == KeeperException.Code.OK.intValue())
+                    complete(f, results);
+                else
+                    fail(f, rc, p);
+            }, null);
+            return f;
+        });
+    }
+
+    /**
+     * 节点不存在或被删除时完成，会话过期时也会完成，由调用方重新检查条件
+     * <p>通过会话的{@link ZkWatchDispatcher}复用watch，返回的future被取消时在本地移除等待者
+     * @param path
+     * @return
+     */
+    public CompletableFuture<Void> waitNotExists(String path) {
+        CompletableFuture<Void> deleted = new CompletableFuture<>();
+        waitNotExistsStep(path, session.getGeneration(), deleted);
+        return deleted;
+    }
+
+    private void waitNotExistsStep(String path, long generation, CompletableFuture<Void> deleted) {
+        if (deleted.isDone())
+            return;
+        ZkWatchDispatcher dispatcher = session.getWatchDispatcher();
+        //节点数据变化等事件也会唤醒，需要重新检查节点是否存在
+        Runnable waiter = wakeup(ZkUtils.parentOf(path), () -> waitNotExistsStep(path, generation, deleted));
+        deleted.whenComplete((v, e) -> dispatcher.unwatch(path, ZkWatchDispatcher.WatchType.EXISTS, waiter));
+        session.whenRecovered().thenAcceptAsync(v -> {
+            if (generation != session.getGeneration()) {
+                complete(deleted, null);
+                return;
+            }
+            dispatcher.watchAsync(path, ZkWatchDispatcher.WatchType.EXISTS, waiter, w -> exists(path, w))
+                    .whenComplete((stat, e) -> {
+                        if (e == null) {
+                            if (stat == null)
+                                complete(deleted, null);
+                        } else if (unwrap(e) instanceof KeeperException.SessionExpiredException) {
+                            complete(deleted, null);
+                        } else {
+                            executor.execute(() -> deleted.completeExceptionally(unwrap(e)));
+                        }
+                    });
+        }, executor);
+    }
+
+    /**
+     * path存在子节点时立即完成，否则在子节点发生变化时完成，会话过期时也会完成，由调用方重新检查条件
+     * <p>通过会话的{@link ZkWatchDispatcher}复用watch，返回的future被取消时在本地移除等待者
+     * @param path
+     * @return
+     */
+    public CompletableFuture<Void> waitChildren(String path) {
+        CompletableFuture<Void> changed = new CompletableFuture<>();
+        ZkWatchDispatcher dispatcher = session.getWatchDispatcher();
+        Runnable waiter = wakeup(path, () -> changed.complete(null));
+        changed.whenComplete((v, e) -> dispatcher.unwatch(path, ZkWatchDispatcher.WatchType.CHILDREN, waiter));
+        dispatcher.watchAsync(path, ZkWatchDispatcher.WatchType.CHILDREN, waiter, w -> getChildren(path, w))
+                .whenComplete((children, e) -> {
+                    if (e != null)
+                        executor.execute(() -> changed.completeExceptionally(unwrap(e)));
+                    else if (!children.isEmpty())
+                        complete(changed, null);
+                });
+        return changed;
+    }
+
+    /**
+     * 超时后以timeoutValue完成future，future已完成时无影响
+     * @param future
+     * @param duration
+     * @param timeoutValue
+     */
+    public static <T> void completeOnTimeout(CompletableFuture<T> future, WaitDuration duration, T timeoutValue) {
+        timer.schedule(() -> complete(future, timeoutValue), duration.getDuration(), duration.getUnit());
+    }
+
+    /**
+     * 在共享线程池中执行task，用于异步重试，避免递归调用栈增长
+     * @param task
+     */
+    public static void execute(Runnable task) {
+        executor.execute(task);
+    }
+
+    /**
+     * 去除CompletableFuture组合时包装的CompletionException
+     */
+    public static Throwable unwrap(Throwable e) {
+        while (e instanceof CompletionException && e.getCause() != null)
+            e = e.getCause();
+        return e;
+    }
+
+    /**
+     * @param path 记录唤醒耗时使用的原语路径
+     * @return 被唤醒时在共享线程池中执行task，并记录唤醒耗时
+     */
+    private Runnable wakeup(String path, Runnable task) {
+        return () -> {
+            long firedAt = System.nanoTime();
+            executor.execute(() -> {
+                context.getMetrics().recordTime(ZkMetric.WATCH_WAKEUP, path, System.nanoTime() - firedAt);
+                task.run();
+            });
+        };
+    }
+
+    /**
+     * 会话正在重建时，等待重建完成后再发起调用
+     */
+    private <T> CompletableFuture<T> withZk(Function<ZooKeeper, CompletableFuture<T>> call) {
+        CompletableFuture<Void> recovered = session.whenRecovered();
+        if (recovered.isDone())
+            return call.apply(session.getZk());
+        return recovered.thenComposeAsync(v -> call.apply(session.getZk()), executor);
+    }
+
+    private static <T> void complete(CompletableFuture<T> f, T value) {
+        executor.execute(() -> f.complete(value));
+    }
+
+    private static void fail(CompletableFuture<?> f, int rc, String path) {
+        KeeperException e = KeeperException.create(KeeperException.Code.get(rc), path);
+        executor.execute(() -> f.completeExceptionally(e));
+    }
+
+    private static ThreadFactory daemonThreadFactory(String prefix) {
+        AtomicInteger no = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, prefix + "-" + no.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+}
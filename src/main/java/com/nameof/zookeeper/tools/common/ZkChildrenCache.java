@@ -0,0 +1,250 @@
+package com.nameof.zookeeper.tools.common;
+
+import com.nameof.zookeeper.tools.common.ZkWatchDispatcher.WatchType;
+import com.nameof.zookeeper.tools.utils.ZkUtils;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooKeeper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * <p>会话级的顺序子节点缓存，按子节点名末尾的序列号排序，由{@link ZkSession#getChildrenCache(String)}获取，同一会话上的原语共享
+ * <ul>
+ *     <li>加载时通过{@link ZkWatchDispatcher}注册子节点watch，watch触发前的查询直接使用本地数据，无需访问zookeeper</li>
+ *     <li>watch触发后，下次查询时重新加载子节点列表并重新注册watch，一次网络往返，重新加载时只增删发生变化的节点</li>
+ *     <li>本会话删除节点成功后直接从缓存移除；创建节点后缓存失效，下次查询时直接重新加载。
+ *     序列号更小的其它创建的watch事件可能还没有投递，无法由本地数据判断创建前的缓存是否完整</li>
+ * </ul>
+ * <p>过期上限：watch未触发时，本地数据最多落后于服务端一次watch事件的投递时间。由于序列号单调递增，
+ * 缓存中缺少的节点的序列号一定大于缓存内的所有节点，因此：
+ * <ul>
+ *     <li>{@link #lower(String, String)}要求当前节点在缓存中，否则从服务端重新加载，保证不会漏掉排在前面的节点</li>
+ *     <li>{@link #first()}返回的最小节点可能已被删除(调用方处理NoNode后调用{@link #removed(String)}重试)，
+ *     但不会漏掉更小的节点；缓存为空时会向服务端确认</li>
+ * </ul>
+ * <p>除按序列号排序的全部子节点外，还按节点名前缀(序列号之前的部分，如读写锁的READ-、WRITE-)分别建立索引，
+ * 查找前一个节点、前一个指定类型的节点都是O(log n)
+ * <p>thread-safe
+ * @Author: chengpan
+ * @Date: 2018/12/13
+ */
+public class ZkChildrenCache {
+
+    private static final long UNKNOWN = -1;
+
+    private final ZkSession session;
+
+    private final String path;
+
+    /** 序列号 -> 子节点名 */
+    private final ConcurrentSkipListMap<Long, String> children = new ConcurrentSkipListMap<>();
+
+    /** 节点名前缀 -> (序列号 -> 子节点名) */
+    private final Map<String, TreeMap<Long, String>> byPrefix = new HashMap<>();
+
+    /** 加载时所在的会话代数 */
+    private long generation = UNKNOWN;
+
+    /** 加载时注册的watch尚未触发 */
+    private volatile boolean armed;
+
+    private final Runnable invalidator = () -> armed = false;
+
+    ZkChildrenCache(ZkSession session, String path) {
+        this.session = session;
+        this.path = path;
+    }
+
+    /**
+     * @return 加载时注册的watch是否尚未触发，此时查询直接使用本地数据，不访问zookeeper
+     */
+    public boolean isWatched() {
+        return armed && generation == session.getGeneration();
+    }
+
+    /**
+     * @return 最小的子节点名，没有子节点时返回null
+     */
+    public synchronized String first() throws KeeperException, InterruptedException {
+        validate(true);
+        if (children.isEmpty()) {
+            //watch事件可能还未到达，向服务端确认
+            validate(false);
+        }
+        Map.Entry<Long, String> first = children.firstEntry();
+        return first == null ? null : first.getValue();
+    }
+
+    /**
+     * 与{@link #first()}相同，缓存为空时向服务端确认
+     * @param n
+     * @return 按序列号排序的最小的至多n个子节点名
+     */
+    public synchronized List<String> first(int n) throws KeeperException, InterruptedException {
+        validate(true);
+        if (children.isEmpty())
+            validate(false);
+        List<String> first = new ArrayList<>(Math.min(n, children.size()));
+        Iterator<String> it = children.values().iterator();
+        while (first.size() < n && it.hasNext())
+            first.add(it.next());
+        return first;
+    }
+
+    /**
+     * 获取排在nodeName之前的最近一个节点
+     * @param nodeName 当前会话创建的节点
+     * @return 没有更小的节点，或nodeName已不存在时返回nodeName
+     */
+    public String lower(String nodeName) throws KeeperException, InterruptedException {
+        return lower(nodeName, null);
+    }
+
+    /**
+     * 获取排在nodeName之前，且节点名前缀为prefix的最近一个节点
+     * @param nodeName 当前会话创建的节点
+     * @param prefix 序列号之前的部分，null表示任意节点
+     * @return 没有满足条件的节点，或nodeName已不存在时返回nodeName
+     */
+    public synchronized String lower(String nodeName, String prefix) throws KeeperException, InterruptedException {
+        long seq = ZkUtils.parseSequence(nodeName);
+        validate(true);
+        if (!children.containsKey(seq))
+            reload();
+        if (!children.containsKey(seq))
+            return nodeName;
+        Map.Entry<Long, String> lower;
+        if (prefix == null) {
+            lower = children.lowerEntry(seq);
+        } else {
+            TreeMap<Long, String> sameType = byPrefix.get(prefix);
+            lower = sameType == null ? null : sameType.lowerEntry(seq);
+        }
+        return lower == null ? nodeName : lower.getValue();
+    }
+
+    /**
+     * 是否存在节点名前缀为prefix的子节点，watch未触发时不访问zookeeper
+     * <p>与{@link #first()}不同，缓存有子节点时不向服务端确认，刚被删除的节点最多在一次watch事件的投递时间内仍被认为存在
+     * @param prefix 序列号之前的部分，null表示任意节点
+     */
+    public synchronized boolean hasChildren(String prefix) throws KeeperException, InterruptedException {
+        validate(true);
+        return prefix == null ? !children.isEmpty() : byPrefix.containsKey(prefix);
+    }
+
+    /**
+     * @return 按序列号排序的所有子节点名
+     */
+    public synchronized List<String> getSortedChildren() throws KeeperException, InterruptedException {
+        validate(true);
+        return new ArrayList<>(children.values());
+    }
+
+    /**
+     * 当前会话创建节点成功后调用，使缓存失效，下次查询时重新加载
+     * @param nodeName
+     */
+    public synchronized void created(String nodeName) {
+        armed = false;
+    }
+
+    /**
+     * 当前会话删除节点成功后调用
+     * @param nodeName
+     */
+    public synchronized void deleted(String nodeName) {
+        remove(ZkUtils.parseSequence(nodeName));
+    }
+
+    /**
+     * 发现节点已被其它客户端删除时调用
+     * @param nodeName
+     */
+    public synchronized void removed(String nodeName) {
+        remove(ZkUtils.parseSequence(nodeName));
+    }
+
+    /**
+     * @param trustWatch watch未触发时是否直接使用本地数据
+     */
+    private void validate(boolean trustWatch) throws KeeperException, InterruptedException {
+        if (trustWatch && isWatched())
+            return;
+        reload();
+    }
+
+    private void reload() throws KeeperException, InterruptedException {
+        ZooKeeper zk = session.getZk();
+        long gen = session.getGeneration();
+        boolean[] called = new boolean[1];
+        armed = true;
+        List<String> list;
+        try {
+            list = session.getWatchDispatcher().watch(path, WatchType.CHILDREN, invalidator, w -> {
+                called[0] = true;
+                return zk.getChildren(path, w);
+            });
+            if (!called[0]) {
+                //已有未触发的watch，其快照可能早于本会话的创建，watch仍会在变更时通知invalidator
+                list = zk.getChildren(path, false);
+            }
+        } catch (KeeperException | InterruptedException e) {
+            armed = false;
+            throw e;
+        }
+
+        long[] seqs = new long[list.size()];
+        for (int i = 0; i < seqs.length; i++) {
+            String name = list.get(i);
+            long seq = ZkUtils.parseSequence(name);
+            seqs[i] = seq;
+            if (!children.containsKey(seq))
+                add(seq, name);
+        }
+        Arrays.sort(seqs);
+        for (Iterator<Map.Entry<Long, String>> it = children.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Long, String> entry = it.next();
+            if (Arrays.binarySearch(seqs, entry.getKey()) < 0) {
+                it.remove();
+                removeIndex(entry.getKey(), entry.getValue());
+            }
+        }
+        generation = gen;
+    }
+
+    private void add(long seq, String name) {
+        children.put(seq, name);
+        byPrefix.computeIfAbsent(prefixOf(name), p -> new TreeMap<>()).put(seq, name);
+    }
+
+    private boolean remove(long seq) {
+        String name = children.remove(seq);
+        if (name == null)
+            return false;
+        removeIndex(seq, name);
+        return true;
+    }
+
+    private void removeIndex(long seq, String name) {
+        String prefix = prefixOf(name);
+        TreeMap<Long, String> sameType = byPrefix.get(prefix);
+        if (sameType != null && sameType.remove(seq) != null && sameType.isEmpty())
+            byPrefix.remove(prefix);
+    }
+
+    private static String prefixOf(String name) {
+        return name.substring(0, name.length() - 10);
+    }
+
+    public String getPath() {
+        return path;
+    }
+}
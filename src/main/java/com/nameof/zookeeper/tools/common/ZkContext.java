@@ -1,7 +1,12 @@
 package com.nameof.zookeeper.tools.common;
 
 import com.google.common.base.Preconditions;
+import com.nameof.zookeeper.tools.metrics.ZkMetric;
+import com.nameof.zookeeper.tools.metrics.ZkMetrics;
+import com.nameof.zookeeper.tools.metrics.ZkMetricsRegistry;
+import com.nameof.zookeeper.tools.metrics.ZkOperation;
 import com.nameof.zookeeper.tools.utils.ZkUtils;
+import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.ZooKeeper;
@@ -9,55 +14,134 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 import static org.apache.zookeeper.ZooKeeper.States.CONNECTED;
 
 /**
+ * 所有zk原语的基类，挂载在{@link ZkSessionManager}管理的共享会话上
  * @Author: chengpan
  * @Date: 2018/11/11
  */
 public class ZkContext implements Watcher {
 
+    /** 会话重建期间，调用方最多等待的时间 */
+    protected static final long RECOVERY_WAIT_MILLIS = 3_000;
+
     protected Logger logger = LoggerFactory.getLogger(getClass());
 
-    protected ZooKeeper zk;
+    protected ZkSession session;
+
+    protected volatile ZooKeeper zk;
 
     protected volatile Watcher.Event.KeeperState zkState;
 
+    /** 当前原语在共享会话上创建的临时节点，卸载时删除，保持独占会话时关闭会话即释放临时节点的语义 */
+    private final Set<String> ephemeralNodes = ConcurrentHashMap.newKeySet();
+
+    private volatile ZkMetrics metrics = ZkMetricsRegistry.getMetrics();
+
     public ZkContext(String connectString) throws IOException, InterruptedException {
         Preconditions.checkNotNull(connectString, "connectString null");
-        zk = ZkUtils.createSync(connectString, this);
+        session = ZkSessionManager.acquire(connectString, this);
+        zk = session.getZk();
+        zkState = session.getState();
     }
 
     @Override
     public void process(WatchedEvent event) {
-        if (event.getType() == Event.EventType.None)
+        if (event.getType() == Event.EventType.None) {
             this.zkState = event.getState();
+            if (zkState == Event.KeeperState.Expired)
+                onSessionExpired();
+        }
+    }
+
+    void sessionRecovered(ZooKeeper zk) {
+        this.zk = zk;
+        this.zkState = Event.KeeperState.SyncConnected;
+        ephemeralNodes.clear();
     }
 
+    /**
+     * 会话过期时回调，在zookeeper事件线程中执行，不能阻塞。此时旧会话上的临时节点和watch都已失效
+     */
+    protected void onSessionExpired() { }
+
+    /**
+     * 会话重建完成后在后台线程回调，{@link #zk}已替换为新的客户端，原语可在此重建语义上安全的临时节点、重新注册watch
+     */
+    protected void onSessionRecovered() throws KeeperException, InterruptedException { }
+
+    /**
+     * 从共享会话上卸载，会话不再被任何原语引用时才会关闭
+     */
     public void destory() {
-        boolean interrupt = false;
         try {
-            do {
+            for (String path : ephemeralNodes) {
                 try {
-                    zk.close();
-                    return;
-                } catch (InterruptedException e) {
-                    interrupt = true;
+                    ZkUtils.deleteNodeIgnoreInterrupt(zk, path);
+                } catch (KeeperException e) {
+                    logger.warn("delete ephemeral node " + path + " failed", e);
                 }
-            } while (true);
+            }
+            ephemeralNodes.clear();
         } finally {
-            if (interrupt) Thread.currentThread().interrupt();
+            ZkSessionManager.release(session, this);
         }
     }
 
+    public ZkMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * 单独指定当前原语的指标实现，默认使用{@link ZkMetricsRegistry#getMetrics()}
+     * @param metrics
+     */
+    public void setMetrics(ZkMetrics metrics) {
+        Preconditions.checkNotNull(metrics, "metrics null");
+        this.metrics = metrics;
+    }
+
+    /**
+     * 开始记录一次同步操作，操作完成时调用{@link ZkOperation#end()}
+     * @param metric
+     * @param path
+     * @return
+     */
+    protected ZkOperation beginOperation(ZkMetric metric, String path) {
+        return ZkOperation.begin(metrics, metric, path);
+    }
+
+    protected void trackEphemeral(String path) {
+        ephemeralNodes.add(path);
+    }
+
+    protected void untrackEphemeral(String path) {
+        ephemeralNodes.remove(path);
+    }
+
+    protected boolean isTrackedEphemeral(String path) {
+        return ephemeralNodes.contains(path);
+    }
+
+    /**
+     * 检查会话状态，会话过期正在重建时最多等待{@link #RECOVERY_WAIT_MILLIS}
+     */
     protected void checkState() {
-        if (zk.getState() != CONNECTED)
-            switch(zkState) {
-                case Expired:
-                    //create new client ?
-                default:
-                    throw new IllegalStateException("zookeeper state : " + zkState);
+        if (zk.getState() == CONNECTED)
+            return;
+        if (session.isRecovering()) {
+            try {
+                if (session.awaitRecovery(RECOVERY_WAIT_MILLIS, TimeUnit.MILLISECONDS) && zk.getState() == CONNECTED)
+                    return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
+        }
+        throw new IllegalStateException("zookeeper state : " + zkState);
     }
 }
@@ -1,26 +1,42 @@
 package com.nameof.zookeeper.tools.common;
 
+import com.nameof.zookeeper.tools.common.ZkWatchDispatcher.WatchType;
+import com.nameof.zookeeper.tools.metrics.ZkMetric;
+import com.nameof.zookeeper.tools.utils.ZkUtils;
 import org.apache.zookeeper.KeeperException;
-import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.ZooKeeper;
 import org.apache.zookeeper.data.Stat;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.function.Predicate;
 
 /**
  * 为实现基于zk的原语提供支持
+ * <p>所有等待都通过会话的{@link ZkWatchDispatcher}复用watch，同一路径上任意多个等待者只对应一个zookeeper watch，
+ * 等待超时的等待者在本地移除
+ * <p>会话过期时所有等待都会被立即唤醒，由调用方重新检查条件，而不是等待一个永远不会到来的事件
  * @Author: chengpan
  * @Date: 2018/11/17
  */
 public class ZkPrimitiveSupport {
 
-    private final ZooKeeper zk;
+    private final ZkContext context;
 
-    public ZkPrimitiveSupport(ZooKeeper zk) {
-        this.zk = zk;
+    private final ZkSession session;
+
+    private final ZkWatchDispatcher dispatcher;
+
+    public ZkPrimitiveSupport(ZkContext context) {
+        this.context = context;
+        this.session = context.session;
+        this.dispatcher = session.getWatchDispatcher();
     }
 
     /**
@@ -31,14 +47,19 @@ public class ZkPrimitiveSupport {
      * @throws TimeoutException
      */
     public void waitChildren(String path, WaitDuration duration) throws InterruptedException, TimeoutException {
-        CountDownLatch cdl = new CountDownLatch(1);
-        EventPhaserWatcher epw = new EventPhaserWatcher(Watcher.Event.EventType.NodeChildrenChanged, cdl);
+        Wakeup wakeup = new Wakeup();
         try {
-            zk.getChildren(path, epw);
+            watchChildren(path, wakeup, duration);
+        } catch (KeeperException.SessionExpiredException e) {
+            return;
         } catch (KeeperException e) {
             throw new RuntimeException(e);
         }
-        await(cdl, duration);
+        try {
+            await(path, wakeup, duration);
+        } finally {
+            dispatcher.unwatch(path, WatchType.CHILDREN, wakeup);
+        }
     }
 
     public void waitChildren(String path) throws InterruptedException {
@@ -49,15 +70,49 @@ public class ZkPrimitiveSupport {
         }
     }
 
+    /**
+     * 阻塞，直到path上的 NodeChildrenChanged 事件发生。注册watch时读到的子节点列表已不满足waiting时直接返回，
+     * 读取与注册watch是同一次调用，不会漏掉两者之间的事件；会话过期时直接返回
+     * @param path
+     * @param waiting 是否仍需等待，不能修改传入的列表
+     * @param duration
+     * @throws KeeperException
+     * @throws InterruptedException
+     * @throws TimeoutException
+     */
+    public void waitChildren(String path, Predicate<List<String>> waiting, WaitDuration duration) throws KeeperException, InterruptedException, TimeoutException {
+        Wakeup wakeup = new Wakeup();
+        List<String> children;
+        try {
+            children = watchChildren(path, wakeup, duration);
+        } catch (KeeperException.SessionExpiredException e) {
+            return;
+        }
+        try {
+            if (waiting.test(children))
+                await(path, wakeup, duration);
+        } finally {
+            dispatcher.unwatch(path, WatchType.CHILDREN, wakeup);
+        }
+    }
+
     public void waitNonChildren(String path) throws KeeperException, InterruptedException {
         while (true) {
-            CountDownLatch cdl = new CountDownLatch(1);
-            EventPhaserWatcher epw = new EventPhaserWatcher(Watcher.Event.EventType.NodeChildrenChanged, cdl);
-            List<String> list = zk.getChildren(path, epw);
-            if (list.size() > 0) {
-                await(cdl);
-            } else {
-                return;
+            Wakeup wakeup = new Wakeup();
+            List<String> list;
+            try {
+                list = watchChildren(path, wakeup, null);
+            } catch (KeeperException.SessionExpiredException e) {
+                continue;
+            }
+            try {
+                if (list.size() > 0) {
+                    await(path, wakeup);
+                } else {
+                    return;
+                }
+            } finally {
+                dispatcher.unwatch(path, WatchType.CHILDREN, wakeup);
             }
         }
     }
@@ -70,48 +125,171 @@ public class ZkPrimitiveSupport {
         }
     }
 
+    /**
+     * 阻塞，直到节点不存在。节点数据变化等其它事件唤醒后会重新检查，会话过期时直接返回
+     * @param path
+     * @param duration
+     * @throws KeeperException
+     * @throws InterruptedException
+     * @throws TimeoutException
+     */
     public void waitNotExists(String path, WaitDuration duration) throws KeeperException, InterruptedException, TimeoutException {
-        CountDownLatch cdl = new CountDownLatch(1);
-        EventPhaserWatcher epw = new EventPhaserWatcher(Watcher.Event.EventType.NodeDeleted, cdl);
-        Stat exists = zk.exists(path, epw);
-        if (exists == null) {
+        long generation = session.getGeneration();
+        while (true) {
+            Wakeup wakeup = new Wakeup();
+            Stat exists;
+            try {
+                ZooKeeper zk = zk(duration);
+                if (generation != session.getGeneration())
+                    return;
+                exists = dispatcher.watch(path, WatchType.EXISTS, wakeup, w -> zk.exists(path, w));
+            } catch (KeeperException.SessionExpiredException e) {
+                return;
+            }
+            if (exists == null) {
+                return;
+            }
+            try {
+                await(ZkUtils.parentOf(path), wakeup, duration);
+            } finally {
+                dispatcher.unwatch(path, WatchType.EXISTS, wakeup);
+            }
+        }
+    }
+
+    /**
+     * 阻塞，直到节点被删除或发生变化。节点不存在，或注册watch时读到的Stat已不满足waiting时直接返回；会话过期时直接返回
+     * @param path
+     * @param waiting 是否仍需等待
+     * @param duration
+     * @throws KeeperException
+     * @throws InterruptedException
+     * @throws TimeoutException
+     */
+    public void waitChanged(String path, Predicate<Stat> waiting, WaitDuration duration) throws KeeperException, InterruptedException, TimeoutException {
+        long generation = session.getGeneration();
+        Wakeup wakeup = new Wakeup();
+        Stat exists;
+        try {
+            ZooKeeper zk = zk(duration);
+            if (generation != session.getGeneration())
+                return;
+            exists = dispatcher.watch(path, WatchType.EXISTS, wakeup, w -> zk.exists(path, w));
+        } catch (KeeperException.SessionExpiredException e) {
             return;
         }
-        await(cdl, duration);
+        try {
+            if (exists != null && waiting.test(exists))
+                await(ZkUtils.parentOf(path), wakeup, duration);
+        } finally {
+            dispatcher.unwatch(path, WatchType.EXISTS, wakeup);
+        }
+    }
+
+    /**
+     * 阻塞，直到paths中任意一个节点不存在或发生变化。所有watch通过异步exists一次性注册，只需一次网络往返
+     * @param paths
+     * @param duration
+     * @return 注册watch时已不存在的节点，被事件唤醒或会话过期时为空
+     * @throws KeeperException
+     * @throws InterruptedException
+     * @throws TimeoutException
+     */
+    public List<String> waitAnyNotExists(List<String> paths, WaitDuration duration) throws KeeperException, InterruptedException, TimeoutException {
+        Wakeup wakeup = new Wakeup();
+        List<String> notExists = new ArrayList<>();
+        List<CompletableFuture<Stat>> futures = new ArrayList<>(paths.size());
+        try {
+            ZooKeeper zk = zk(duration);
+            for (String path : paths)
+                futures.add(dispatcher.watchAsync(path, WatchType.EXISTS, wakeup, w -> exists(zk, path, w)));
+            for (int i = 0; i < paths.size(); i++) {
+                try {
+                    //连接断开时回调可能迟迟不到，等待注册结果同样受超时限制
+                    Stat stat = duration == null ? futures.get(i).get()
+                            : futures.get(i).get(duration.getDuration(), duration.getUnit());
+                    if (stat == null)
+                        notExists.add(paths.get(i));
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof KeeperException.SessionExpiredException)
+                        return notExists;
+                    if (e.getCause() instanceof KeeperException)
+                        throw (KeeperException) e.getCause();
+                    throw new RuntimeException(e.getCause());
+                }
+            }
+            if (notExists.isEmpty())
+                await(ZkUtils.parentOf(paths.get(0)), wakeup, duration);
+            return notExists;
+        } finally {
+            for (String path : paths)
+                dispatcher.unwatch(path, WatchType.EXISTS, wakeup);
+        }
     }
 
-    private void await(CountDownLatch cdl) throws InterruptedException {
+    private static CompletableFuture<Stat> exists(ZooKeeper zk, String path, Watcher watcher) {
+        CompletableFuture<Stat> future = new CompletableFuture<>();
+        zk.exists(path, watcher, (rc, p, ctx, stat) -> {
+            if (rc == KeeperException.Code.OK.intValue() || rc == KeeperException.Code.NONODE.intValue())
+                future.complete(stat);
+            else
+                future.completeExceptionally(KeeperException.create(KeeperException.Code.get(rc), p));
+        }, null);
+        return future;
+    }
+
+    private List<String> watchChildren(String path, Runnable waiter, WaitDuration duration) throws KeeperException, InterruptedException {
+        ZooKeeper zk = zk(duration);
+        return dispatcher.watch(path, WatchType.CHILDREN, waiter, w -> zk.getChildren(path, w));
+    }
+
+    /**
+     * 会话正在重建时先等待重建完成
+     */
+    private ZooKeeper zk(WaitDuration duration) throws InterruptedException {
+        if (duration == null)
+            session.awaitRecovery(-1, TimeUnit.MILLISECONDS);
+        else
+            session.awaitRecovery(duration.getDuration(), duration.getUnit());
+        return session.getZk();
+    }
+
+    private void await(String path, Wakeup wakeup) throws InterruptedException {
         try {
-            await(cdl, null);
+            await(path, wakeup, null);
         } catch (TimeoutException e) {
             //never happen
         }
     }
 
-    private void await(CountDownLatch cdl, WaitDuration duration) throws InterruptedException, TimeoutException {
+    /**
+     * @param path 记录唤醒耗时使用的原语路径
+     */
+    private void await(String path, Wakeup wakeup, WaitDuration duration) throws InterruptedException, TimeoutException {
         if (duration == null) {
-            cdl.await();
+            wakeup.cdl.await();
         } else {
             if (duration.getDuration() <= 0)
                 throw new TimeoutException();
-            cdl.await(duration.getDuration(), duration.getUnit());
+            wakeup.cdl.await(duration.getDuration(), duration.getUnit());
         }
+        if (wakeup.firedAt != 0)
+            context.getMetrics().recordTime(ZkMetric.WATCH_WAKEUP, path, System.nanoTime() - wakeup.firedAt);
     }
 
-    private static class EventPhaserWatcher implements Watcher {
+    /**
+     * 等待者，记录被唤醒的时间
+     */
+    private static class Wakeup implements Runnable {
 
-        private final Event.EventType type;
-        private final CountDownLatch cdl;
+        private final CountDownLatch cdl = new CountDownLatch(1);
 
-        public EventPhaserWatcher(Event.EventType type, CountDownLatch cdl) {
-            this.type = type;
-            this.cdl = cdl;
-        }
+        private volatile long firedAt;
 
         @Override
-        public void process(WatchedEvent event) {
-            if (event.getType() == type)
-                cdl.countDown();
+        public void run() {
+            firedAt = System.nanoTime();
+            cdl.countDown();
         }
     }
 }
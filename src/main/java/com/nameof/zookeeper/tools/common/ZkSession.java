@@ -0,0 +1,269 @@
+package com.nameof.zookeeper.tools.common;
+
+import com.nameof.zookeeper.tools.utils.ZkUtils;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * <p>被多个zk原语共享的zookeeper会话，由{@link ZkSessionManager}创建和回收
+ * <p>会话的默认Watcher只接收连接状态事件，并路由给当前挂载在该会话上的每个原语；
+ * 节点事件通过每次调用时传入的Watcher注册，由zookeeper客户端直接路由到对应原语；
+ * 原语的等待统一通过{@link ZkWatchDispatcher}注册，同一路径在会话上只保留一个watch
+ * <p>会话过期后立即在后台重建zookeeper客户端，重建完成后通知每个原语{@link ZkContext#onSessionRecovered()}，
+ * 由原语自行决定是否重建临时节点、重新注册watch
+ * <p>thread-safe
+ * @Author: chengpan
+ * @Date: 2018/12/3
+ */
+public class ZkSession {
+
+    private static final Logger logger = LoggerFactory.getLogger(ZkSession.class);
+
+    private static final long RECONNECT_BACKOFF_MILLIS = 1000;
+
+    private static final CompletableFuture<Void> RECOVERED = CompletableFuture.completedFuture(null);
+
+    private static final ExecutorService recoveryExecutor = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "zk-session-recovery");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final String connectString;
+
+    private volatile ZooKeeper zk;
+
+    /** 每次重建客户端加1，用于识别旧会话上创建的临时节点 */
+    private volatile long generation;
+
+    /** 重建期间为未完成的future */
+    private volatile CompletableFuture<Void> recovery = RECOVERED;
+
+    private volatile boolean closed;
+
+    private final Set<ZkContext> attached = new CopyOnWriteArraySet<>();
+
+    private final ZkWatchDispatcher watchDispatcher = new ZkWatchDispatcher();
+
+    private final Map<String, ZkChildrenCache> childrenCaches = new ConcurrentHashMap<>();
+
+    private volatile Watcher.Event.KeeperState state;
+
+    ZkSession(String connectString) throws IOException, InterruptedException {
+        this.connectString = connectString;
+        this.zk = connect(generation);
+    }
+
+    private ZooKeeper connect(long gen) throws IOException, InterruptedException {
+        return ZkUtils.createSync(connectString, event -> process(gen, event), InstrumentedZooKeeper::new);
+    }
+
+    private void process(long gen, WatchedEvent event) {
+        if (event.getType() != Watcher.Event.EventType.None || gen != generation)
+            return;
+        this.state = event.getState();
+        for (ZkContext context : attached) {
+            try {
+                context.process(event);
+            } catch (Throwable e) {
+                logger.error("error on routing session event to " + context, e);
+            }
+        }
+        if (event.getState() == Watcher.Event.KeeperState.Expired) {
+            //先进入重建状态，被唤醒的等待者重新检查时会等待重建完成
+            startRecovery();
+            watchDispatcher.process(event);
+        }
+    }
+
+    private synchronized void startRecovery() {
+        if (closed || isRecovering())
+            return;
+        recovery = new CompletableFuture<>();
+        recoveryExecutor.execute(this::recover);
+    }
+
+    private void recover() {
+        CompletableFuture<Void> pending = recovery;
+        try {
+            recoverClient(pending);
+        } finally {
+            //未能重建(已关闭、被中断)时也要唤醒等待重建的调用方，由其在失效的客户端上失败
+            synchronized (this) {
+                if (recovery == pending)
+                    recovery = RECOVERED;
+            }
+            pending.complete(null);
+        }
+    }
+
+    private void recoverClient(CompletableFuture<Void> pending) {
+        ZooKeeper expired = zk;
+        ZooKeeper fresh;
+        try {
+            fresh = reconnect();
+        } catch (InterruptedException e) {
+            logger.warn("recreate zookeeper client interrupted, connectString : {}", connectString);
+            Thread.currentThread().interrupt();
+            return;
+        }
+        //已关闭，close()已关闭了过期的客户端
+        if (fresh == null)
+            return;
+        closeQuietly(expired);
+
+        synchronized (this) {
+            if (closed) {
+                closeQuietly(fresh);
+                return;
+            }
+            zk = fresh;
+            generation++;
+            state = Watcher.Event.KeeperState.SyncConnected;
+            for (ZkContext context : attached)
+                context.sessionRecovered(fresh);
+            //与切换客户端在同一个同步块中完成，新会话的过期事件能够再次开始重建
+            recovery = RECOVERED;
+            pending.complete(null);
+        }
+        logger.info("zookeeper session recovered, connectString : {}", connectString);
+
+        for (ZkContext context : attached) {
+            recoveryExecutor.execute(() -> {
+                try {
+                    context.onSessionRecovered();
+                } catch (Throwable e) {
+                    logger.error("error on session recovered " + context, e);
+                }
+            });
+        }
+    }
+
+    /**
+     * 重建zookeeper客户端，失败时重试
+     * @return 会话已关闭时返回null
+     */
+    private ZooKeeper reconnect() throws InterruptedException {
+        while (!closed) {
+            try {
+                return connect(generation + 1);
+            } catch (IOException e) {
+                logger.warn("recreate zookeeper client failed, retry later", e);
+                Thread.sleep(RECONNECT_BACKOFF_MILLIS);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 会话正在重建时，等待重建完成
+     * @param timeout 小于0时一直等待
+     * @param unit
+     * @return 当前会话可用返回true，等待超时返回false
+     * @throws InterruptedException
+     */
+    public boolean awaitRecovery(long timeout, TimeUnit unit) throws InterruptedException {
+        CompletableFuture<Void> future = recovery;
+        try {
+            if (timeout < 0)
+                future.get();
+            else
+                future.get(timeout, unit);
+            return true;
+        } catch (TimeoutException e) {
+            return false;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return 会话可用时完成的future，未在重建时返回已完成的future
+     */
+    public CompletableFuture<Void> whenRecovered() {
+        return recovery;
+    }
+
+    public boolean isRecovering() {
+        return !recovery.isDone();
+    }
+
+    boolean attach(ZkContext context) {
+        return attached.add(context);
+    }
+
+    boolean detach(ZkContext context) {
+        return attached.remove(context);
+    }
+
+    int getRefCount() {
+        return attached.size();
+    }
+
+    synchronized void close() {
+        closed = true;
+        closeQuietly(zk);
+        //唤醒等待重建的调用方，由其在已关闭的客户端上失败
+        recovery.complete(null);
+    }
+
+    private static void closeQuietly(ZooKeeper zk) {
+        boolean interrupt = false;
+        try {
+            do {
+                try {
+                    zk.close();
+                    return;
+                } catch (InterruptedException e) {
+                    interrupt = true;
+                }
+            } while (true);
+        } finally {
+            if (interrupt) Thread.currentThread().interrupt();
+        }
+    }
+
+    public ZooKeeper getZk() {
+        return zk;
+    }
+
+    public ZkWatchDispatcher getWatchDispatcher() {
+        return watchDispatcher;
+    }
+
+    /**
+     * @param path 子节点均为顺序节点的路径
+     * @return path在当前会话上的子节点缓存
+     */
+    public ZkChildrenCache getChildrenCache(String path) {
+        return childrenCaches.computeIfAbsent(path, p -> new ZkChildrenCache(this, p));
+    }
+
+    public long getGeneration() {
+        return generation;
+    }
+
+    public String getConnectString() {
+        return connectString;
+    }
+
+    /** 最近一次收到的连接状态 */
+    public Watcher.Event.KeeperState getState() {
+        return state;
+    }
+}
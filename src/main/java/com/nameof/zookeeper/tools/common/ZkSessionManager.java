@@ -0,0 +1,134 @@
+package com.nameof.zookeeper.tools.common;
+
+import com.google.common.base.Preconditions;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * <p>按connectString管理共享的zookeeper会话，避免每个原语都建立独立的会话
+ * <p>每个connectString最多建立{@link #getPoolSize()}个会话，新挂载的原语分配到引用数最少的会话上，
+ * 会话的引用数归零时关闭
+ * <p>建立和关闭连接都在锁外进行，同一个connectString同一时间只有一个线程建立连接，其它线程等待其结果，
+ * 不可达的connectString最多阻塞一个会话超时时间，不影响其它connectString上原语的创建和销毁
+ * <p>thread-safe
+ * @Author: chengpan
+ * @Date: 2018/12/3
+ */
+public class ZkSessionManager {
+
+    private static final Map<String, List<ZkSession>> sessions = new HashMap<>();
+
+    /** connectString -> 正在建立的会话 */
+    private static final Map<String, CompletableFuture<ZkSession>> connecting = new HashMap<>();
+
+    private static volatile int poolSize = 1;
+
+    private ZkSessionManager() { }
+
+    /**
+     * 将原语挂载到connectString对应的共享会话上，必要时建立新会话
+     * @param connectString
+     * @param context 接收会话的连接状态事件
+     * @return
+     * @throws IOException 建立连接失败或超时
+     * @throws InterruptedException
+     */
+    public static ZkSession acquire(String connectString, ZkContext context) throws IOException, InterruptedException {
+        Preconditions.checkNotNull(connectString, "connectString null");
+        Preconditions.checkNotNull(context, "context null");
+        while (true) {
+            CompletableFuture<ZkSession> pending;
+            synchronized (ZkSessionManager.class) {
+                pending = connecting.get(connectString);
+                if (pending == null) {
+                    List<ZkSession> pool = sessions.getOrDefault(connectString, new ArrayList<>());
+                    if (pool.size() >= poolSize) {
+                        ZkSession session = null;
+                        for (ZkSession s : pool) {
+                            if (session == null || s.getRefCount() < session.getRefCount())
+                                session = s;
+                        }
+                        session.attach(context);
+                        return session;
+                    }
+                    CompletableFuture<ZkSession> connect = new CompletableFuture<>();
+                    connecting.put(connectString, connect);
+                    return connect(connectString, context, connect);
+                }
+            }
+            //等待正在建立的会话，之后重新选择
+            try {
+                pending.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                //建立连接的线程被中断，由当前线程重试
+                if (cause instanceof InterruptedException)
+                    continue;
+                throw new IOException("connect to " + connectString + " failed", cause);
+            }
+        }
+    }
+
+    /**
+     * 在锁外建立会话，完成后加入会话池
+     */
+    private static ZkSession connect(String connectString, ZkContext context, CompletableFuture<ZkSession> connect) throws IOException, InterruptedException {
+        ZkSession session;
+        try {
+            session = new ZkSession(connectString);
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            synchronized (ZkSessionManager.class) {
+                connecting.remove(connectString);
+            }
+            connect.completeExceptionally(e);
+            throw e;
+        }
+        synchronized (ZkSessionManager.class) {
+            connecting.remove(connectString);
+            sessions.computeIfAbsent(connectString, k -> new ArrayList<>()).add(session);
+            session.attach(context);
+        }
+        connect.complete(session);
+        return session;
+    }
+
+    /**
+     * 从会话上卸载原语，会话不再被引用时关闭，重复调用无副作用
+     * @param session
+     * @param context
+     */
+    public static void release(ZkSession session, ZkContext context) {
+        synchronized (ZkSessionManager.class) {
+            if (!session.detach(context) || session.getRefCount() > 0)
+                return;
+
+            List<ZkSession> pool = sessions.get(session.getConnectString());
+            if (pool != null) {
+                pool.remove(session);
+                if (pool.isEmpty())
+                    sessions.remove(session.getConnectString());
+            }
+        }
+        //已从会话池移除，不会再被挂载
+        session.close();
+    }
+
+    public static int getPoolSize() {
+        return poolSize;
+    }
+
+    /**
+     * 每个connectString最多建立的会话数，只影响之后新建的会话
+     * @param poolSize
+     */
+    public static void setPoolSize(int poolSize) {
+        Preconditions.checkArgument(poolSize > 0, "poolSize invalid");
+        ZkSessionManager.poolSize = poolSize;
+    }
+}
@@ -0,0 +1,223 @@
+package com.nameof.zookeeper.tools.common;
+
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * <p>会话级的watch多路复用器，每个(path, watch类型)在会话上最多只有一个未触发的zookeeper watch，
+ * 事件触发时唤醒所有本地等待者
+ * <p>watch未触发期间，注册时读到的结果(子节点列表或Stat)仍然有效，之后加入的等待者直接使用该结果，无需访问zookeeper
+ * <p>超时的等待者通过{@link #unwatch(String, WatchType, Runnable)}在本地移除，zookeeper 3.4无法移除已注册的watch，
+ * 但由于所有注册都使用同一个Watcher实例，zookeeper客户端和服务端对同一路径都只保留一个watch
+ * <p>会话过期时唤醒所有等待者，由等待者在新会话上重新检查条件
+ * <p>thread-safe
+ * @Author: chengpan
+ * @Date: 2018/12/12
+ */
+public class ZkWatchDispatcher implements Watcher {
+
+    private static final Logger logger = LoggerFactory.getLogger(ZkWatchDispatcher.class);
+
+    public enum WatchType {
+        /** getChildren注册的watch */
+        CHILDREN,
+        /** exists注册的watch */
+        EXISTS
+    }
+
+    private final Map<WatchKey, Entry> entries = new HashMap<>();
+
+    @FunctionalInterface
+    public interface WatchCall<T> {
+        T call(Watcher watcher) throws KeeperException, InterruptedException;
+    }
+
+    /**
+     * 注册一个等待者，在path上的下一个事件发生时被唤醒
+     * @param path
+     * @param type
+     * @param waiter 唤醒时在zookeeper事件线程中执行，不能阻塞
+     * @param call 需要在zookeeper上注册watch时执行，使用传入的Watcher注册watch；
+     *             同一种watch类型的结果类型必须相同：{@link WatchType#CHILDREN}为子节点列表，{@link WatchType#EXISTS}为Stat
+     * @return 注册watch时读到的结果，结果为null(节点不存在)时不保留watch
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    public <T> T watch(String path, WatchType type, Runnable waiter, WatchCall<T> call) throws KeeperException, InterruptedException {
+        WatchKey key = new WatchKey(path, type);
+        Entry entry;
+        synchronized (this) {
+            entry = join(key, waiter);
+            if (entry.registered)
+                return snapshotOf(entry);
+        }
+        T snapshot;
+        try {
+            snapshot = call.call(this);
+        } catch (KeeperException | InterruptedException | RuntimeException e) {
+            unwatch(path, type, waiter);
+            throw e;
+        }
+        registered(key, entry, snapshot);
+        return snapshot;
+    }
+
+    /**
+     * @see #watch(String, WatchType, Runnable, WatchCall)
+     */
+    public <T> CompletableFuture<T> watchAsync(String path, WatchType type, Runnable waiter, Function<Watcher, CompletableFuture<T>> call) {
+        WatchKey key = new WatchKey(path, type);
+        Entry entry;
+        synchronized (this) {
+            entry = join(key, waiter);
+            if (entry.registered)
+                return CompletableFuture.completedFuture(snapshotOf(entry));
+        }
+        return call.apply(this).whenComplete((snapshot, e) -> {
+            if (e == null)
+                registered(key, entry, snapshot);
+            else
+                unwatch(path, type, waiter);
+        });
+    }
+
+    /**
+     * 在本地移除等待者，等待者已被唤醒时无影响
+     */
+    public synchronized void unwatch(String path, WatchType type, Runnable waiter) {
+        WatchKey key = new WatchKey(path, type);
+        Entry entry = entries.get(key);
+        if (entry == null)
+            return;
+        entry.waiters.remove(waiter);
+        //已注册的watch仍然有效，保留给之后的等待者
+        if (!entry.registered && entry.waiters.isEmpty())
+            entries.remove(key);
+    }
+
+    private Entry join(WatchKey key, Runnable waiter) {
+        Entry entry = entries.computeIfAbsent(key, k -> new Entry());
+        entry.waiters.add(waiter);
+        return entry;
+    }
+
+    /**
+     * 快照由同一watch类型的call返回，类型与调用方期望的相同，见{@link #watch(String, WatchType, Runnable, WatchCall)}
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> T snapshotOf(Entry entry) {
+        return (T) entry.snapshot;
+    }
+
+    private void registered(WatchKey key, Entry entry, Object snapshot) {
+        List<Runnable> wake = null;
+        synchronized (this) {
+            if (entries.get(key) != entry || entry.registered)
+                return;
+            if (snapshot == null) {
+                //节点不存在，等待者无需等待
+                entries.remove(key);
+                wake = new ArrayList<>(entry.waiters);
+            } else {
+                entry.snapshot = snapshot;
+                entry.registered = true;
+            }
+        }
+        wakeUp(wake);
+    }
+
+    @Override
+    public void process(WatchedEvent event) {
+        List<Runnable> wake = new ArrayList<>();
+        synchronized (this) {
+            switch (event.getType()) {
+                case None:
+                    if (event.getState() != Event.KeeperState.Expired)
+                        return;
+                    for (Entry entry : entries.values())
+                        wake.addAll(entry.waiters);
+                    entries.clear();
+                    break;
+                case NodeChildrenChanged:
+                    fire(new WatchKey(event.getPath(), WatchType.CHILDREN), wake);
+                    break;
+                case NodeCreated:
+                case NodeDataChanged:
+                    fire(new WatchKey(event.getPath(), WatchType.EXISTS), wake);
+                    break;
+                case NodeDeleted:
+                    fire(new WatchKey(event.getPath(), WatchType.CHILDREN), wake);
+                    fire(new WatchKey(event.getPath(), WatchType.EXISTS), wake);
+                    break;
+                default:
+                    return;
+            }
+        }
+        wakeUp(wake);
+    }
+
+    private void fire(WatchKey key, List<Runnable> wake) {
+        Entry entry = entries.remove(key);
+        if (entry != null)
+            wake.addAll(entry.waiters);
+    }
+
+    private void wakeUp(List<Runnable> waiters) {
+        if (waiters == null)
+            return;
+        for (Runnable waiter : waiters) {
+            try {
+                waiter.run();
+            } catch (Throwable e) {
+                logger.error("error on waking up watch waiter", e);
+            }
+        }
+    }
+
+    /** 当前保留的未触发watch数 */
+    public synchronized int getWatchCount() {
+        return entries.size();
+    }
+
+    private static class Entry {
+        private final Set<Runnable> waiters = new LinkedHashSet<>();
+        private boolean registered;
+        private Object snapshot;
+    }
+
+    private static class WatchKey {
+        private final String path;
+        private final WatchType type;
+
+        WatchKey(String path, WatchType type) {
+            this.path = path;
+            this.type = type;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof WatchKey))
+                return false;
+            WatchKey key = (WatchKey) o;
+            return path.equals(key.path) && type == key.type;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(path, type);
+        }
+    }
+}
@@ -1,6 +1,9 @@
 package com.nameof.zookeeper.tools.election;
 
+import com.nameof.zookeeper.tools.common.ZkChildrenCache;
 import com.nameof.zookeeper.tools.common.ZkContext;
+import com.nameof.zookeeper.tools.metrics.ZkMetric;
+import com.nameof.zookeeper.tools.metrics.ZkOperation;
 import com.nameof.zookeeper.tools.utils.ZkUtils;
 import org.apache.zookeeper.*;
 import org.apache.zookeeper.data.Stat;
@@ -18,7 +21,9 @@ public class SimpleZkElector extends ZkContext implements ZkElector {
     private ZkElectionListener listener;
 
     private String electionPath;
-    private String nodeName;
+    private volatile String nodeName;
+
+    private ZkChildrenCache childrenCache;
 
     public SimpleZkElector(String serviceName, String connectString, ZkElectionListener electionListener) throws IOException, InterruptedException, KeeperException {
         super(connectString);
@@ -28,6 +33,7 @@ public class SimpleZkElector extends ZkContext implements ZkElector {
     private void init(String serviceName, ZkElectionListener electionListener) throws KeeperException, InterruptedException {
         listener = new DelegateListener(electionListener);
         electionPath = NAMESPACE + "/" + serviceName;
+        childrenCache = session.getChildrenCache(electionPath);
 
         checkState();
         ZkUtils.createPersist(zk, NAMESPACE);
@@ -37,8 +43,10 @@ public class SimpleZkElector extends ZkContext implements ZkElector {
     @Override
     public synchronized void joinElection() throws KeeperException {
         checkState();
+        ZkOperation op = beginOperation(ZkMetric.ELECTION_JOIN, electionPath);
         try {
             join();
+            op.end();
             return;
         } catch (InterruptedException ignore) {
             quitElection();
@@ -52,7 +60,7 @@ public class SimpleZkElector extends ZkContext implements ZkElector {
     private void join() throws KeeperException, InterruptedException {
         prepareElection();
         do {
-            String precedNodeName = ZkUtils.getSortedPrecedNodeName(zk, electionPath, nodeName);
+            String precedNodeName = childrenCache.lower(nodeName);
             if (precedNodeName.equals(nodeName)) {
                 listener.onMaster();
                 return;
@@ -61,12 +69,15 @@ public class SimpleZkElector extends ZkContext implements ZkElector {
             if (standby(precedNodeName)) {
                 break;
             }
+            childrenCache.removed(precedNodeName);
         } while (true);
     }
 
     private void prepareElection() throws KeeperException, InterruptedException {
         if (nodeName == null) {
             nodeName = ZkUtils.createTempAndGetSeq(zk, electionPath + "/");
+            childrenCache.created(nodeName);
+            trackEphemeral(electionPath + "/" + nodeName);
         }
     }
 
@@ -75,6 +86,9 @@ public class SimpleZkElector extends ZkContext implements ZkElector {
         Stat exists = zk.exists(precedNodePath, new Watcher() {
             @Override
             public void process(WatchedEvent event) {
+                //连接状态变化不代表前一个节点已退出，会话过期由onSessionRecovered重新参与选举
+                if (event.getType() == Event.EventType.None)
+                    return;
                 try {
                     join();
                 } catch (Exception e) {
@@ -94,9 +108,37 @@ public class SimpleZkElector extends ZkContext implements ZkElector {
 
     private void quit() throws KeeperException {
         if (nodeName != null) {
-            ZkUtils.deleteNodeIgnoreInterrupt(zk, electionPath + "/" + nodeName);
+            if (ZkUtils.deleteNodeIgnoreInterrupt(zk, electionPath + "/" + nodeName))
+                childrenCache.deleted(nodeName);
+            untrackEphemeral(electionPath + "/" + nodeName);
+            nodeName = null;
+        }
+    }
+
+    /**
+     * 会话过期后候选节点已被删除，无论之前是否为master，都先转入standby
+     */
+    @Override
+    protected void onSessionExpired() {
+        if (nodeName != null)
+            listener.onSlave();
+    }
+
+    /**
+     * 已参与选举时，在新会话上重新创建候选节点并参与选举
+     */
+    @Override
+    protected void onSessionRecovered() {
+        synchronized (this) {
+            if (nodeName == null)
+                return;
             nodeName = null;
         }
+        try {
+            join();
+        } catch (Exception e) {
+            listener.onError(e);
+        }
     }
 
     private class DelegateListener implements ZkElectionListener {
@@ -2,19 +2,41 @@ package com.nameof.zookeeper.tools.lock;
 
 import com.google.common.base.Preconditions;
 import com.nameof.zookeeper.tools.common.WaitDuration;
+import com.nameof.zookeeper.tools.common.ZkAsyncSupport;
+import com.nameof.zookeeper.tools.common.ZkChildrenCache;
 import com.nameof.zookeeper.tools.common.ZkContext;
 import com.nameof.zookeeper.tools.common.ZkPrimitiveSupport;
+import com.nameof.zookeeper.tools.common.ZkWatchDispatcher.WatchType;
+import com.nameof.zookeeper.tools.metrics.ZkMetric;
+import com.nameof.zookeeper.tools.metrics.ZkOperation;
 import com.nameof.zookeeper.tools.utils.ZkUtils;
+import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 
 /**
+ * <p>可重入：持有锁的线程再次获取只增加持有计数，不访问zookeeper，最外层的{@link #unlock()}才删除锁节点
+ * <p>同一个实例被多个线程使用时，同一时间只有一个线程在zookeeper上排队，其它线程在本地等待持有者释放或排队的线程放弃，
+ * 本地等待同样响应超时和中断；只有持有锁的线程可以释放，异步获取的锁不属于任何线程，可由任意线程释放
+ * <p>每次获取成功后可通过{@link #getFencingToken()}得到单调递增的fencing token，交给受保护的资源拒绝过期持有者的写入
+ * <p>可选的租约模式({@link #setLease(long, TimeUnit)})：持有者在锁节点上定期续约，停止续约超过租约时长后由等待者删除锁节点，
+ * 锁的失效时间不再受限于会话超时时间；持有者半个租约时长内没有续约成功时先行放弃(回调{@link ZkLockListener})，
+ * 早于等待者删除锁节点；同一个锁名的所有客户端都需要开启租约模式
+ * <p>支持基于zookeeper的{@link Condition}，见{@link #newCondition(String)}
+ * <p>可选的非公平模式，见{@link #AbstractZkLock(String, String, boolean)}
+ * <p>锁节点上写入持有者元数据(主机、进程、线程)，可通过{@link ZkLockInspector}查看持有者和等待队列
  * @Author: chengpan
  * @Date: 2018/11/11
  */
@@ -22,16 +44,86 @@ public abstract class AbstractZkLock extends ZkContext implements Lock, Watcher
 
     protected static final String NAMESPACE = "/zklock";
 
+    public static final String DEFAULT_CONDITION = "default";
+
+    /** 非公平模式下，队首等待者被插队的默认最长时间 */
+    public static final long DEFAULT_STARVATION_MILLIS = 1_000;
+
     protected  String lockPath;
 
     /** 锁节点抢占到的序列号 */
     protected String nodeNameSequence;
 
+    /** 创建锁节点时的会话代数，会话重建后旧节点已随旧会话删除 */
+    private long nodeGeneration;
+
+    /** 创建锁节点时写入的持有者元数据，见{@link ZkLockNodeInfo} */
+    private String nodeOwner;
+
+    /** 当前是否持有锁 */
+    private volatile boolean locked;
+
+    /** 获取锁成功的时间，用于记录持有时间 */
+    private long lockedAt;
+
+    /** 持有锁的线程，异步获取的锁为null */
+    private Thread owner;
+
+    /**
+     * 正在zookeeper上获取锁的本地线程，由实例监视器保护。同一实例同一时间只有一个线程访问zookeeper获取锁，
+     * 获取期间不持有监视器，其它本地线程在监视器上等待，仍然响应超时和中断
+     */
+    private Thread acquiring;
+
+    /** 重入次数，最外层释放时归零 */
+    private int holdCount;
+
+    /** 持有锁时为锁节点的序列号，否则为-1 */
+    private volatile long fencingToken = -1;
+
+    /** 租约时长，0表示不使用租约 */
+    private volatile long leaseMillis;
+
+    private ZkLockLease.Keeper leaseKeeper;
+
+    /** 是否公平 */
+    private final boolean fair;
+
+    /** 非公平模式的持有者节点，公平模式为null */
+    private ZkLockOwner lockOwner;
+
+    /** 非公平模式下，队首等待者被插队超过该时长后预留锁 */
+    private volatile long starvationMillis = DEFAULT_STARVATION_MILLIS;
+
+    private volatile ZkLockListener lockListener = lock -> logger.warn("lock {} lost, zookeeper session or lease expired", lockPath);
+
     protected ZkPrimitiveSupport zkPrimitiveSupport;
 
+    protected ZkAsyncSupport zkAsyncSupport;
+
+    /** 锁路径的子节点缓存，同步获取锁时用于查找等待目标 */
+    protected ZkChildrenCache childrenCache;
+
+    /** 条件名 -> 条件，随锁一起销毁 */
+    private final Map<String, ZkCondition> conditions = new HashMap<>();
+
     public AbstractZkLock(String lockName, String connectString) throws IOException, InterruptedException, KeeperException {
+        this(lockName, connectString, true);
+    }
+
+    /**
+     * <p>非公平模式下，锁由{@link ZkLockOwner}的owner节点表示：锁空闲时，新来的或仍在运行的竞争者用一次multi直接获取(插队)，
+     * 不创建排队节点；插队失败时才按序列号排队，只有队首等待者watch owner节点，在锁释放时与插队者竞争。
+     * 队首等待者被插队超过{@link #setStarvationBound(long, TimeUnit)}后预留锁，之后只有它可以获取，不会无限饥饿
+     * <p>同一个锁名的所有客户端必须使用相同的模式；非公平模式不支持异步获取、租约模式
+     * @param lockName
+     * @param connectString
+     * @param fair 是否公平
+     */
+    protected AbstractZkLock(String lockName, String connectString, boolean fair) throws IOException, InterruptedException, KeeperException {
         super(connectString);
         checkArgs(lockName);
+        this.fair = fair;
         init(lockName);
     }
 
@@ -42,11 +134,17 @@ public abstract class AbstractZkLock extends ZkContext implements Lock, Watcher
 
     private void init(String lockName) throws KeeperException, InterruptedException {
         this.lockPath = NAMESPACE + "/" + lockName;
-        zkPrimitiveSupport = new ZkPrimitiveSupport(zk);
+        zkPrimitiveSupport = new ZkPrimitiveSupport(this);
+        zkAsyncSupport = new ZkAsyncSupport(this);
+        childrenCache = session.getChildrenCache(lockPath);
 
         checkState();
         ZkUtils.createPersist(zk, NAMESPACE);
         ZkUtils.createPersist(zk, lockPath);
+        if (!fair) {
+            lockOwner = new ZkLockOwner(lockName);
+            lockOwner.init(zk);
+        }
     }
 
     /** 节点除序列号以外的完整路径 */
@@ -56,12 +154,35 @@ public abstract class AbstractZkLock extends ZkContext implements Lock, Watcher
      * 根据自身的锁算法获取需要等待的zookeeper node name，获取锁成功时无需等待其它节点，则返回当前当前节点的node name
      * @return 需要等待的zookeeper node name，否则返回当前节点的node name
      */
-    protected abstract String findLockWaitTarget() throws KeeperException, InterruptedException;
+    protected String findLockWaitTarget() throws KeeperException, InterruptedException {
+        return findLockWaitTarget(childrenCache.getSortedChildren());
+    }
+
+    /**
+     * @see #findLockWaitTarget()
+     * @param children 锁路径下的所有子节点，未排序
+     * @return
+     */
+    protected abstract String findLockWaitTarget(List<String> children);
 
     protected abstract String getNodeName();
 
+    /**
+     * 新节点需要等待的节点的节点名前缀，{@link #tryLock()}据此快速判断是否有竞争者
+     * @return 序列号之前的部分，null表示任意节点
+     */
+    protected String getContenderPrefix() {
+        return null;
+    }
+
+    /** 准备创建锁节点前检查并切换锁状态 */
+    protected void acceptLockState() { }
+
+    /** 释放锁时重置锁状态 */
+    protected void releaseLockState() { }
+
     @Override
-    public synchronized void lock() {
+    public void lock() {
         while (true) {
             try {
                 lockInterruptibly();
@@ -71,112 +192,776 @@ public abstract class AbstractZkLock extends ZkContext implements Lock, Watcher
     }
 
     @Override
-    public synchronized void lockInterruptibly() throws InterruptedException {
-        checkState();
+    public void lockInterruptibly() throws InterruptedException {
+        synchronized (this) {
+            if (reenter())
+                return;
+            awaitAcquirable(-1);
+        }
         try {
-            lockInterruptiblyInternal();
-        } catch (InterruptedException e) {
-            unlock();
-            throw e;
-        } catch (KeeperException e) {
-            unlock();
-            throw new RuntimeException(e);
+            checkState();
+            ZkOperation op = beginOperation(ZkMetric.LOCK_WAIT, lockPath);
+            try {
+                lockInterruptiblyInternal();
+                op.end();
+            } catch (InterruptedException e) {
+                op.end(ZkMetric.LOCK_WAIT_FAILED);
+                release();
+                throw e;
+            } catch (KeeperException e) {
+                op.end(ZkMetric.LOCK_WAIT_FAILED);
+                release();
+                throw new RuntimeException(e);
+            }
+        } finally {
+            endAcquire();
         }
     }
 
+    /**
+     * 等待本地没有线程持有锁、也没有线程正在获取锁，然后由当前线程开始获取，调用方须持有实例监视器
+     * @param timeoutNanos 小于0时一直等待
+     * @return 等待超时返回false
+     */
+    private boolean awaitAcquirable(long timeoutNanos) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutNanos;
+        while (locked || acquiring != null) {
+            if (timeoutNanos < 0) {
+                wait();
+                continue;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0)
+                return false;
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        acquiring = Thread.currentThread();
+        return true;
+    }
+
+    /**
+     * 获取结束，唤醒等待的本地线程
+     */
+    private synchronized void endAcquire() {
+        acquiring = null;
+        notifyAll();
+    }
+
+    /**
+     * 当前线程已持有锁时增加持有计数
+     * @return 是否重入成功
+     */
+    private boolean reenter() {
+        if (locked && owner == Thread.currentThread()) {
+            holdCount++;
+            return true;
+        }
+        return false;
+    }
+
     protected void lockInterruptiblyInternal() throws KeeperException, InterruptedException {
-        prepareLock();
+        if (!fair) {
+            try {
+                acquireNonfair(null);
+            } catch (TimeoutException e) {
+                //never happen
+            }
+            return;
+        }
         do {
-            String waitTarget = findLockWaitTarget();
-            if (getNodeName().equals(waitTarget))
-                return;
+            try {
+                prepareLock();
+                String waitTarget = findLockWaitTarget();
+                if (acquired(waitTarget))
+                    return;
 
-            zkPrimitiveSupport.waitNotExists(lockPath + "/" + waitTarget);
+                try {
+                    waitNotExists(lockPath + "/" + waitTarget, null);
+                } catch (TimeoutException e) {
+                    //never happen
+                }
+                childrenCache.removed(waitTarget);
+                getMetrics().incrementRetry(ZkMetric.LOCK_WAIT, lockPath);
+            } catch (KeeperException.SessionExpiredException e) {
+                checkState();
+            }
         } while (true);
     }
 
     protected void prepareLock() throws KeeperException, InterruptedException {
+        acceptLockState();
+        if (nodeNameSequence != null && nodeGeneration != session.getGeneration()) {
+            //节点已随过期的会话删除，尚未持有锁，重新排队是安全的
+            nodeNameSequence = null;
+        }
         if (nodeNameSequence == null) {
             String prefix = getNodePathPrefix();
-            nodeNameSequence = ZkUtils.createTempAndGetSeq(zk, prefix);
+            nodeGeneration = session.getGeneration();
+            nodeOwner = ZkLockNodeInfo.current();
+            nodeNameSequence = ZkUtils.createTempAndGetSeq(zk, prefix, nodeOwner.getBytes(StandardCharsets.UTF_8));
+            childrenCache.created(getNodeName());
+            trackEphemeral(getNodePath());
+        }
+    }
+
+    /**
+     * 无需等待其它节点，且锁节点仍属于当前会话时，获取锁成功
+     * @param waitTarget
+     * @return
+     */
+    private boolean acquired(String waitTarget) {
+        if (getNodeName().equals(waitTarget) && nodeGeneration == session.getGeneration()) {
+            locked = true;
+            lockedAt = System.nanoTime();
+            owner = Thread.currentThread();
+            holdCount = 1;
+            fencingToken = ZkUtils.parseSequence(getNodeName());
+            startLease();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 非公平模式：先插队，失败后按序列号排队，成为队首后与插队者竞争owner节点，被插队超过饥饿上限后预留锁
+     * @param duration null表示不限时
+     */
+    private boolean acquireNonfair(WaitDuration duration) throws KeeperException, InterruptedException, TimeoutException {
+        if (barge(null))
+            return true;
+        long headSince = 0;
+        do {
+            try {
+                prepareLock();
+                String waitTarget = findLockWaitTarget();
+                if (!getNodeName().equals(waitTarget)) {
+                    waitNotExists(lockPath + "/" + waitTarget, duration);
+                    childrenCache.removed(waitTarget);
+                    getMetrics().incrementRetry(ZkMetric.LOCK_WAIT, lockPath);
+                    continue;
+                }
+                if (barge(getNodePath()))
+                    return true;
+
+                long generation = session.getGeneration();
+                if (headSince == 0)
+                    headSince = System.nanoTime();
+                long starving = starvationMillis - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - headSince);
+                if (!lockOwner.isReserved(generation) && starving <= 0) {
+                    lockOwner.reserve(zk, generation);
+                    continue;
+                }
+                //未预留时最多等到饥饿上限
+                boolean bounded = !lockOwner.isReserved(generation) && (duration == null || starving < duration.getDuration());
+                try {
+                    zkPrimitiveSupport.waitNotExists(lockOwner.getHolderPath(), bounded ? WaitDuration.from(starving) : duration);
+                } catch (TimeoutException e) {
+                    if (!bounded)
+                        throw e;
+                }
+                getMetrics().incrementRetry(ZkMetric.LOCK_WAIT, lockPath);
+            } catch (KeeperException.SessionExpiredException e) {
+                checkState();
+            }
+        } while (true);
+    }
+
+    /**
+     * 尝试获取owner节点
+     * @param queueNode 队首等待者的排队节点，获取成功时一并删除；插队时为null
+     * @return 是否获取成功
+     */
+    private boolean barge(String queueNode) throws KeeperException {
+        long generation = session.getGeneration();
+        if (queueNode != null && nodeGeneration != generation)
+            return false;
+        long token = lockOwner.acquire(zk, queueNode, generation);
+        if (token < 0)
+            return false;
+        if (queueNode != null) {
+            childrenCache.deleted(getNodeName());
+            untrackEphemeral(queueNode);
+            nodeNameSequence = null;
+        }
+        trackEphemeral(lockOwner.getHolderPath());
+        locked = true;
+        lockedAt = System.nanoTime();
+        owner = Thread.currentThread();
+        holdCount = 1;
+        fencingToken = token;
+        return true;
+    }
+
+    /**
+     * 等待节点删除，租约模式下节点的租约过期时删除节点
+     */
+    private void waitNotExists(String path, WaitDuration duration) throws KeeperException, InterruptedException, TimeoutException {
+        if (leaseMillis == 0) {
+            zkPrimitiveSupport.waitNotExists(path, duration);
+        } else if (ZkLockLease.waitNotExists(zkPrimitiveSupport, zk, path, duration)) {
+            getMetrics().incrementRetry(ZkMetric.LOCK_WAIT, lockPath);
+        }
+    }
+
+    private void startLease() {
+        if (leaseMillis == 0)
+            return;
+        leaseKeeper = ZkLockLease.keep(zk, getNodePath(), nodeOwner, leaseMillis, this::leaseLost);
+    }
+
+    private void stopLease() {
+        if (leaseKeeper != null) {
+            leaseKeeper.stop();
+            leaseKeeper = null;
+        }
+    }
+
+    /**
+     * 锁节点被删除或长时间未能续约，会话过期时由{@link #onSessionExpired()}通知
+     */
+    private void leaseLost() {
+        if (!locked || zkState == Event.KeeperState.Expired || session.isRecovering())
+            return;
+        try {
+            lockListener.onLockLost(this);
+        } catch (Throwable e) {
+            logger.error("error on ZkLockListener.onLockLost()", e);
         }
     }
 
     @Override
-    public synchronized boolean tryLock() {
-        checkState();
+    public boolean tryLock() {
+        synchronized (this) {
+            if (reenter())
+                return true;
+            //其它本地线程持有或正在获取时直接失败，不等待
+            if (locked || acquiring != null)
+                return false;
+            acquiring = Thread.currentThread();
+        }
         try {
+            checkState();
+            ZkOperation op = beginOperation(ZkMetric.LOCK_WAIT, lockPath);
             while (true) {
                 try {
-                    return tryLockInternal();
-                } catch (InterruptedException ignore) { }
+                    boolean acquired = tryLockInternal();
+                    op.end(acquired ? ZkMetric.LOCK_WAIT : ZkMetric.LOCK_WAIT_FAILED);
+                    return acquired;
+                } catch (InterruptedException ignore) {
+                } catch (KeeperException e) {
+                    op.end(ZkMetric.LOCK_WAIT_FAILED);
+                    release();
+                    return false;
+                }
             }
-        } catch (KeeperException e) {
-            unlock();
-            return false;
+        } finally {
+            endAcquire();
         }
     }
 
+    /**
+     * 子节点缓存的watch未触发时先在本地判断是否已有竞争者，有则直接失败，不访问zookeeper，也不消耗序列号；
+     * 否则创建节点，再读取一次子节点列表确认是否排在最前，获取成功只需两次网络往返(create、getChildren)，
+     * 失败时再删除节点
+     */
     protected boolean tryLockInternal() throws KeeperException, InterruptedException {
+        if (!fair)
+            return barge(null);
+        //缓存已失效时不为预先判断单独读取子节点列表，创建节点后的确认会重新加载缓存
+        if (nodeNameSequence == null && childrenCache.isWatched() && childrenCache.hasChildren(getContenderPrefix()))
+            return false;
         prepareLock();
 
         String waitTarget = findLockWaitTarget();
-        if (getNodeName().equals(waitTarget))
+        if (acquired(waitTarget))
             return true;
 
-        unlock();
+        release();
         return false;
     }
 
     @Override
-    public synchronized boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
-        checkState();
+    public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(time);
+        synchronized (this) {
+            if (reenter())
+                return true;
+            //等待其它本地线程也计入超时时间
+            if (!awaitAcquirable(Math.max(0, unit.toNanos(time))))
+                return false;
+        }
         try {
-            return tryLockInternal(time, unit);
-        } catch (TimeoutException e) {
-            unlock();
-            return false;
-        }  catch (InterruptedException e) {
-            unlock();
-            throw e;
-        } catch (Exception e) {
-            unlock();
-            throw new RuntimeException(e);
+            checkState();
+            ZkOperation op = beginOperation(ZkMetric.LOCK_WAIT, lockPath);
+            try {
+                boolean acquired = tryLockInternal(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                op.end(acquired ? ZkMetric.LOCK_WAIT : ZkMetric.LOCK_WAIT_FAILED);
+                return acquired;
+            } catch (TimeoutException e) {
+                op.end(ZkMetric.LOCK_WAIT_FAILED);
+                release();
+                return false;
+            }  catch (InterruptedException e) {
+                op.end(ZkMetric.LOCK_WAIT_FAILED);
+                release();
+                throw e;
+            } catch (Exception e) {
+                op.end(ZkMetric.LOCK_WAIT_FAILED);
+                release();
+                throw new RuntimeException(e);
+            }
+        } finally {
+            endAcquire();
         }
     }
 
     protected boolean tryLockInternal(long time, TimeUnit unit) throws KeeperException, InterruptedException, TimeoutException {
-        prepareLock();
         WaitDuration duration = WaitDuration.from(unit.toMillis(time));
+        if (!fair)
+            return acquireNonfair(duration);
         do {
-            String waitTarget = findLockWaitTarget();
-            if (getNodeName().equals(waitTarget))
-                return true;
+            try {
+                prepareLock();
+                String waitTarget = findLockWaitTarget();
+                if (acquired(waitTarget))
+                    return true;
 
-            zkPrimitiveSupport.waitNotExists(lockPath + "/" + waitTarget
-                    , duration);
+                waitNotExists(lockPath + "/" + waitTarget, duration);
+                childrenCache.removed(waitTarget);
+                getMetrics().incrementRetry(ZkMetric.LOCK_WAIT, lockPath);
+            } catch (KeeperException.SessionExpiredException e) {
+                checkState();
+            }
         } while (true);
     }
 
+    /**
+     * 减少持有计数，最外层释放时删除锁节点
+     * @throws IllegalMonitorStateException 锁由其它线程持有
+     */
     @Override
     public synchronized void unlock() {
+        if (locked) {
+            if (owner != null && owner != Thread.currentThread())
+                throw new IllegalMonitorStateException("lock is held by " + owner.getName());
+            if (--holdCount > 0)
+                return;
+        } else if (acquiring != null) {
+            //不能放弃其它线程正在排队的节点
+            throw new IllegalMonitorStateException("lock is not held");
+        }
+        release();
+    }
+
+    /**
+     * 释放锁或放弃排队，删除锁节点
+     */
+    private synchronized void release() {
+        releaseLockState();
+        if (locked) {
+            locked = false;
+            owner = null;
+            holdCount = 0;
+            fencingToken = -1;
+            stopLease();
+            notifyAll();
+            if (nodeNameSequence != null || !fair)
+                getMetrics().recordTime(ZkMetric.LOCK_HOLD, lockPath, System.nanoTime() - lockedAt);
+        }
+        if (!fair)
+            releaseOwner();
         if (nodeNameSequence == null) return;
         checkState();
 
+        //会话已重建时，旧节点已随旧会话删除
+        if (nodeGeneration == session.getGeneration()) {
+            try {
+                if (ZkUtils.deleteNodeIgnoreInterrupt(zk, getNodePath()))
+                    childrenCache.deleted(getNodeName());
+            } catch (KeeperException e) {
+                throw new RuntimeException(e);
+            }
+            untrackEphemeral(getNodePath());
+        }
+        this.nodeNameSequence = null;
+    }
+
+    /**
+     * 非公平模式下删除持有的owner节点、reserved节点
+     */
+    private void releaseOwner() {
+        long generation = session.getGeneration();
+        if (lockOwner.isHeld(generation))
+            untrackEphemeral(lockOwner.getHolderPath());
         try {
-            ZkUtils.deleteNodeIgnoreInterrupt(zk, getNodePath());
+            lockOwner.release(zk, generation);
         } catch (KeeperException e) {
             throw new RuntimeException(e);
         }
-        this.nodeNameSequence = null;
+    }
+
+    /**
+     * 异步获取锁，等待期间不占用线程，获取成功后通过{@link #unlock()}释放，获取到的锁不属于任何线程
+     * <p>同一个锁实例同一时间只能进行一次获取，不要与同步的获取方法同时使用
+     * @return 获取锁成功时完成
+     */
+    public CompletableFuture<Void> lockAsync() {
+        return acquireAsync(null).thenApply(acquired -> null);
+    }
+
+    /**
+     * 异步获取锁，在超时时间内获取失败时以false完成
+     * @see #lockAsync()
+     * @param time
+     * @param unit
+     * @return
+     */
+    public CompletableFuture<Boolean> tryLockAsync(long time, TimeUnit unit) {
+        return acquireAsync(WaitDuration.from(unit.toMillis(time)));
+    }
+
+    private CompletableFuture<Boolean> acquireAsync(WaitDuration duration) {
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        if (!fair) {
+            result.completeExceptionally(new UnsupportedOperationException("async acquiring is not supported in non-fair mode"));
+            return result;
+        }
+        synchronized (this) {
+            if (locked) {
+                if (owner == null || owner == Thread.currentThread()) {
+                    holdCount++;
+                    result.complete(true);
+                } else {
+                    result.completeExceptionally(new IllegalStateException("lock is held by " + owner.getName()));
+                }
+                return result;
+            }
+            if (nodeNameSequence != null || acquiring != null) {
+                result.completeExceptionally(new IllegalStateException("lock is being acquired"));
+                return result;
+            }
+            try {
+                checkState();
+                acceptLockState();
+            } catch (IllegalStateException e) {
+                result.completeExceptionally(e);
+                return result;
+            }
+        }
+        long start = System.nanoTime();
+        result.whenComplete((acquired, e) -> {
+            if (Boolean.TRUE.equals(acquired))
+                getMetrics().recordTime(ZkMetric.LOCK_WAIT, lockPath, System.nanoTime() - start);
+            else
+                abortAsync();
+        });
+        if (duration != null)
+            ZkAsyncSupport.completeOnTimeout(result, duration, false);
+        acquireAsyncStep(result);
+        return result;
+    }
+
+    private void acquireAsyncStep(CompletableFuture<Boolean> result) {
+        if (result.isDone())
+            return;
+        prepareLockAsync(result)
+                .thenCompose(v -> zkAsyncSupport.getChildren(lockPath, null))
+                .thenCompose(children -> {
+                    String waitTarget;
+                    synchronized (this) {
+                        if (result.isDone())
+                            return CompletableFuture.completedFuture(null);
+                        waitTarget = findLockWaitTarget(children);
+                        if (acquired(waitTarget)) {
+                            owner = null;
+                            result.complete(true);
+                            return CompletableFuture.completedFuture(null);
+                        }
+                    }
+                    CompletableFuture<Void> deleted = zkAsyncSupport.waitNotExists(lockPath + "/" + waitTarget);
+                    //超时后在本地移除等待者
+                    result.whenComplete((acquired, e) -> deleted.cancel(false));
+                    return deleted;
+                })
+                .whenComplete((v, e) -> {
+                    if (result.isDone())
+                        return;
+                    getMetrics().incrementRetry(ZkMetric.LOCK_WAIT, lockPath);
+                    if (e == null || ZkAsyncSupport.unwrap(e) instanceof KeeperException.SessionExpiredException)
+                        ZkAsyncSupport.execute(() -> acquireAsyncStep(result));
+                    else
+                        result.completeExceptionally(ZkAsyncSupport.unwrap(e));
+                });
+    }
+
+    private CompletableFuture<Void> prepareLockAsync(CompletableFuture<Boolean> result) {
+        long generation;
+        String owner = ZkLockNodeInfo.current();
+        synchronized (this) {
+            if (nodeNameSequence != null && nodeGeneration == session.getGeneration())
+                return CompletableFuture.completedFuture(null);
+            nodeNameSequence = null;
+            generation = session.getGeneration();
+        }
+        String prefix = getNodePathPrefix();
+        return zkAsyncSupport.create(prefix, owner.getBytes(StandardCharsets.UTF_8), CreateMode.EPHEMERAL_SEQUENTIAL).thenAccept(path -> {
+            synchronized (this) {
+                if (!result.isDone()) {
+                    nodeGeneration = generation;
+                    nodeOwner = owner;
+                    nodeNameSequence = path.substring(prefix.length());
+                    childrenCache.created(getNodeName());
+                    trackEphemeral(getNodePath());
+                    return;
+                }
+            }
+            //已超时，放弃刚创建的节点
+            zkAsyncSupport.delete(path, -1);
+        });
+    }
+
+    /**
+     * 异步获取失败或超时，删除已创建的锁节点
+     */
+    private synchronized void abortAsync() {
+        if (locked)
+            return;
+        releaseLockState();
+        if (nodeNameSequence == null)
+            return;
+        if (nodeGeneration == session.getGeneration()) {
+            zkAsyncSupport.delete(getNodePath(), -1);
+            untrackEphemeral(getNodePath());
+        }
+        nodeNameSequence = null;
+    }
+
+    /**
+     * 持有锁期间，排在当前节点之后、节点名以prefix开头的节点出现时，在后台线程回调一次；释放锁后不再回调
+     * @param prefix
+     * @param callback
+     */
+    void watchNodeBehind(String prefix, Runnable callback) {
+        long token = fencingToken;
+        if (token < 0)
+            return;
+        ZkAsyncSupport.execute(() -> checkNodeBehind(token, prefix, callback));
+    }
+
+    private void checkNodeBehind(long token, String prefix, Runnable callback) {
+        if (fencingToken != token)
+            return;
+        ZooKeeper zk = this.zk;
+        List<String> children;
+        try {
+            children = session.getWatchDispatcher().watch(lockPath, WatchType.CHILDREN,
+                    () -> ZkAsyncSupport.execute(() -> checkNodeBehind(token, prefix, callback)),
+                    w -> zk.getChildren(lockPath, w));
+        } catch (KeeperException | InterruptedException e) {
+            //会话过期由lockListener通知
+            logger.warn("watch children of " + lockPath + " failed", e);
+            return;
+        }
+        for (String child : children) {
+            if (child.startsWith(prefix) && ZkUtils.parseSequence(child) > token) {
+                if (fencingToken == token)
+                    callback.run();
+                return;
+            }
+        }
+    }
+
+    /**
+     * 持有锁的线程把锁节点原位转交给target：在一个multi事务中以相同的序列号创建target的节点并删除当前节点，
+     * 节点在队列中的位置不变。完成后当前锁已释放，当前线程持有target
+     * @param target 使用同一个会话、同一个锁路径，未持有也未在排队的锁
+     * @throws IllegalMonitorStateException 当前线程未持有锁，或锁被重入
+     * @throws IllegalStateException target正在使用，或锁节点已随过期的会话删除
+     */
+    synchronized void transferTo(AbstractZkLock target) throws KeeperException {
+        if (!locked || owner != Thread.currentThread())
+            throw new IllegalMonitorStateException("lock is not held by current thread");
+        if (holdCount > 1)
+            throw new IllegalMonitorStateException("lock is held " + holdCount + " times");
+        Preconditions.checkArgument(target.session == session && target.lockPath.equals(lockPath), "target invalid");
+        checkState();
+        if (nodeGeneration != session.getGeneration())
+            throw new IllegalStateException("lock lost");
+        synchronized (target) {
+            if (target.locked || target.nodeNameSequence != null || target.acquiring != null)
+                throw new IllegalStateException("target is in use");
+            releaseLockState();
+            try {
+                target.acceptLockState();
+            } catch (RuntimeException e) {
+                acceptLockState();
+                throw e;
+            }
+            String from = getNodePath();
+            String fromName = getNodeName();
+            target.nodeNameSequence = nodeNameSequence;
+            target.nodeOwner = ZkLockNodeInfo.current();
+            try {
+                ZkUtils.moveTempIgnoreInterrupt(zk, from, target.getNodePath(), target.nodeOwner.getBytes(StandardCharsets.UTF_8));
+            } catch (KeeperException | RuntimeException e) {
+                target.nodeNameSequence = null;
+                target.releaseLockState();
+                acceptLockState();
+                throw e;
+            }
+            //以相同序列号新建了节点，缓存失效，下次查询时重新加载
+            childrenCache.removed(fromName);
+            childrenCache.created(target.getNodeName());
+            untrackEphemeral(from);
+            nodeNameSequence = null;
+            locked = false;
+            owner = null;
+            holdCount = 0;
+            fencingToken = -1;
+            stopLease();
+            notifyAll();
+            getMetrics().recordTime(ZkMetric.LOCK_HOLD, lockPath, System.nanoTime() - lockedAt);
+
+            target.nodeGeneration = nodeGeneration;
+            target.trackEphemeral(target.getNodePath());
+            target.acquired(target.getNodeName());
+        }
+    }
+
+    /**
+     * 完全释放当前线程持有的锁，供{@link ZkCondition}等待时使用
+     * @return 释放前的持有计数
+     * @throws IllegalMonitorStateException 当前线程未持有锁
+     */
+    synchronized int fullyRelease() {
+        if (!isHeldByCurrentThread())
+            throw new IllegalMonitorStateException("lock is not held by current thread");
+        int holds = holdCount;
+        release();
+        return holds;
+    }
+
+    /**
+     * 重新获取锁并恢复持有计数，不响应中断
+     * @param holds {@link #fullyRelease()}返回的持有计数
+     */
+    void reacquire(int holds) {
+        lock();
+        synchronized (this) {
+            holdCount = holds;
+        }
+    }
+
+    /**
+     * 已持有的锁改为不属于任何线程，之后可由任意线程释放，与异步获取的锁相同
+     */
+    synchronized void disown() {
+        if (locked)
+            owner = null;
+    }
+
+    /**
+     * @return 当前持有锁的fencing token，同一个锁名下单调递增；未持有锁时返回-1
+     */
+    public long getFencingToken() {
+        return fencingToken;
+    }
+
+    /**
+     * 开启租约模式，在下一次获取锁时生效
+     * @param time 租约时长，应小于会话超时时间，0表示关闭
+     * @param unit
+     */
+    public void setLease(long time, TimeUnit unit) {
+        Preconditions.checkArgument(time >= 0, "lease invalid");
+        Preconditions.checkState(fair || time == 0, "lease is not supported in non-fair mode");
+        this.leaseMillis = unit.toMillis(time);
+    }
+
+    /**
+     * 非公平模式下，队首等待者被插队的最长时间，超过后预留锁，之后只有它可以获取
+     * @param time
+     * @param unit
+     */
+    public void setStarvationBound(long time, TimeUnit unit) {
+        Preconditions.checkArgument(time >= 0, "starvation bound invalid");
+        this.starvationMillis = unit.toMillis(time);
+    }
+
+    public boolean isFair() {
+        return fair;
+    }
+
+    public synchronized boolean isHeldByCurrentThread() {
+        return locked && owner == Thread.currentThread();
+    }
+
+    /**
+     * @return 当前线程的持有计数，未持有时返回0
+     */
+    public synchronized int getHoldCount() {
+        return isHeldByCurrentThread() ? holdCount : 0;
+    }
+
+    @Override
+    protected void onSessionExpired() {
+        if (!locked)
+            return;
+        try {
+            lockListener.onLockLost(this);
+        } catch (Throwable e) {
+            logger.error("error on ZkLockListener.onLockLost()", e);
+        }
+    }
+
+    public void setLockListener(ZkLockListener lockListener) {
+        Preconditions.checkNotNull(lockListener, "lockListener null");
+        this.lockListener = lockListener;
     }
 
     protected String getNodePath() {
         return lockPath + "/" + getNodeName();
     }
 
+    /**
+     * @see #newCondition(String)
+     * @return 条件名为{@link #DEFAULT_CONDITION}的条件
+     */
     @Override
     public Condition newCondition() {
-        throw new UnsupportedOperationException();
+        return newCondition(DEFAULT_CONDITION);
+    }
+
+    /**
+     * 锁名和条件名相同的所有客户端共享同一个条件，同一个锁实例对同一个条件名返回同一个对象，随锁一起销毁
+     * @param conditionName
+     * @return
+     */
+    public Condition newCondition(String conditionName) {
+        synchronized (conditions) {
+            ZkCondition condition = conditions.get(conditionName);
+            if (condition == null) {
+                try {
+                    condition = new ZkCondition(this, lockPath.substring(NAMESPACE.length() + 1), conditionName, session.getConnectString());
+                } catch (IOException | KeeperException e) {
+                    throw new RuntimeException(e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(e);
+                }
+                conditions.put(conditionName, condition);
+            }
+            return condition;
+        }
+    }
+
+    @Override
+    public void destory() {
+        synchronized (conditions) {
+            for (ZkCondition condition : conditions.values())
+                condition.destory();
+            conditions.clear();
+        }
+        super.destory();
     }
 }
@@ -0,0 +1,309 @@
+package com.nameof.zookeeper.tools.lock;
+
+import com.google.common.base.Preconditions;
+import org.apache.zookeeper.KeeperException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>进程内合并的分布式排它锁：同一JVM内connectString和锁名相同的所有实例共享一个{@link ReentrantZkLock}，
+ * 本地线程先在进程内的公平锁上排队，每个JVM在zookeeper上最多只有一个锁节点参与竞争
+ * <p>释放时本地还有等待者，则直接把zookeeper锁交给下一个本地线程，不删除、重建锁节点；
+ * 连续交接{@link #getHandoffBudget()}次后释放zookeeper锁重新排队，其它JVM不会因为本地的连续交接而饥饿
+ * <p>使用完毕后调用{@link #destory()}，共享的zookeeper锁在最后一个实例销毁时销毁
+ * <p>thread-safe，可重入
+ * @Author: chengpan
+ * @Date: 2018/12/16
+ */
+public class CoalescingZkLock implements Lock {
+
+    private static final Logger logger = LoggerFactory.getLogger(CoalescingZkLock.class);
+
+    public static final int DEFAULT_HANDOFF_BUDGET = 16;
+
+    /** connectString + 锁路径 -> 共享状态 */
+    private static final ZkSharedRegistry<Shared> registry = new ZkSharedRegistry<>();
+
+    private final Shared shared;
+
+    private volatile boolean destory = false;
+
+    private volatile ZkLockListener lockListener = lock -> logger.warn("lock {} lost, zookeeper session expired", lock);
+
+    public CoalescingZkLock(String lockName, String connectString) throws IOException, InterruptedException, KeeperException {
+        this(lockName, connectString, DEFAULT_HANDOFF_BUDGET);
+    }
+
+    /**
+     * @param lockName
+     * @param connectString
+     * @param handoffBudget 不释放zookeeper锁连续交接给本地线程的最大次数，0表示不交接；
+     *                      同一个锁名以第一个实例指定的值为准
+     */
+    public CoalescingZkLock(String lockName, String connectString, int handoffBudget) throws IOException, InterruptedException, KeeperException {
+        Preconditions.checkArgument(handoffBudget >= 0, "handoffBudget invalid");
+        this.shared = acquire(lockName, connectString, handoffBudget);
+    }
+
+    private static Shared acquire(String lockName, String connectString, int handoffBudget) throws IOException, InterruptedException, KeeperException {
+        Preconditions.checkNotNull(lockName, "lockName null");
+        Preconditions.checkNotNull(connectString, "connectString null");
+        String key = connectString + AbstractZkLock.NAMESPACE + "/" + lockName;
+        return registry.acquire(key, () -> new Shared(key, new ReentrantZkLock(lockName, connectString), handoffBudget));
+    }
+
+    private static void release(Shared shared) {
+        //最后一个引用在注册表锁外销毁
+        if (registry.release(shared.key, shared))
+            shared.zkLock.destory();
+    }
+
+    @Override
+    public void lock() {
+        checkState();
+        shared.local.lock();
+        try {
+            if (shared.local.getHoldCount() == 1) {
+                prepareZkLock();
+                if (!shared.zkHeld) {
+                    shared.zkLock.lock();
+                    zkLocked();
+                }
+            }
+        } catch (RuntimeException e) {
+            shared.local.unlock();
+            throw e;
+        }
+        shared.owner = this;
+    }
+
+    @Override
+    public void lockInterruptibly() throws InterruptedException {
+        checkState();
+        try {
+            shared.local.lockInterruptibly();
+        } catch (InterruptedException e) {
+            releaseIfIdle();
+            throw e;
+        }
+        try {
+            if (shared.local.getHoldCount() == 1) {
+                prepareZkLock();
+                if (!shared.zkHeld) {
+                    shared.zkLock.lockInterruptibly();
+                    zkLocked();
+                }
+            }
+        } catch (InterruptedException | RuntimeException e) {
+            shared.local.unlock();
+            throw e;
+        }
+        shared.owner = this;
+    }
+
+    @Override
+    public boolean tryLock() {
+        checkState();
+        if (!shared.local.tryLock())
+            return false;
+        try {
+            if (shared.local.getHoldCount() == 1) {
+                prepareZkLock();
+                if (!shared.zkHeld) {
+                    if (!shared.zkLock.tryLock()) {
+                        shared.local.unlock();
+                        return false;
+                    }
+                    zkLocked();
+                }
+            }
+        } catch (RuntimeException e) {
+            shared.local.unlock();
+            throw e;
+        }
+        shared.owner = this;
+        return true;
+    }
+
+    @Override
+    public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+        checkState();
+        long deadline = System.nanoTime() + unit.toNanos(time);
+        boolean locked;
+        try {
+            locked = shared.local.tryLock(time, unit);
+        } catch (InterruptedException e) {
+            releaseIfIdle();
+            throw e;
+        }
+        if (!locked) {
+            releaseIfIdle();
+            return false;
+        }
+        try {
+            if (shared.local.getHoldCount() == 1) {
+                prepareZkLock();
+                if (!shared.zkHeld) {
+                    if (!shared.zkLock.tryLock(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                        shared.local.unlock();
+                        return false;
+                    }
+                    zkLocked();
+                }
+            }
+        } catch (InterruptedException | RuntimeException e) {
+            shared.local.unlock();
+            throw e;
+        }
+        shared.owner = this;
+        return true;
+    }
+
+    /**
+     * 最外层释放时，本地有等待者且交接次数未用完，则保留zookeeper锁交给下一个本地线程，否则释放zookeeper锁
+     */
+    @Override
+    public void unlock() {
+        ReentrantLock local = shared.local;
+        if (!local.isHeldByCurrentThread())
+            throw new IllegalMonitorStateException();
+        boolean handoff = false;
+        try {
+            if (local.getHoldCount() == 1 && shared.zkHeld) {
+                if (!shared.lost && local.hasQueuedThreads() && shared.handoffs < shared.handoffBudget) {
+                    shared.handoffs++;
+                    handoff = true;
+                } else {
+                    releaseZkLock();
+                }
+            }
+        } finally {
+            local.unlock();
+        }
+        //等待者可能已经超时或被中断离开
+        if (handoff && !local.hasQueuedThreads())
+            releaseIfIdle();
+    }
+
+    /**
+     * 本地没有线程持有锁，但zookeeper锁仍被保留时，释放zookeeper锁
+     */
+    private void releaseIfIdle() {
+        ReentrantLock local = shared.local;
+        if (!local.tryLock())
+            return;
+        try {
+            if (local.getHoldCount() == 1 && shared.zkHeld)
+                releaseZkLock();
+        } finally {
+            local.unlock();
+        }
+    }
+
+    /**
+     * 持有本地锁时调用，交接过来的zookeeper锁已随过期会话丢失时，先释放再重新获取
+     */
+    private void prepareZkLock() {
+        if (shared.zkHeld && shared.lost)
+            releaseZkLock();
+    }
+
+    /**
+     * zookeeper锁可能交接给其它本地线程，由其释放
+     */
+    private void zkLocked() {
+        shared.zkLock.disown();
+        shared.zkHeld = true;
+        shared.lost = false;
+        shared.handoffs = 0;
+    }
+
+    private void releaseZkLock() {
+        shared.zkHeld = false;
+        shared.owner = null;
+        shared.zkLock.unlock();
+    }
+
+    public void setLockListener(ZkLockListener lockListener) {
+        Preconditions.checkNotNull(lockListener, "lockListener null");
+        this.lockListener = lockListener;
+    }
+
+    public int getHandoffBudget() {
+        return shared.handoffBudget;
+    }
+
+    public boolean isHeldByCurrentThread() {
+        return shared.local.isHeldByCurrentThread();
+    }
+
+    /**
+     * 释放对共享zookeeper锁的引用，重复调用无副作用
+     */
+    public void destory() {
+        synchronized (this) {
+            if (destory)
+                return;
+            destory = true;
+        }
+        release(shared);
+    }
+
+    private void checkState() {
+        if (destory)
+            throw new IllegalStateException("lock destoryed");
+    }
+
+    @Override
+    public Condition newCondition() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String toString() {
+        return shared.key;
+    }
+
+    /**
+     * 同一个锁名的所有实例共享的状态，除volatile字段外只在持有{@link #local}时访问
+     */
+    private static class Shared {
+
+        private final String key;
+
+        private final ReentrantZkLock zkLock;
+
+        /** 公平锁，本地线程按到达顺序获得zookeeper锁的交接 */
+        private final ReentrantLock local = new ReentrantLock(true);
+
+        private final int handoffBudget;
+
+        private boolean zkHeld;
+
+        /** 本次持有zookeeper锁期间已连续交接的次数 */
+        private int handoffs;
+
+        /** 持有zookeeper锁期间会话过期 */
+        private volatile boolean lost;
+
+        private volatile CoalescingZkLock owner;
+
+        Shared(String key, ReentrantZkLock zkLock, int handoffBudget) {
+            this.key = key;
+            this.zkLock = zkLock;
+            this.handoffBudget = handoffBudget;
+            zkLock.setLockListener(lock -> {
+                lost = true;
+                CoalescingZkLock current = owner;
+                if (current != null)
+                    current.lockListener.onLockLost(current);
+            });
+        }
+    }
+}
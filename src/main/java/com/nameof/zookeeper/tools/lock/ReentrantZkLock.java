@@ -5,9 +5,11 @@ import com.nameof.zookeeper.tools.utils.ZkUtils;
 import org.apache.zookeeper.KeeperException;
 
 import java.io.IOException;
+import java.util.List;
 
 /**
- * 线程安全，可重入的分布式排它锁，基于zookeeper意味着它是公平的锁<br><br>
+ * 线程安全，可重入的分布式排它锁，默认按zookeeper顺序节点排队，是公平的锁；
+ * 也可以与{@link java.util.concurrent.locks.ReentrantLock}一样选择非公平模式，以公平性换取吞吐量<br><br>
  * @Author: chengpan
  * @Date: 2018/11/11
  */
@@ -17,9 +19,24 @@ public class ReentrantZkLock extends AbstractZkLock {
         super(lockName, connectString);
     }
 
+    /**
+     * @see AbstractZkLock#AbstractZkLock(String, String, boolean)
+     * @param lockName
+     * @param connectString
+     * @param fair 是否公平
+     */
+    public ReentrantZkLock(String lockName, String connectString, boolean fair) throws IOException, InterruptedException, KeeperException {
+        super(lockName, connectString, fair);
+    }
+
     @Override
     protected String findLockWaitTarget() throws KeeperException, InterruptedException {
-        return ZkUtils.getSortedPrecedNodeName(zk, lockPath, nodeNameSequence);
+        return childrenCache.lower(nodeNameSequence);
+    }
+
+    @Override
+    protected String findLockWaitTarget(List<String> children) {
+        return ZkUtils.getSortedPrecedNodeName(children, nodeNameSequence);
     }
 
     @Override
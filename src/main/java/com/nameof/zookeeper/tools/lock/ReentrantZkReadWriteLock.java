@@ -1,16 +1,20 @@
 package com.nameof.zookeeper.tools.lock;
 
 import com.nameof.zookeeper.tools.common.ZkContext;
+import com.nameof.zookeeper.tools.utils.ZkUtils;
 import org.apache.zookeeper.KeeperException;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 
 /**
  * 可重入的分布式读写锁
- * 不支持锁升级、降级和撤销
+ * 不支持锁升级和撤销，持有写锁时可通过{@link #downgrade()}原位降级为读锁
+ * <p>共享读者模式下，同一JVM内的所有读者共享一个READ-节点，见{@link SharedZkReadLock}
  * @Author: chengpan
  * @Date: 2018/11/19
  */
@@ -22,8 +26,22 @@ public class ReentrantZkReadWriteLock implements ReadWriteLock {
     private ReadWriteLockState lockState = ReadWriteLockState.NONE;
 
     public ReentrantZkReadWriteLock(String lockName, String connectString) throws InterruptedException, IOException, KeeperException {
-        this.readLock = new ReadLock(lockName, connectString);
+        this(lockName, connectString, false);
+    }
+
+    /**
+     * @param lockName
+     * @param connectString
+     * @param sharedReaders 是否开启共享读者模式
+     */
+    public ReentrantZkReadWriteLock(String lockName, String connectString, boolean sharedReaders) throws InterruptedException, IOException, KeeperException {
         this.writeLock = new WriteLock(lockName, connectString);
+        try {
+            this.readLock = sharedReaders ? new SharedZkReadLock(lockName, connectString, this) : new ReadLock(lockName, connectString);
+        } catch (IOException | InterruptedException | KeeperException | RuntimeException e) {
+            ((ZkContext) writeLock).destory();
+            throw e;
+        }
     }
 
     public Lock readLock() { return readLock; }
@@ -32,8 +50,51 @@ public class ReentrantZkReadWriteLock implements ReadWriteLock {
     void setLockState(ReadWriteLockState lockState) { this.lockState = lockState; }
     public ReadWriteLockState getLockState() { return lockState; }
 
+    /**
+     * @see AbstractZkLock#setLease(long, TimeUnit)
+     */
+    public void setLease(long time, TimeUnit unit) {
+        if (readLock instanceof SharedZkReadLock)
+            ((SharedZkReadLock) readLock).setLease(time, unit);
+        else
+            ((AbstractZkLock) readLock).setLease(time, unit);
+        ((AbstractZkLock) writeLock).setLease(time, unit);
+    }
+
+    public void setLockListener(ZkLockListener lockListener) {
+        if (readLock instanceof SharedZkReadLock)
+            ((SharedZkReadLock) readLock).setLockListener(lockListener);
+        else
+            ((AbstractZkLock) readLock).setLockListener(lockListener);
+        ((AbstractZkLock) writeLock).setLockListener(lockListener);
+    }
+
+    /**
+     * 锁降级：持有写锁的线程在一个multi事务中把WRITE-节点换成相同序列号的READ-节点，不重新排队，
+     * 排在后面、等待该WRITE-节点的读锁立即被唤醒，写锁仍排在该READ-节点之后。
+     * 降级后当前线程持有读锁，写锁已释放，之后通过readLock().unlock()释放
+     * <p>共享读者模式下不支持
+     * @throws IllegalMonitorStateException 当前线程未持有写锁，或写锁被重入
+     */
+    public void downgrade() {
+        if (readLock instanceof SharedZkReadLock)
+            throw new UnsupportedOperationException("downgrading is not supported in shared-reader mode");
+        try {
+            ((AbstractZkLock) writeLock).transferTo((AbstractZkLock) readLock);
+        } catch (KeeperException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public boolean isSharedReaders() {
+        return readLock instanceof SharedZkReadLock;
+    }
+
     public void destory() {
-        ((ZkContext) readLock).destory();
+        if (readLock instanceof SharedZkReadLock)
+            ((SharedZkReadLock) readLock).destory();
+        else
+            ((ZkContext) readLock).destory();
         ((ZkContext) writeLock).destory();
     }
 
@@ -45,18 +106,12 @@ public class ReentrantZkReadWriteLock implements ReadWriteLock {
 
         @Override
         protected String findLockWaitTarget() throws KeeperException, InterruptedException {
-            return getPrecedWriter();
+            return childrenCache.lower(getNodeName(), WRITE_PREFIX);
         }
 
-        private String getPrecedWriter() throws KeeperException, InterruptedException {
-            List<ReadWriteLockNodeEntry> nodeEntry = getSortedNodeEntry();
-            ReadWriteLockNodeEntry current = new ReadWriteLockNodeEntry(true, nodeNameSequence);
-            for (int i = nodeEntry.indexOf(current) - 1; i >= 0; i--) {
-                ReadWriteLockNodeEntry entry = nodeEntry.get(i);
-                if (!entry.isReadNode())
-                    return entry.getNodeName();
-            }
-            return getNodeName();
+        @Override
+        protected String findLockWaitTarget(List<String> children) {
+            return ZkUtils.getPrecedNodeName(children, getNodeName(), WRITE_PREFIX);
         }
 
         @Override
@@ -64,10 +119,23 @@ public class ReentrantZkReadWriteLock implements ReadWriteLock {
             return lockPath + "/" + READ_PREFIX;
         }
 
+        @Override
+        protected String getContenderPrefix() {
+            return WRITE_PREFIX;
+        }
+
         @Override
         protected String getNodeName() {
             return READ_PREFIX + nodeNameSequence;
         }
+
+        /**
+         * 读锁不支持条件，与{@link java.util.concurrent.locks.ReentrantReadWriteLock.ReadLock}一致
+         */
+        @Override
+        public Condition newCondition(String conditionName) {
+            throw new UnsupportedOperationException();
+        }
     }
 
     private class WriteLock extends AbstractZkReadWriteLock {
@@ -76,18 +144,22 @@ public class ReentrantZkReadWriteLock implements ReadWriteLock {
             super(lockName, ReadWriteLockState.WRITE, ReentrantZkReadWriteLock.this, connectString);
         }
 
+        @Override
+        protected void acceptLockState() {
+            //共享的读锁不记录在lockState中
+            if (readLock instanceof SharedZkReadLock && ((SharedZkReadLock) readLock).isHeldByCurrentThread())
+                throw new IllegalStateException("unsupport write lock downgrading");
+            super.acceptLockState();
+        }
+
         @Override
         protected String findLockWaitTarget() throws KeeperException, InterruptedException {
-            return getPreceNodeName();
+            return childrenCache.lower(getNodeName());
         }
 
-        private String getPreceNodeName() throws KeeperException, InterruptedException {
-            List<ReadWriteLockNodeEntry> nodeEntry = getSortedNodeEntry();
-            ReadWriteLockNodeEntry current = new ReadWriteLockNodeEntry(false, nodeNameSequence);
-            int currentPosition = nodeEntry.indexOf(current);
-            if (currentPosition > 0)
-                return nodeEntry.get(currentPosition - 1).getNodeName();
-            return getNodeName();
+        @Override
+        protected String findLockWaitTarget(List<String> children) {
+            return ZkUtils.getPrecedNodeName(children, getNodeName(), null);
         }
 
         @Override
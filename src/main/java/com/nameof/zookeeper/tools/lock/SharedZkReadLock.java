@@ -0,0 +1,331 @@
+package com.nameof.zookeeper.tools.lock;
+
+import com.google.common.base.Preconditions;
+import org.apache.zookeeper.KeeperException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * <p>进程内共享的分布式读锁：同一JVM内connectString和锁名相同的所有读者共享一个READ-节点，
+ * 节点已持有时获取读锁只是一次本地的CAS计数，不访问zookeeper
+ * <p>本地读者计数降为0时删除READ-节点；发现有写锁节点排在共享的READ-节点之后(或会话过期)时，
+ * 不再接纳新的读者，新读者重新排队到写锁之后，已持有的读者全部释放后删除节点，写锁不会因为本地读者源源不断而饥饿
+ * <p>持有读锁的线程再次获取总是成功(可重入)，只有持有读锁的线程可以释放
+ * <p>使用完毕后调用{@link #destory()}，共享的READ-节点持有者在最后一个实例销毁时销毁
+ * <p>thread-safe
+ * @Author: chengpan
+ * @Date: 2018/12/18
+ */
+class SharedZkReadLock implements Lock {
+
+    private static final Logger logger = LoggerFactory.getLogger(SharedZkReadLock.class);
+
+    /** 没有READ-节点 */
+    private static final int IDLE = Integer.MIN_VALUE;
+
+    /** 正在删除READ-节点 */
+    private static final int RELEASING = Integer.MIN_VALUE + 1;
+
+    /** 不再接纳新读者，DRAINING + n 表示还有n个读者持有 */
+    private static final int DRAINING = Integer.MIN_VALUE / 2;
+
+    /** connectString + 锁路径 -> 共享状态 */
+    private static final ZkSharedRegistry<Shared> registry = new ZkSharedRegistry<>();
+
+    private final Shared shared;
+
+    private final ReentrantZkReadWriteLock context;
+
+    private volatile boolean destory = false;
+
+    private volatile ZkLockListener lockListener = lock -> logger.warn("lock {} lost, zookeeper session or lease expired", lock);
+
+    SharedZkReadLock(String lockName, String connectString, ReentrantZkReadWriteLock context) throws IOException, InterruptedException, KeeperException {
+        this.shared = acquire(lockName, connectString);
+        this.context = context;
+    }
+
+    private static Shared acquire(String lockName, String connectString) throws IOException, InterruptedException, KeeperException {
+        Preconditions.checkNotNull(lockName, "lockName null");
+        Preconditions.checkNotNull(connectString, "connectString null");
+        String key = connectString + AbstractZkLock.NAMESPACE + "/" + lockName;
+        return registry.acquire(key, () -> new Shared(key, new ReentrantZkReadWriteLock(lockName, connectString)));
+    }
+
+    private static void release(Shared shared) {
+        //最后一个引用在注册表锁外销毁
+        if (registry.release(shared.key, shared))
+            shared.holder.destory();
+    }
+
+    @Override
+    public void lock() {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                acquire(-1);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    @Override
+    public void lockInterruptibly() throws InterruptedException {
+        acquire(-1);
+    }
+
+    @Override
+    public boolean tryLock() {
+        try {
+            return acquire(0);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    @Override
+    public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+        return acquire(Math.max(1, unit.toNanos(time)));
+    }
+
+    /**
+     * @param timeoutNanos 小于0表示不限时，0表示不等待
+     * @return 是否获取成功
+     */
+    private boolean acquire(long timeoutNanos) throws InterruptedException {
+        checkState();
+        int[] held = shared.holds.get();
+        if (held[0] > 0) {
+            //已持有的读者直接计数，即使正在排空，否则会与排在后面的写锁互相等待
+            shared.readers.incrementAndGet();
+            held[0]++;
+            return true;
+        }
+        if (context.writeLock() instanceof AbstractZkLock && ((AbstractZkLock) context.writeLock()).isHeldByCurrentThread())
+            throw new IllegalStateException("unsupport read lock upgrading");
+        if (shared.join()) {
+            held[0] = 1;
+            return true;
+        }
+
+        long deadline = System.nanoTime() + timeoutNanos;
+        synchronized (shared) {
+            while (true) {
+                if (shared.join()) {
+                    held[0] = 1;
+                    return true;
+                }
+                if (shared.readers.get() == IDLE && !shared.acquiring) {
+                    shared.acquiring = true;
+                    break;
+                }
+                if (timeoutNanos < 0) {
+                    shared.wait();
+                } else {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0)
+                        return false;
+                    TimeUnit.NANOSECONDS.timedWait(shared, remaining);
+                }
+            }
+        }
+
+        AbstractZkLock zkRead = shared.zkRead;
+        boolean locked = false;
+        try {
+            if (timeoutNanos < 0) {
+                zkRead.lockInterruptibly();
+                locked = true;
+            } else if (timeoutNanos == 0) {
+                locked = zkRead.tryLock();
+            } else {
+                locked = zkRead.tryLock(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            }
+            if (locked)
+                zkRead.disown();
+        } finally {
+            synchronized (shared) {
+                shared.acquiring = false;
+                if (locked) {
+                    shared.owner = this;
+                    shared.readers.set(1);
+                }
+                shared.notifyAll();
+            }
+        }
+        if (!locked)
+            return false;
+        held[0] = 1;
+        zkRead.watchNodeBehind(AbstractZkReadWriteLock.WRITE_PREFIX, shared::drain);
+        return true;
+    }
+
+    /**
+     * 减少本地读者计数，最后一个读者删除READ-节点
+     * @throws IllegalMonitorStateException 当前线程未持有读锁
+     */
+    @Override
+    public void unlock() {
+        int[] held = shared.holds.get();
+        if (held[0] == 0)
+            throw new IllegalMonitorStateException();
+        held[0]--;
+        AtomicInteger readers = shared.readers;
+        while (true) {
+            int n = readers.get();
+            boolean last = n == 1 || n == DRAINING + 1;
+            if (readers.compareAndSet(n, last ? RELEASING : n - 1)) {
+                if (last)
+                    releaseNode();
+                return;
+            }
+        }
+    }
+
+    private void releaseNode() {
+        try {
+            shared.zkRead.unlock();
+        } finally {
+            synchronized (shared) {
+                shared.owner = null;
+                shared.readers.set(IDLE);
+                shared.notifyAll();
+            }
+        }
+    }
+
+    public boolean isHeldByCurrentThread() {
+        return shared.holds.get()[0] > 0;
+    }
+
+    /**
+     * @return 当前JVM中持有读锁的读者数(含重入)
+     */
+    public int getReadLockCount() {
+        int n = shared.readers.get();
+        if (n == IDLE || n == RELEASING)
+            return 0;
+        return n >= 0 ? n : n - DRAINING;
+    }
+
+    /**
+     * @see AbstractZkLock#getFencingToken()
+     */
+    public long getFencingToken() {
+        return shared.zkRead.getFencingToken();
+    }
+
+    /**
+     * 同一个锁名的所有实例共享同一个READ-节点，以最后设置的值为准
+     * @see AbstractZkLock#setLease(long, TimeUnit)
+     */
+    public void setLease(long time, TimeUnit unit) {
+        shared.zkRead.setLease(time, unit);
+    }
+
+    public void setLockListener(ZkLockListener lockListener) {
+        Preconditions.checkNotNull(lockListener, "lockListener null");
+        this.lockListener = lockListener;
+    }
+
+    /**
+     * 释放对共享READ-节点持有者的引用，重复调用无副作用
+     */
+    public void destory() {
+        synchronized (this) {
+            if (destory)
+                return;
+            destory = true;
+        }
+        release(shared);
+    }
+
+    private void checkState() {
+        if (destory)
+            throw new IllegalStateException("lock destoryed");
+    }
+
+    @Override
+    public Condition newCondition() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String toString() {
+        return shared.key;
+    }
+
+    /**
+     * 同一个锁名的所有实例共享的状态
+     */
+    private static class Shared {
+
+        private final String key;
+
+        /** 只使用其中的读锁 */
+        private final ReentrantZkReadWriteLock holder;
+
+        private final AbstractZkLock zkRead;
+
+        /** 本地读者计数，非负时表示READ-节点已持有且接纳新读者，其余取值见{@link #IDLE}、{@link #RELEASING}、{@link #DRAINING} */
+        private final AtomicInteger readers = new AtomicInteger(IDLE);
+
+        /** 每个线程在所有实例上的读锁持有计数 */
+        private final ThreadLocal<int[]> holds = ThreadLocal.withInitial(() -> new int[1]);
+
+        /** 有线程正在zookeeper上获取READ-节点，受this锁保护 */
+        private boolean acquiring;
+
+        /** 获取READ-节点的实例，用于通知锁丢失 */
+        private volatile SharedZkReadLock owner;
+
+        Shared(String key, ReentrantZkReadWriteLock holder) {
+            this.key = key;
+            this.holder = holder;
+            this.zkRead = (AbstractZkLock) holder.readLock();
+            zkRead.setLockListener(lock -> {
+                drain();
+                SharedZkReadLock current = owner;
+                if (current != null)
+                    current.lockListener.onLockLost(current);
+            });
+        }
+
+        /**
+         * READ-节点已持有且接纳新读者时，加入为读者
+         */
+        boolean join() {
+            while (true) {
+                int n = readers.get();
+                if (n < 0)
+                    return false;
+                if (readers.compareAndSet(n, n + 1))
+                    return true;
+            }
+        }
+
+        /**
+         * 不再接纳新读者，已持有的读者全部释放后删除READ-节点
+         */
+        void drain() {
+            while (true) {
+                int n = readers.get();
+                if (n < 0)
+                    return;
+                if (readers.compareAndSet(n, DRAINING + n))
+                    return;
+            }
+        }
+    }
+}
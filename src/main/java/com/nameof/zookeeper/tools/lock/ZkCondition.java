@@ -0,0 +1,228 @@
+package com.nameof.zookeeper.tools.lock;
+
+import com.google.common.base.Preconditions;
+import com.nameof.zookeeper.tools.common.WaitDuration;
+import com.nameof.zookeeper.tools.common.ZkContext;
+import com.nameof.zookeeper.tools.common.ZkPrimitiveSupport;
+import com.nameof.zookeeper.tools.utils.ZkUtils;
+import org.apache.zookeeper.KeeperException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
+
+/**
+ * <p>基于zookeeper的{@link Condition}，由{@link AbstractZkLock#newCondition(String)}创建，锁名和条件名相同的所有客户端共享同一个条件
+ * <p>await在仍持有锁时，在条件路径下创建临时顺序的等待节点，然后完全释放锁(含重入计数)，等待该节点被删除；
+ * signal删除序列号最小的等待节点，signalAll在一个multi事务中删除所有等待节点。等待者由节点删除事件唤醒，不轮询，
+ * 重新获取锁并恢复持有计数后返回
+ * <p>等待节点在释放锁之前创建，signal也必须持有锁，因此信号不会丢失
+ * <p>会话过期时等待节点随会话删除，等待者被唤醒，属于{@link Condition}允许的虚假唤醒，调用方应在循环中检查条件
+ * <p>thread-safe
+ * @Author: chengpan
+ * @Date: 2018/12/20
+ */
+class ZkCondition extends ZkContext implements Condition {
+
+    private static final String NAMESPACE = "/zkcondition";
+
+    private static final String WAITER_PREFIX = "waiter-";
+
+    private final AbstractZkLock lock;
+
+    private final String conditionPath;
+
+    private final ZkPrimitiveSupport zkPrimitiveSupport;
+
+    ZkCondition(AbstractZkLock lock, String lockName, String conditionName, String connectString) throws IOException, InterruptedException, KeeperException {
+        super(connectString);
+        Preconditions.checkNotNull(conditionName, "conditionName null");
+        Preconditions.checkArgument(!conditionName.contains("/"), "conditionName invalid");
+        this.lock = lock;
+        this.conditionPath = NAMESPACE + "/" + lockName + "/" + conditionName;
+        this.zkPrimitiveSupport = new ZkPrimitiveSupport(this);
+
+        checkState();
+        ZkUtils.createPersist(zk, NAMESPACE);
+        ZkUtils.createPersist(zk, NAMESPACE + "/" + lockName);
+        ZkUtils.createPersist(zk, conditionPath);
+    }
+
+    @Override
+    public void await() throws InterruptedException {
+        await(null, true);
+    }
+
+    @Override
+    public void awaitUninterruptibly() {
+        try {
+            await(null, false);
+        } catch (InterruptedException e) {
+            //never happen
+        }
+    }
+
+    @Override
+    public long awaitNanos(long nanosTimeout) throws InterruptedException {
+        long deadline = System.nanoTime() + nanosTimeout;
+        await(WaitDuration.from(TimeUnit.NANOSECONDS.toMillis(nanosTimeout)), true);
+        return deadline - System.nanoTime();
+    }
+
+    @Override
+    public boolean await(long time, TimeUnit unit) throws InterruptedException {
+        return await(WaitDuration.from(unit.toMillis(time)), true);
+    }
+
+    @Override
+    public boolean awaitUntil(Date deadline) throws InterruptedException {
+        return await(WaitDuration.from(deadline.getTime() - System.currentTimeMillis()), true);
+    }
+
+    /**
+     * @param duration null表示不限时
+     * @param interruptible
+     * @return 是否在超时前被唤醒
+     */
+    private boolean await(WaitDuration duration, boolean interruptible) throws InterruptedException {
+        if (interruptible && Thread.interrupted())
+            throw new InterruptedException();
+        checkHeld();
+        checkState();
+        long generation = session.getGeneration();
+        String waiter = createWaiter();
+        int holds = lock.fullyRelease();
+
+        boolean signalled = false;
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    zkPrimitiveSupport.waitNotExists(waiter, duration);
+                    signalled = true;
+                    break;
+                } catch (TimeoutException e) {
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    if (interruptible)
+                        break;
+                }
+            }
+        } catch (KeeperException e) {
+            throw new RuntimeException(e);
+        } finally {
+            //超时或中断时撤回等待节点，节点已被删除说明同时收到了信号
+            if (!signalled)
+                signalled = !cancelWaiter(waiter, generation);
+            untrackEphemeral(waiter);
+            lock.reacquire(holds);
+        }
+        if (interrupted) {
+            if (interruptible && !signalled)
+                throw new InterruptedException();
+            Thread.currentThread().interrupt();
+        }
+        return signalled;
+    }
+
+    private String createWaiter() {
+        String prefix = conditionPath + "/" + WAITER_PREFIX;
+        try {
+            String waiter = prefix + ZkUtils.createTempAndGetSeq(zk, prefix);
+            trackEphemeral(waiter);
+            return waiter;
+        } catch (KeeperException e) {
+            throw new RuntimeException(e);
+        } catch (InterruptedException e) {
+            //等待节点可能已经创建，没有人signal时随会话或destory删除
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while registering waiter", e);
+        }
+    }
+
+    /**
+     * @return 是否由本次调用删除了等待节点
+     */
+    private boolean cancelWaiter(String waiter, long generation) {
+        if (generation != session.getGeneration())
+            return false;
+        try {
+            return ZkUtils.deleteNodeIgnoreInterrupt(zk, waiter);
+        } catch (KeeperException e) {
+            logger.warn("delete condition waiter " + waiter + " failed", e);
+            return false;
+        }
+    }
+
+    /**
+     * 唤醒等待时间最长的一个等待者
+     * @throws IllegalMonitorStateException 当前线程未持有锁
+     */
+    @Override
+    public void signal() {
+        checkHeld();
+        checkState();
+        try {
+            for (String waiter : sortedWaiters()) {
+                //删除失败说明等待者已超时离开
+                if (ZkUtils.deleteNodeIgnoreInterrupt(zk, conditionPath + "/" + waiter))
+                    return;
+            }
+        } catch (KeeperException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * 唤醒所有等待者
+     * @throws IllegalMonitorStateException 当前线程未持有锁
+     */
+    @Override
+    public void signalAll() {
+        checkHeld();
+        checkState();
+        try {
+            List<String> waiters = sortedWaiters();
+            if (waiters.isEmpty())
+                return;
+            List<String> paths = new ArrayList<>(waiters.size());
+            for (String waiter : waiters)
+                paths.add(conditionPath + "/" + waiter);
+            ZkUtils.deleteNodesIgnoreInterrupt(zk, paths);
+        } catch (KeeperException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * 从服务端读取等待者：获取锁时不一定等待过watch事件(tryLock，或锁本来空闲)，
+     * 其它客户端在释放锁之前创建的等待节点可能还没有进入子节点缓存，使用缓存会丢失信号
+     */
+    private List<String> sortedWaiters() throws KeeperException {
+        boolean interrupt = false;
+        try {
+            while (true) {
+                try {
+                    List<String> waiters = ZkUtils.getChildren(zk, conditionPath);
+                    waiters.sort(Comparator.comparingLong(ZkUtils::parseSequence));
+                    return waiters;
+                } catch (InterruptedException e) {
+                    interrupt = true;
+                }
+            }
+        } finally {
+            if (interrupt) Thread.currentThread().interrupt();
+        }
+    }
+
+    private void checkHeld() {
+        if (!lock.isHeldByCurrentThread())
+            throw new IllegalMonitorStateException("lock is not held by current thread");
+    }
+}
@@ -0,0 +1,226 @@
+package com.nameof.zookeeper.tools.lock;
+
+import com.google.common.base.Preconditions;
+import com.nameof.zookeeper.tools.common.ZkContext;
+import com.nameof.zookeeper.tools.metrics.ZkHistogram;
+import com.nameof.zookeeper.tools.utils.ZkUtils;
+import org.apache.zookeeper.KeeperException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>锁的观察工具，只读，不参与锁竞争。查看{@link AbstractZkLock}的持有者、排队深度和每个等待者的等待时间：
+ * <pre>
+ *     ZkLockInspector inspector = new ZkLockInspector("localhost:2181");
+ *     ZkLockSnapshot snapshot = inspector.inspect("test");
+ *     snapshot.getHolder().getHost();
+ *     snapshot.getWaiters().get(0).getAgeMillis();
+ * </pre>
+ * <p>公平模式下序列号最小的节点为持有者，读锁节点连续排在队首时都是持有者；非公平模式下持有者为{@link ZkLockOwner}的owner节点，
+ * 排队节点都是等待者
+ * <p>{@link #startSampling(String, long, TimeUnit)}定期观察锁，以持有者节点的出现和消失估计持有时间分布，
+ * 持有时间的误差不超过一个采样间隔，短于采样间隔的持有可能观察不到
+ * <p>等待时间、持有时间使用zookeeper服务端的ctime与本地时钟计算，包含两者之间的时钟偏差
+ * <p>thread-safe
+ * @Author: chengpan
+ * @Date: 2018/12/22
+ */
+public class ZkLockInspector extends ZkContext {
+
+    /** 锁名 -> 持有时间采样 */
+    private final Map<String, HoldSampler> samplers = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService scheduler;
+
+    public ZkLockInspector(String connectString) throws IOException, InterruptedException {
+        super(connectString);
+    }
+
+    /**
+     * 读取锁的持有者和等待队列，锁的所有节点并发读取，只需一次网络往返
+     * @param lockName
+     * @return
+     */
+    public ZkLockSnapshot inspect(String lockName) throws KeeperException, InterruptedException {
+        Preconditions.checkNotNull(lockName, "lockName null");
+        Preconditions.checkArgument(!lockName.contains("/"), "lockName invalid");
+        checkState();
+        String lockPath = AbstractZkLock.NAMESPACE + "/" + lockName;
+        List<String> children;
+        try {
+            children = ZkUtils.getChildren(zk, lockPath);
+        } catch (KeeperException.NoNodeException e) {
+            children = new ArrayList<>();
+        }
+        children.sort(Comparator.comparingLong(ZkUtils::parseSequence));
+
+        List<String> paths = new ArrayList<>(children.size() + 1);
+        for (String child : children)
+            paths.add(lockPath + "/" + child);
+        String ownerPath = new ZkLockOwner(lockName).getHolderPath();
+        paths.add(ownerPath);
+        ZkLockNodeInfo[] infos = readAll(paths);
+
+        List<ZkLockNodeInfo> holders = new ArrayList<>();
+        List<ZkLockNodeInfo> waiters = new ArrayList<>();
+        ZkLockNodeInfo owner = infos[infos.length - 1];
+        if (owner != null)
+            holders.add(owner);
+        for (int i = 0; i < children.size(); i++) {
+            ZkLockNodeInfo info = infos[i];
+            if (info == null)
+                continue;
+            if (owner == null && canHold(holders, info))
+                holders.add(info);
+            else
+                waiters.add(info);
+        }
+        ZkLockSnapshot snapshot = new ZkLockSnapshot(lockName, holders, waiters);
+        HoldSampler sampler = samplers.get(lockName);
+        if (sampler != null)
+            sampler.sample(snapshot);
+        return snapshot;
+    }
+
+    /**
+     * 公平模式下，队首节点持有锁；队首是读锁节点时，紧随其后的读锁节点也持有锁
+     */
+    private static boolean canHold(List<ZkLockNodeInfo> holders, ZkLockNodeInfo info) {
+        if (holders.isEmpty())
+            return true;
+        return isRead(holders.get(holders.size() - 1)) && isRead(info);
+    }
+
+    private static boolean isRead(ZkLockNodeInfo info) {
+        return info.getNodeName().startsWith(AbstractZkReadWriteLock.READ_PREFIX);
+    }
+
+    /**
+     * 并发读取所有节点的数据
+     * @return 与paths一一对应，节点不存在时为null
+     */
+    private ZkLockNodeInfo[] readAll(List<String> paths) throws KeeperException, InterruptedException {
+        ZkLockNodeInfo[] infos = new ZkLockNodeInfo[paths.size()];
+        KeeperException.Code[] errors = new KeeperException.Code[1];
+        CountDownLatch latch = new CountDownLatch(paths.size());
+        for (int i = 0; i < paths.size(); i++) {
+            int index = i;
+            String path = paths.get(i);
+            zk.getData(path, false, (rc, p, ctx, data, stat) -> {
+                KeeperException.Code code = KeeperException.Code.get(rc);
+                if (code == KeeperException.Code.OK)
+                    infos[index] = ZkLockNodeInfo.decode(p.substring(p.lastIndexOf('/') + 1), data, stat, System.currentTimeMillis());
+                else if (code != KeeperException.Code.NONODE)
+                    errors[0] = code;
+                latch.countDown();
+            }, null);
+        }
+        latch.await();
+        if (errors[0] != null)
+            throw KeeperException.create(errors[0]);
+        return infos;
+    }
+
+    /**
+     * 开始定期观察锁，估计持有时间分布，重复调用时只保留第一次的采样间隔
+     * @param lockName
+     * @param period 采样间隔
+     * @param unit
+     */
+    public synchronized void startSampling(String lockName, long period, TimeUnit unit) {
+        Preconditions.checkArgument(period > 0, "period invalid");
+        checkState();
+        if (samplers.containsKey(lockName))
+            return;
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "zk-lock-inspector");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        HoldSampler sampler = new HoldSampler();
+        samplers.put(lockName, sampler);
+        sampler.future = scheduler.scheduleAtFixedRate(() -> {
+            try {
+                inspect(lockName);
+            } catch (Exception e) {
+                logger.warn("sample lock " + lockName + " failed", e);
+            }
+        }, 0, period, unit);
+    }
+
+    public synchronized void stopSampling(String lockName) {
+        HoldSampler sampler = samplers.remove(lockName);
+        if (sampler != null)
+            sampler.future.cancel(false);
+    }
+
+    /**
+     * @return 采样估计的持有时间直方图，单位毫秒，未开始采样时返回空直方图
+     */
+    public ZkHistogram getHoldTimes(String lockName) {
+        HoldSampler sampler = samplers.get(lockName);
+        return sampler == null ? new ZkHistogram() : sampler.holdTimes;
+    }
+
+    @Override
+    public synchronized void destory() {
+        for (HoldSampler sampler : samplers.values())
+            sampler.future.cancel(false);
+        samplers.clear();
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+        super.destory();
+    }
+
+    /**
+     * 持有者节点第一次出现时记为开始持有，不再是持有者时记为结束
+     */
+    private static class HoldSampler {
+
+        private final ZkHistogram holdTimes = new ZkHistogram();
+
+        /** 持有者节点名 -> 估计的开始持有时间，-1表示开始时间未知(第一次采样时已在持有) */
+        private final Map<String, Long> holding = new HashMap<>();
+
+        private long lastSampleAt;
+
+        private volatile ScheduledFuture<?> future;
+
+        synchronized void sample(ZkLockSnapshot snapshot) {
+            long now = System.currentTimeMillis();
+            Set<String> current = new HashSet<>();
+            for (ZkLockNodeInfo holder : snapshot.getHolders()) {
+                //非公平模式的owner节点名固定，以创建时间区分每次持有
+                String key = holder.getNodeName() + "@" + holder.getCtime();
+                current.add(key);
+                //开始持有的时间晚于节点创建，也晚于上一次没有观察到它持有的采样
+                holding.computeIfAbsent(key, k -> lastSampleAt == 0 ? -1 : Math.max(holder.getCtime(), lastSampleAt));
+            }
+            holding.entrySet().removeIf(e -> {
+                if (current.contains(e.getKey()))
+                    return false;
+                if (e.getValue() >= 0)
+                    holdTimes.record(now - e.getValue());
+                return true;
+            });
+            lastSampleAt = now;
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package com.nameof.zookeeper.tools.lock;
+
+import com.nameof.zookeeper.tools.common.WaitDuration;
+import com.nameof.zookeeper.tools.common.ZkPrimitiveSupport;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * <p>锁租约，使锁的失效时间短于zookeeper会话超时时间
+ * <p>持有者获取锁后在锁节点上写入租约数据(租约时长)，并每1/4个租约时长重写一次(续约)；
+ * 租约数据写在持有者元数据({@link ZkLockNodeInfo})的下一行，续约不会覆盖元数据；
+ * 等待者以自己的时钟计时，锁节点的mzxid在一个租约时长内没有变化，说明持有者已停止续约，
+ * 按读到的version删除锁节点，续约与删除同时发生时删除失败
+ * <p>持有者必须先于等待者放弃：等待者开始观察的时间晚于最后一次成功续约的写入，也就晚于该次续约的发送时间，
+ * 最早在发送时间之后一个租约时长才会删除节点；持有者距最后一次成功续约的发送时间超过半个租约时长时判定失去锁，
+ * 检查间隔为1/4个租约时长，最晚在3/4个租约时长时放弃，留出1/4个租约时长的余量给两端时钟速率差异和调度延迟
+ * <p>只有持有者会写入租约数据，排队中的节点不会被删除
+ * @Author: chengpan
+ * @Date: 2018/12/18
+ */
+class ZkLockLease {
+
+    private static final Logger logger = LoggerFactory.getLogger(ZkLockLease.class);
+
+    private static final String MAGIC = "zklease:";
+
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "zk-lock-lease");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private ZkLockLease() { }
+
+    /**
+     * @param owner 持有者元数据，见{@link ZkLockNodeInfo}
+     * @param leaseMillis
+     */
+    static byte[] encode(String owner, long leaseMillis) {
+        return (owner + "\n" + MAGIC + leaseMillis).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param data 锁节点数据
+     * @return 租约时长，不是租约数据时返回0
+     */
+    static long decode(byte[] data) {
+        if (data == null)
+            return 0;
+        String s = new String(data, StandardCharsets.UTF_8);
+        //租约数据在第一行(旧版本)或元数据之后的一行
+        int start;
+        if (s.startsWith(MAGIC))
+            start = 0;
+        else if ((start = s.indexOf("\n" + MAGIC)) >= 0)
+            start++;
+        else
+            return 0;
+        int end = s.indexOf('\n', start);
+        try {
+            return Long.parseLong(s.substring(start + MAGIC.length(), end < 0 ? s.length() : end));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * 开始为持有的锁节点续约
+     * @param owner 创建锁节点时写入的持有者元数据
+     * @param onLost 锁节点已被删除，或半个租约时长内没有续约成功时回调一次
+     */
+    static Keeper keep(ZooKeeper zk, String path, String owner, long leaseMillis, Runnable onLost) {
+        Keeper keeper = new Keeper(zk, path, owner, leaseMillis, onLost);
+        keeper.future = scheduler.scheduleAtFixedRate(keeper, 0, Math.max(1, leaseMillis / 4), TimeUnit.MILLISECONDS);
+        return keeper;
+    }
+
+    /**
+     * 阻塞，直到节点不存在；节点上的租约过期时删除节点
+     * <p>节点上还没有租约数据时(排队中的节点，或持有者的第一次续约尚未写入)等待节点数据变化，
+     * 节点稍后成为持有者并写入租约数据时重新读取，之后同样按租约判定
+     * @return 是否删除了租约过期的节点
+     */
+    static boolean waitNotExists(ZkPrimitiveSupport support, ZooKeeper zk, String path, WaitDuration duration) throws KeeperException, InterruptedException, TimeoutException {
+        while (true) {
+            Stat stat = new Stat();
+            long leaseMillis;
+            try {
+                leaseMillis = decode(zk.getData(path, false, stat));
+            } catch (KeeperException.NoNodeException e) {
+                return false;
+            }
+            if (leaseMillis <= 0) {
+                long mzxid = stat.getMzxid();
+                support.waitChanged(path, s -> s.getMzxid() == mzxid, duration);
+                continue;
+            }
+            long waitMillis = duration == null ? leaseMillis : Math.min(leaseMillis, duration.getDuration());
+            try {
+                support.waitNotExists(path, WaitDuration.from(waitMillis));
+                return false;
+            } catch (TimeoutException e) {
+                if (waitMillis < leaseMillis)
+                    throw e;
+            }
+            Stat current = zk.exists(path, false);
+            if (current == null)
+                return false;
+            if (current.getMzxid() != stat.getMzxid())
+                continue;
+            try {
+                zk.delete(path, current.getVersion());
+                logger.warn("lease of {} expired, node deleted", path);
+                return true;
+            } catch (KeeperException.BadVersionException | KeeperException.NoNodeException ignore) {
+                //持有者刚刚续约，或节点已被删除
+            }
+        }
+    }
+
+    static class Keeper implements Runnable {
+
+        private final ZooKeeper zk;
+
+        private final String path;
+
+        private final byte[] data;
+
+        /** 距最后一次成功续约的发送时间超过该值时判定失去锁，半个租约时长 */
+        private final long lostNanos;
+
+        private final Runnable onLost;
+
+        private volatile long renewedAt = System.nanoTime();
+
+        private volatile boolean stopped;
+
+        private volatile ScheduledFuture<?> future;
+
+        private Keeper(ZooKeeper zk, String path, String owner, long leaseMillis, Runnable onLost) {
+            this.zk = zk;
+            this.path = path;
+            this.data = encode(owner, leaseMillis);
+            this.lostNanos = TimeUnit.MILLISECONDS.toNanos(leaseMillis) / 2;
+            this.onLost = onLost;
+        }
+
+        @Override
+        public void run() {
+            if (stopped)
+                return;
+            long sentAt = System.nanoTime();
+            if (sentAt - renewedAt > lostNanos) {
+                lost();
+                return;
+            }
+            zk.setData(path, data, -1, (rc, p, ctx, stat) -> {
+                if (rc == KeeperException.Code.OK.intValue())
+                    renewedAt = sentAt;
+                else if (rc == KeeperException.Code.NONODE.intValue())
+                    lost();
+            }, null);
+        }
+
+        private void lost() {
+            synchronized (this) {
+                if (stopped)
+                    return;
+                stop();
+            }
+            onLost.run();
+        }
+
+        synchronized void stop() {
+            stopped = true;
+            if (future != null)
+                future.cancel(false);
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.nameof.zookeeper.tools.lock;
+
+import java.util.concurrent.locks.Lock;
+
+/**
+ * @Author: chengpan
+ * @Date: 2018/12/5
+ */
+public interface ZkLockListener {
+
+    /**
+     * 持有锁期间zookeeper会话过期，或租约模式下租约过期，锁节点已被删除，其它客户端可能已经获得了锁。
+     * 在zookeeper事件线程中回调，不能阻塞；持有者仍需调用{@link Lock#unlock()}
+     * @param lock
+     */
+    void onLockLost(Lock lock);
+}
@@ -0,0 +1,130 @@
+package com.nameof.zookeeper.tools.lock;
+
+import org.apache.zookeeper.data.Stat;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * <p>锁节点的持有者元数据，获取锁时写入锁节点(含非公平模式的owner节点)，由{@link ZkLockInspector}读取
+ * <p>节点数据的第一行为 zkowner:主机名,进程号,线程名，租约模式下第二行为租约数据，见{@link ZkLockLease}；
+ * 旧版本客户端创建的节点没有元数据，主机名、线程名为null，进程号为-1
+ * <p>immutable
+ * @Author: chengpan
+ * @Date: 2018/12/22
+ */
+public class ZkLockNodeInfo {
+
+    private static final String MAGIC = "zkowner:";
+
+    /** 当前JVM的 主机名,进程号 */
+    private static final String PROCESS;
+
+    static {
+        //格式为 pid@hostname
+        String name = ManagementFactory.getRuntimeMXBean().getName();
+        int idx = name.indexOf('@');
+        String pid = idx > 0 ? name.substring(0, idx) : "-1";
+        String host = idx > 0 ? name.substring(idx + 1) : name;
+        PROCESS = host.replace(',', '_') + "," + pid;
+    }
+
+    private final String nodeName;
+
+    private final String host;
+
+    private final long pid;
+
+    private final String thread;
+
+    /** 节点创建时间，zookeeper服务端时钟 */
+    private final long ctime;
+
+    /** 读取节点时的本地时间 */
+    private final long readAt;
+
+    private ZkLockNodeInfo(String nodeName, String host, long pid, String thread, long ctime, long readAt) {
+        this.nodeName = nodeName;
+        this.host = host;
+        this.pid = pid;
+        this.thread = thread;
+        this.ctime = ctime;
+        this.readAt = readAt;
+    }
+
+    /**
+     * @return 当前线程的持有者元数据
+     */
+    static String current() {
+        return MAGIC + PROCESS + "," + Thread.currentThread().getName().replace('\n', ' ');
+    }
+
+    static byte[] encode() {
+        return current().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param nodeName
+     * @param data 节点数据，可以为null
+     * @param stat
+     * @param readAt 读取节点时的本地时间
+     */
+    static ZkLockNodeInfo decode(String nodeName, byte[] data, Stat stat, long readAt) {
+        String host = null;
+        long pid = -1;
+        String thread = null;
+        if (data != null) {
+            String s = new String(data, StandardCharsets.UTF_8);
+            int end = s.indexOf('\n');
+            if (end >= 0)
+                s = s.substring(0, end);
+            if (s.startsWith(MAGIC)) {
+                String[] parts = s.substring(MAGIC.length()).split(",", 3);
+                if (parts.length == 3) {
+                    host = parts[0];
+                    try {
+                        pid = Long.parseLong(parts[1]);
+                    } catch (NumberFormatException ignore) { }
+                    thread = parts[2];
+                }
+            }
+        }
+        return new ZkLockNodeInfo(nodeName, host, pid, thread, stat.getCtime(), readAt);
+    }
+
+    public String getNodeName() {
+        return nodeName;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public long getPid() {
+        return pid;
+    }
+
+    public String getThread() {
+        return thread;
+    }
+
+    /**
+     * @return 节点创建时间，zookeeper服务端时钟
+     */
+    public long getCtime() {
+        return ctime;
+    }
+
+    /**
+     * 节点从创建到读取时经过的时间，以本地时钟减去服务端的ctime计算，包含两者之间的时钟偏差
+     * @return 毫秒，不小于0
+     */
+    public long getAgeMillis() {
+        return Math.max(0, readAt - ctime);
+    }
+
+    @Override
+    public String toString() {
+        return nodeName + "[" + host + "," + pid + "," + thread + ", age=" + getAgeMillis() + "ms]";
+    }
+}
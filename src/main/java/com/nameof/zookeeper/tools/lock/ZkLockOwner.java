@@ -0,0 +1,158 @@
+package com.nameof.zookeeper.tools.lock;
+
+import com.nameof.zookeeper.tools.utils.ZkUtils;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.OpResult;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * <p>非公平模式的持有者节点，见{@link AbstractZkLock#AbstractZkLock(String, String, boolean)}
+ * <p>{@link #NAMESPACE}/锁名 下最多有两个临时节点：
+ * <ul>
+ *     <li>owner：锁的持有者，谁创建成功谁持有锁，锁释放时任何正在运行的竞争者都可以直接创建(插队)</li>
+ *     <li>reserved：排在队首的等待者被插队超过饥饿上限后创建，存在期间只有它可以获取锁</li>
+ * </ul>
+ * <p>插队在一个multi事务中创建并删除reserved(确认没有被预留)、创建owner，失败时不产生任何写入；
+ * 队首等待者获取时在同一个事务中删除自己的排队节点，排在后面的等待者随即成为队首
+ * <p>每次获取在同一个事务中写一次目录节点的数据，目录节点的数据版本作为fencing token，同一个锁名下单调递增
+ * <p>not thread-safe，由{@link AbstractZkLock}在持有实例锁时调用
+ * @Author: chengpan
+ * @Date: 2018/12/21
+ */
+class ZkLockOwner {
+
+    static final String NAMESPACE = "/zklockowner";
+
+    private final String ownerPath;
+
+    private final String holderPath;
+
+    private final String reservePath;
+
+    /** 写入owner节点，中断后重试时用于识别自己创建的节点 */
+    private final String id = UUID.randomUUID().toString();
+
+    /** 持有owner节点时的会话代数，未持有时为-1 */
+    private long heldGeneration = -1;
+
+    /** 持有reserved节点时的会话代数，未持有时为-1 */
+    private long reservedGeneration = -1;
+
+    ZkLockOwner(String lockName) {
+        this.ownerPath = NAMESPACE + "/" + lockName;
+        this.holderPath = ownerPath + "/owner";
+        this.reservePath = ownerPath + "/reserved";
+    }
+
+    void init(ZooKeeper zk) throws KeeperException, InterruptedException {
+        ZkUtils.createPersist(zk, NAMESPACE);
+        ZkUtils.createPersist(zk, ownerPath);
+    }
+
+    /**
+     * 尝试获取owner节点，忽略中断
+     * @param queueNode 队首等待者的排队节点，在同一个事务中删除；插队时为null
+     * @param generation 当前会话代数
+     * @return fencing token，锁已被持有或被其它等待者预留时返回-1
+     */
+    long acquire(ZooKeeper zk, String queueNode, long generation) throws KeeperException {
+        boolean reserved = reservedGeneration == generation;
+        //第一行为持有者元数据，见ZkLockNodeInfo
+        byte[] data = (ZkLockNodeInfo.current() + "\n" + id).getBytes(StandardCharsets.UTF_8);
+        List<Op> ops = new ArrayList<>(5);
+        if (!reserved)
+            ops.add(Op.create(reservePath, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL));
+        ops.add(Op.delete(reservePath, -1));
+        ops.add(Op.create(holderPath, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL));
+        ops.add(Op.setData(ownerPath, null, -1));
+        if (queueNode != null)
+            ops.add(Op.delete(queueNode, -1));
+        boolean interrupt = false;
+        try {
+            do {
+                try {
+                    List<OpResult> results = zk.multi(ops);
+                    heldGeneration = generation;
+                    reservedGeneration = -1;
+                    return ((OpResult.SetDataResult) results.get(ops.size() - (queueNode == null ? 1 : 2))).getStat().getVersion();
+                } catch (KeeperException.NodeExistsException | KeeperException.NoNodeException e) {
+                    if (interrupt && isMine(zk, data)) {
+                        //被中断的请求已经成功，持有期间没有其它获取会写目录节点，当前数据版本即为fencing token
+                        heldGeneration = generation;
+                        reservedGeneration = -1;
+                        return currentToken(zk);
+                    }
+                    if (e instanceof KeeperException.NodeExistsException)
+                        return -1;
+                    throw e;
+                } catch (InterruptedException ignore) {
+                    interrupt = true;
+                }
+            } while (true);
+        } finally {
+            if (interrupt) Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 中断后重试失败时，检查之前被中断的请求是否已经成功
+     */
+    private boolean isMine(ZooKeeper zk, byte[] data) throws KeeperException {
+        while (true) {
+            try {
+                return Arrays.equals(data, zk.getData(holderPath, false, null));
+            } catch (KeeperException.NoNodeException e) {
+                return false;
+            } catch (InterruptedException ignore) { }
+        }
+    }
+
+    private long currentToken(ZooKeeper zk) throws KeeperException {
+        while (true) {
+            try {
+                return zk.exists(ownerPath, false).getVersion();
+            } catch (InterruptedException ignore) { }
+        }
+    }
+
+    /**
+     * 预留锁，之后新来的竞争者无法插队
+     */
+    void reserve(ZooKeeper zk, long generation) throws KeeperException, InterruptedException {
+        reservedGeneration = generation;
+        ZkUtils.createTemp(zk, reservePath);
+    }
+
+    boolean isReserved(long generation) {
+        return reservedGeneration == generation;
+    }
+
+    /**
+     * 删除持有的owner节点和reserved节点，会话已重建时旧节点已随旧会话删除
+     */
+    void release(ZooKeeper zk, long generation) throws KeeperException {
+        if (reservedGeneration == generation)
+            ZkUtils.deleteNodeIgnoreInterrupt(zk, reservePath);
+        reservedGeneration = -1;
+        if (heldGeneration == generation)
+            ZkUtils.deleteNodeIgnoreInterrupt(zk, holderPath);
+        heldGeneration = -1;
+    }
+
+    boolean isHeld(long generation) {
+        return heldGeneration == generation;
+    }
+
+    String getHolderPath() {
+        return holderPath;
+    }
+}
@@ -0,0 +1,60 @@
+package com.nameof.zookeeper.tools.lock;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>某一时刻锁的持有者和等待队列，由{@link ZkLockInspector#inspect(String)}返回
+ * <p>读锁可以同时有多个持有者；快照由多次读取组成，不是原子的，只用于观察
+ * <p>immutable
+ * @Author: chengpan
+ * @Date: 2018/12/22
+ */
+public class ZkLockSnapshot {
+
+    private final String lockName;
+
+    private final List<ZkLockNodeInfo> holders;
+
+    private final List<ZkLockNodeInfo> waiters;
+
+    ZkLockSnapshot(String lockName, List<ZkLockNodeInfo> holders, List<ZkLockNodeInfo> waiters) {
+        this.lockName = lockName;
+        this.holders = Collections.unmodifiableList(holders);
+        this.waiters = Collections.unmodifiableList(waiters);
+    }
+
+    public String getLockName() {
+        return lockName;
+    }
+
+    /**
+     * @return 持有者，锁空闲时为空
+     */
+    public List<ZkLockNodeInfo> getHolders() {
+        return holders;
+    }
+
+    /**
+     * @return 第一个持有者，锁空闲时返回null
+     */
+    public ZkLockNodeInfo getHolder() {
+        return holders.isEmpty() ? null : holders.get(0);
+    }
+
+    /**
+     * @return 按排队顺序排列的等待者
+     */
+    public List<ZkLockNodeInfo> getWaiters() {
+        return waiters;
+    }
+
+    public int getQueueDepth() {
+        return waiters.size();
+    }
+
+    @Override
+    public String toString() {
+        return lockName + " holders=" + holders + ", queueDepth=" + waiters.size() + ", waiters=" + waiters;
+    }
+}
@@ -0,0 +1,344 @@
+package com.nameof.zookeeper.tools.lock;
+
+import com.google.common.base.Preconditions;
+import com.nameof.zookeeper.tools.common.WaitDuration;
+import com.nameof.zookeeper.tools.common.ZkChildrenCache;
+import com.nameof.zookeeper.tools.common.ZkContext;
+import com.nameof.zookeeper.tools.common.ZkPrimitiveSupport;
+import com.nameof.zookeeper.tools.metrics.ZkMetric;
+import com.nameof.zookeeper.tools.metrics.ZkOperation;
+import com.nameof.zookeeper.tools.utils.ZkUtils;
+import org.apache.zookeeper.KeeperException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * <p>同时获取多个{@link ReentrantZkLock}锁名的排它锁，与使用相同锁名的{@link ReentrantZkLock}互斥
+ * <p>所有锁节点在一个multi事务中创建，同时等待所有前一个节点，释放时在一个multi事务中删除，
+ * 创建和删除都只需一次网络往返。每个锁名下都已排队后才开始等待，获取顺序与锁名的顺序无关，不会死锁
+ * <p>可重入，规则与{@link AbstractZkLock}相同
+ * <p>thread-safe
+ * @Author: chengpan
+ * @Date: 2018/12/17
+ */
+public class ZkMultiLock extends ZkContext implements Lock {
+
+    /** 排序去重后的锁路径 */
+    private final List<String> lockPaths = new ArrayList<>();
+
+    private final List<ZkChildrenCache> childrenCaches = new ArrayList<>();
+
+    /** 记录指标使用的路径 */
+    private final String metricPath;
+
+    /** 各锁路径下抢占到的序列号，未排队时为null */
+    private List<String> nodeNames;
+
+    /** 创建锁节点时的会话代数 */
+    private long nodeGeneration;
+
+    private volatile boolean locked;
+
+    private long lockedAt;
+
+    private Thread owner;
+
+    private int holdCount;
+
+    private volatile ZkLockListener lockListener = lock -> logger.warn("lock {} lost, zookeeper session expired", this);
+
+    private final ZkPrimitiveSupport zkPrimitiveSupport;
+
+    public ZkMultiLock(Collection<String> lockNames, String connectString) throws IOException, InterruptedException, KeeperException {
+        super(connectString);
+        Preconditions.checkNotNull(lockNames, "lockNames null");
+        Preconditions.checkArgument(!lockNames.isEmpty(), "lockNames empty");
+        for (String lockName : new TreeSet<>(lockNames)) {
+            Preconditions.checkArgument(!lockName.contains("/"), "lockName invalid");
+            String lockPath = AbstractZkLock.NAMESPACE + "/" + lockName;
+            lockPaths.add(lockPath);
+            childrenCaches.add(session.getChildrenCache(lockPath));
+        }
+        this.metricPath = String.join(",", lockPaths);
+        this.zkPrimitiveSupport = new ZkPrimitiveSupport(this);
+
+        checkState();
+        ZkUtils.createPersist(zk, AbstractZkLock.NAMESPACE);
+        for (String lockPath : lockPaths)
+            ZkUtils.createPersist(zk, lockPath);
+    }
+
+    @Override
+    public synchronized void lock() {
+        while (true) {
+            try {
+                lockInterruptibly();
+                return;
+            } catch (InterruptedException ignore) { }
+        }
+    }
+
+    @Override
+    public synchronized void lockInterruptibly() throws InterruptedException {
+        if (reenter())
+            return;
+        while (locked)
+            wait();
+        checkState();
+        ZkOperation op = beginOperation(ZkMetric.LOCK_WAIT, metricPath);
+        try {
+            acquire(null);
+            op.end();
+        } catch (InterruptedException e) {
+            op.end(ZkMetric.LOCK_WAIT_FAILED);
+            release();
+            throw e;
+        } catch (KeeperException e) {
+            op.end(ZkMetric.LOCK_WAIT_FAILED);
+            release();
+            throw new RuntimeException(e);
+        } catch (TimeoutException e) {
+            //never happen
+        }
+    }
+
+    @Override
+    public synchronized boolean tryLock() {
+        if (reenter())
+            return true;
+        if (locked)
+            return false;
+        checkState();
+        ZkOperation op = beginOperation(ZkMetric.LOCK_WAIT, metricPath);
+        try {
+            while (true) {
+                try {
+                    if (hasContender()) {
+                        op.end(ZkMetric.LOCK_WAIT_FAILED);
+                        return false;
+                    }
+                    prepareLock();
+                    if (findWaitTargets().isEmpty() && acquired()) {
+                        op.end();
+                        return true;
+                    }
+                    op.end(ZkMetric.LOCK_WAIT_FAILED);
+                    release();
+                    return false;
+                } catch (InterruptedException ignore) { }
+            }
+        } catch (KeeperException e) {
+            op.end(ZkMetric.LOCK_WAIT_FAILED);
+            release();
+            return false;
+        }
+    }
+
+    @Override
+    public synchronized boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+        if (reenter())
+            return true;
+        long deadline = System.nanoTime() + unit.toNanos(time);
+        while (locked) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0)
+                return false;
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        checkState();
+        ZkOperation op = beginOperation(ZkMetric.LOCK_WAIT, metricPath);
+        try {
+            acquire(WaitDuration.from(TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+            op.end();
+            return true;
+        } catch (TimeoutException e) {
+            op.end(ZkMetric.LOCK_WAIT_FAILED);
+            release();
+            return false;
+        } catch (InterruptedException e) {
+            op.end(ZkMetric.LOCK_WAIT_FAILED);
+            release();
+            throw e;
+        } catch (KeeperException e) {
+            op.end(ZkMetric.LOCK_WAIT_FAILED);
+            release();
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void acquire(WaitDuration duration) throws KeeperException, InterruptedException, TimeoutException {
+        do {
+            try {
+                prepareLock();
+                List<String> waitTargets = findWaitTargets();
+                if (waitTargets.isEmpty() && acquired())
+                    return;
+                if (waitTargets.isEmpty())
+                    continue;
+
+                for (String gone : zkPrimitiveSupport.waitAnyNotExists(waitTargets, duration)) {
+                    childrenCaches.get(lockPaths.indexOf(ZkUtils.parentOf(gone)))
+                            .removed(gone.substring(gone.lastIndexOf('/') + 1));
+                }
+                getMetrics().incrementRetry(ZkMetric.LOCK_WAIT, metricPath);
+            } catch (KeeperException.SessionExpiredException e) {
+                checkState();
+            }
+        } while (true);
+    }
+
+    /**
+     * 尚未排队时，从watch未触发的子节点缓存判断是否有锁路径已被占用，有则不创建节点；
+     * 已失效的缓存不为此单独读取，创建节点后的确认会重新加载
+     */
+    private boolean hasContender() throws KeeperException, InterruptedException {
+        if (nodeNames != null)
+            return false;
+        for (ZkChildrenCache childrenCache : childrenCaches) {
+            if (childrenCache.isWatched() && childrenCache.hasChildren(null))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * 尚未排队，或节点已随过期的会话删除时，在一个multi事务中为每个锁路径创建锁节点
+     */
+    private void prepareLock() throws KeeperException, InterruptedException {
+        if (nodeNames != null && nodeGeneration == session.getGeneration())
+            return;
+        List<String> prefixes = new ArrayList<>(lockPaths.size());
+        for (String lockPath : lockPaths)
+            prefixes.add(lockPath + "/");
+        nodeGeneration = session.getGeneration();
+        nodeNames = ZkUtils.createTempAndGetSeqs(zk, prefixes, ZkLockNodeInfo.encode());
+        for (int i = 0; i < lockPaths.size(); i++) {
+            childrenCaches.get(i).created(nodeNames.get(i));
+            trackEphemeral(getNodePath(i));
+        }
+    }
+
+    /**
+     * @return 各锁路径下需要等待的前一个节点的完整路径，为空时表示不需要等待
+     */
+    private List<String> findWaitTargets() throws KeeperException, InterruptedException {
+        List<String> targets = new ArrayList<>();
+        for (int i = 0; i < lockPaths.size(); i++) {
+            String nodeName = nodeNames.get(i);
+            String target = childrenCaches.get(i).lower(nodeName);
+            if (!target.equals(nodeName))
+                targets.add(lockPaths.get(i) + "/" + target);
+        }
+        return targets;
+    }
+
+    /**
+     * 锁节点仍属于当前会话时，获取锁成功
+     */
+    private boolean acquired() {
+        if (nodeGeneration != session.getGeneration())
+            return false;
+        locked = true;
+        lockedAt = System.nanoTime();
+        owner = Thread.currentThread();
+        holdCount = 1;
+        return true;
+    }
+
+    private boolean reenter() {
+        if (locked && owner == Thread.currentThread()) {
+            holdCount++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 减少持有计数，最外层释放时在一个multi事务中删除所有锁节点
+     * @throws IllegalMonitorStateException 锁由其它线程持有
+     */
+    @Override
+    public synchronized void unlock() {
+        if (locked) {
+            if (owner != Thread.currentThread())
+                throw new IllegalMonitorStateException("lock is held by " + owner.getName());
+            if (--holdCount > 0)
+                return;
+        }
+        release();
+    }
+
+    private void release() {
+        if (locked) {
+            locked = false;
+            owner = null;
+            holdCount = 0;
+            notifyAll();
+            getMetrics().recordTime(ZkMetric.LOCK_HOLD, metricPath, System.nanoTime() - lockedAt);
+        }
+        if (nodeNames == null)
+            return;
+        checkState();
+
+        //会话已重建时，旧节点已随旧会话删除
+        if (nodeGeneration == session.getGeneration()) {
+            List<String> paths = new ArrayList<>(lockPaths.size());
+            for (int i = 0; i < lockPaths.size(); i++)
+                paths.add(getNodePath(i));
+            boolean[] deleted;
+            try {
+                deleted = ZkUtils.deleteNodesIgnoreInterrupt(zk, paths);
+            } catch (KeeperException e) {
+                throw new RuntimeException(e);
+            }
+            for (int i = 0; i < paths.size(); i++) {
+                if (deleted[i])
+                    childrenCaches.get(i).deleted(nodeNames.get(i));
+                untrackEphemeral(paths.get(i));
+            }
+        }
+        nodeNames = null;
+    }
+
+    private String getNodePath(int i) {
+        return lockPaths.get(i) + "/" + nodeNames.get(i);
+    }
+
+    public synchronized boolean isHeldByCurrentThread() {
+        return locked && owner == Thread.currentThread();
+    }
+
+    @Override
+    protected void onSessionExpired() {
+        if (!locked)
+            return;
+        try {
+            lockListener.onLockLost(this);
+        } catch (Throwable e) {
+            logger.error("error on ZkLockListener.onLockLost()", e);
+        }
+    }
+
+    public void setLockListener(ZkLockListener lockListener) {
+        Preconditions.checkNotNull(lockListener, "lockListener null");
+        this.lockListener = lockListener;
+    }
+
+    @Override
+    public Condition newCondition() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String toString() {
+        return metricPath;
+    }
+}
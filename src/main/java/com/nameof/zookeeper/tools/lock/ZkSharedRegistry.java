@@ -0,0 +1,107 @@
+package com.nameof.zookeeper.tools.lock;
+
+import org.apache.zookeeper.KeeperException;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * <p>进程内按key共享的对象注册表，引用计数归零时由调用方销毁
+ * <p>创建和销毁都在锁外进行，同一个key同一时间只有一个线程创建，其它线程等待其结果，
+ * 某个key的创建阻塞(如连接不可达)不影响其它key的获取和释放
+ * <p>thread-safe
+ * @Author: chengpan
+ * @Date: 2018/12/18
+ */
+class ZkSharedRegistry<T> {
+
+    interface Factory<T> {
+        T create() throws IOException, InterruptedException, KeeperException;
+    }
+
+    private final Map<String, Entry<T>> entries = new HashMap<>();
+
+    /**
+     * 获取key对应的共享对象并增加引用，不存在时在锁外创建
+     * @param key
+     * @param factory
+     * @return
+     */
+    T acquire(String key, Factory<T> factory) throws IOException, InterruptedException, KeeperException {
+        while (true) {
+            Entry<T> entry;
+            synchronized (this) {
+                entry = entries.get(key);
+                if (entry == null) {
+                    entry = new Entry<>();
+                    entries.put(key, entry);
+                    return create(key, entry, factory);
+                }
+                if (entry.value != null) {
+                    entry.refCount++;
+                    return entry.value;
+                }
+            }
+            //等待正在进行的创建，之后重新获取，期间可能已被释放
+            try {
+                entry.created.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                //创建线程被中断，由当前线程重试
+                if (cause instanceof InterruptedException)
+                    continue;
+                if (cause instanceof IOException)
+                    throw (IOException) cause;
+                if (cause instanceof KeeperException)
+                    throw (KeeperException) cause;
+                throw (RuntimeException) cause;
+            }
+        }
+    }
+
+    private T create(String key, Entry<T> entry, Factory<T> factory) throws IOException, InterruptedException, KeeperException {
+        T value;
+        try {
+            value = factory.create();
+        } catch (IOException | InterruptedException | KeeperException | RuntimeException e) {
+            synchronized (this) {
+                entries.remove(key);
+            }
+            entry.created.completeExceptionally(e);
+            throw e;
+        }
+        synchronized (this) {
+            entry.value = value;
+            entry.refCount = 1;
+        }
+        entry.created.complete(value);
+        return value;
+    }
+
+    /**
+     * 减少key对应的共享对象的引用
+     * @param key
+     * @param value {@link #acquire(String, Factory)}返回的对象
+     * @return 引用归零时返回true，对象已从注册表移除，由调用方在锁外销毁
+     */
+    synchronized boolean release(String key, T value) {
+        Entry<T> entry = entries.get(key);
+        if (entry == null || entry.value != value || --entry.refCount > 0)
+            return false;
+        entries.remove(key);
+        return true;
+    }
+
+    private static class Entry<T> {
+
+        private final CompletableFuture<T> created = new CompletableFuture<>();
+
+        /** 创建完成前为null，受注册表锁保护 */
+        private T value;
+
+        private int refCount;
+    }
+}
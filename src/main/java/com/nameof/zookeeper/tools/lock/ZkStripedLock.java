@@ -0,0 +1,193 @@
+package com.nameof.zookeeper.tools.lock;
+
+import com.google.common.base.Preconditions;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import org.apache.zookeeper.KeeperException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * <p>分段的分布式排它锁，把任意数量的key散列到固定数量的段上，每个段是一个{@link ReentrantZkLock}，
+ * 锁路径为/zklock/lockName-i。zookeeper上的持久节点数量只与段数有关，所有段共享同一个会话
+ * <p>key的hashCode在所有JVM中必须一致(如String、Long)，否则同一个key在不同JVM上会映射到不同的段
+ * <p>获取多个key时按段的序号升序获取，释放时倒序，不同客户端同时获取多个key不会死锁
+ * <p>同一个JVM内映射到同一个段的key共享一个锁实例，彼此在本地互斥；一个线程在zookeeper上排队时，
+ * 同一段上其它线程的{@link Lock#tryLock()}立即失败，{@link Lock#tryLock(long, TimeUnit)}在超时时间内返回，见{@link AbstractZkLock}
+ * <p>thread-safe
+ * @Author: chengpan
+ * @Date: 2018/12/17
+ */
+public class ZkStripedLock {
+
+    private static final HashFunction HASH = Hashing.murmur3_32();
+
+    private final List<ReentrantZkLock> stripes;
+
+    public ZkStripedLock(String lockName, String connectString, int stripes) throws IOException, InterruptedException, KeeperException {
+        Preconditions.checkNotNull(lockName, "lockName null");
+        Preconditions.checkArgument(stripes > 0, "stripes invalid");
+        List<ReentrantZkLock> list = new ArrayList<>(stripes);
+        try {
+            for (int i = 0; i < stripes; i++)
+                list.add(new ReentrantZkLock(lockName + "-" + i, connectString));
+        } catch (IOException | InterruptedException | KeeperException | RuntimeException e) {
+            list.forEach(ReentrantZkLock::destory);
+            throw e;
+        }
+        this.stripes = Collections.unmodifiableList(list);
+    }
+
+    /**
+     * @param key
+     * @return key所在段的锁
+     */
+    public Lock get(Object key) {
+        return stripes.get(indexOf(key));
+    }
+
+    /**
+     * @param keys
+     * @return keys所在的各个段的锁，按段的序号升序且不重复
+     */
+    public List<Lock> bulkGet(Iterable<?> keys) {
+        TreeSet<Integer> indexes = new TreeSet<>();
+        for (Object key : keys)
+            indexes.add(indexOf(key));
+        List<Lock> locks = new ArrayList<>(indexes.size());
+        for (int index : indexes)
+            locks.add(stripes.get(index));
+        return locks;
+    }
+
+    /**
+     * @param keys
+     * @return 同时锁定keys所在所有段的锁，按段的序号升序获取、倒序释放
+     */
+    public Lock getAll(Iterable<?> keys) {
+        return new MultiStripeLock(bulkGet(keys));
+    }
+
+    public int indexOf(Object key) {
+        Preconditions.checkNotNull(key, "key null");
+        return Math.floorMod(HASH.hashInt(key.hashCode()).asInt(), stripes.size());
+    }
+
+    public int size() {
+        return stripes.size();
+    }
+
+    public void setLockListener(ZkLockListener lockListener) {
+        for (ReentrantZkLock stripe : stripes)
+            stripe.setLockListener(lockListener);
+    }
+
+    public void destory() {
+        for (ReentrantZkLock stripe : stripes)
+            stripe.destory();
+    }
+
+    /**
+     * 多个段组成的锁，获取失败时倒序释放已获取的段
+     */
+    private static class MultiStripeLock implements Lock {
+
+        private final List<Lock> locks;
+
+        MultiStripeLock(List<Lock> locks) {
+            this.locks = locks;
+        }
+
+        @Override
+        public void lock() {
+            int acquired = 0;
+            try {
+                for (Lock lock : locks) {
+                    lock.lock();
+                    acquired++;
+                }
+            } finally {
+                if (acquired < locks.size())
+                    unlock(acquired);
+            }
+        }
+
+        @Override
+        public void lockInterruptibly() throws InterruptedException {
+            int acquired = 0;
+            try {
+                for (Lock lock : locks) {
+                    lock.lockInterruptibly();
+                    acquired++;
+                }
+            } finally {
+                if (acquired < locks.size())
+                    unlock(acquired);
+            }
+        }
+
+        @Override
+        public boolean tryLock() {
+            int acquired = 0;
+            for (Lock lock : locks) {
+                if (!lock.tryLock()) {
+                    unlock(acquired);
+                    return false;
+                }
+                acquired++;
+            }
+            return true;
+        }
+
+        @Override
+        public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+            long deadline = System.nanoTime() + unit.toNanos(time);
+            int acquired = 0;
+            try {
+                for (Lock lock : locks) {
+                    if (!lock.tryLock(deadline - System.nanoTime(), TimeUnit.NANOSECONDS))
+                        return false;
+                    acquired++;
+                }
+                return true;
+            } finally {
+                if (acquired < locks.size())
+                    unlock(acquired);
+            }
+        }
+
+        @Override
+        public void unlock() {
+            unlock(locks.size());
+        }
+
+        /**
+         * 倒序释放前count个段
+         */
+        private void unlock(int count) {
+            RuntimeException error = null;
+            for (int i = count - 1; i >= 0; i--) {
+                try {
+                    locks.get(i).unlock();
+                } catch (RuntimeException e) {
+                    if (error == null)
+                        error = e;
+                }
+            }
+            if (error != null)
+                throw error;
+        }
+
+        @Override
+        public Condition newCondition() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
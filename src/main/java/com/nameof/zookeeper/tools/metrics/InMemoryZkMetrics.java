@@ -0,0 +1,109 @@
+package com.nameof.zookeeper.tools.metrics;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>在内存中按(指标, 路径)聚合的实现，耗时和调用次数使用{@link ZkHistogram}记录
+ * <pre>
+ *     InMemoryZkMetrics metrics = new InMemoryZkMetrics();
+ *     ZkMetricsRegistry.setMetrics(metrics);
+ *     ...
+ *     metrics.getTime(ZkMetric.LOCK_WAIT, "/zklock/test").getValueAtPercentile(99);
+ * </pre>
+ * <p>thread-safe
+ * @Author: chengpan
+ * @Date: 2018/12/14
+ */
+public class InMemoryZkMetrics implements ZkMetrics {
+
+    private final Map<Key, ZkHistogram> times = new ConcurrentHashMap<>();
+
+    private final Map<Key, ZkHistogram> calls = new ConcurrentHashMap<>();
+
+    private final Map<Key, LongAdder> retries = new ConcurrentHashMap<>();
+
+    @Override
+    public void recordTime(ZkMetric metric, String path, long nanos) {
+        times.computeIfAbsent(new Key(metric, path), k -> new ZkHistogram()).record(nanos);
+    }
+
+    @Override
+    public void recordZkCalls(ZkMetric metric, String path, long calls) {
+        this.calls.computeIfAbsent(new Key(metric, path), k -> new ZkHistogram()).record(calls);
+    }
+
+    @Override
+    public void incrementRetry(ZkMetric metric, String path) {
+        retries.computeIfAbsent(new Key(metric, path), k -> new LongAdder()).increment();
+    }
+
+    /**
+     * @return 耗时直方图，单位纳秒，没有记录时返回空直方图
+     */
+    public ZkHistogram getTime(ZkMetric metric, String path) {
+        return times.getOrDefault(new Key(metric, path), new ZkHistogram());
+    }
+
+    /**
+     * @return 每次操作的zookeeper调用次数直方图，没有记录时返回空直方图
+     */
+    public ZkHistogram getZkCalls(ZkMetric metric, String path) {
+        return calls.getOrDefault(new Key(metric, path), new ZkHistogram());
+    }
+
+    public long getRetries(ZkMetric metric, String path) {
+        LongAdder adder = retries.get(new Key(metric, path));
+        return adder == null ? 0 : adder.sum();
+    }
+
+    public void reset() {
+        times.clear();
+        calls.clear();
+        retries.clear();
+    }
+
+    /**
+     * @return 所有指标的文本汇总，每行一个(指标, 路径)
+     */
+    public String report() {
+        Map<String, StringBuilder> lines = new TreeMap<>();
+        times.forEach((k, h) -> line(lines, k).append(" time(ns)[").append(h).append(']'));
+        calls.forEach((k, h) -> line(lines, k).append(" zkCalls[").append(h).append(']'));
+        retries.forEach((k, r) -> line(lines, k).append(" retries=").append(r.sum()));
+        StringBuilder sb = new StringBuilder();
+        lines.values().forEach(l -> sb.append(l).append('\n'));
+        return sb.toString();
+    }
+
+    private static StringBuilder line(Map<String, StringBuilder> lines, Key key) {
+        String name = key.metric + " " + key.path;
+        return lines.computeIfAbsent(name, StringBuilder::new);
+    }
+
+    private static class Key {
+        private final ZkMetric metric;
+        private final String path;
+
+        Key(ZkMetric metric, String path) {
+            this.metric = metric;
+            this.path = path;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key key = (Key) o;
+            return metric == key.metric && Objects.equals(path, key.path);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(metric, path);
+        }
+    }
+}
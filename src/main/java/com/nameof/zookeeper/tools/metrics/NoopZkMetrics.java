@@ -0,0 +1,22 @@
+package com.nameof.zookeeper.tools.metrics;
+
+/**
+ * 默认实现，不记录任何指标
+ * @Author: chengpan
+ * @Date: 2018/12/14
+ */
+public class NoopZkMetrics implements ZkMetrics {
+
+    public static final NoopZkMetrics INSTANCE = new NoopZkMetrics();
+
+    private NoopZkMetrics() { }
+
+    @Override
+    public void recordTime(ZkMetric metric, String path, long nanos) { }
+
+    @Override
+    public void recordZkCalls(ZkMetric metric, String path, long calls) { }
+
+    @Override
+    public void incrementRetry(ZkMetric metric, String path) { }
+}
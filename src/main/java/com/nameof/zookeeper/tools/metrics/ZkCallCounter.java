@@ -0,0 +1,21 @@
+package com.nameof.zookeeper.tools.metrics;
+
+/**
+ * 统计当前线程发起的zookeeper调用次数，由会话的zookeeper客户端在每次调用时累加，
+ * {@link ZkOperation}通过前后差值得到一次操作的调用次数
+ * <p>异步回调中发起的调用计入回调所在的线程
+ * @Author: chengpan
+ * @Date: 2018/12/14
+ */
+public class ZkCallCounter {
+
+    private static final ThreadLocal<long[]> calls = ThreadLocal.withInitial(() -> new long[1]);
+
+    public static void increment() {
+        calls.get()[0]++;
+    }
+
+    public static long get() {
+        return calls.get()[0];
+    }
+}
@@ -0,0 +1,193 @@
+package com.nameof.zookeeper.tools.metrics;
+
+import com.google.common.base.Preconditions;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>锁竞争采样分析，按总等待时间(包括获取失败的等待)列出当前JVM内最热的锁，作为装饰器包装其它指标实现：
+ * <pre>
+ *     ZkLockProfiler profiler = new ZkLockProfiler(ZkMetricsRegistry.getMetrics(), 10);
+ *     ZkMetricsRegistry.setMetrics(profiler);
+ *     ...
+ *     profiler.getHottest(10);
+ * </pre>
+ * <p>获取锁成功时上报的{@link ZkMetric#LOCK_WAIT}和获取失败(tryLock失败、超时、被中断)时上报的{@link ZkMetric#LOCK_WAIT_FAILED}
+ * 以1/sampleRate的概率被采样，总等待时间和次数按采样率放大估计，未被采样的记录只多一次随机数判断；
+ * 所有记录原样转发给被包装的实现
+ * <p>竞争激烈到大部分调用方超时放弃的锁，成功的等待很少，失败的等待同样计入总等待时间，不会因此排在后面
+ * <p>thread-safe
+ * @Author: chengpan
+ * @Date: 2018/12/22
+ */
+public class ZkLockProfiler implements ZkMetrics {
+
+    private final ZkMetrics delegate;
+
+    private final int sampleRate;
+
+    /** 锁路径 -> 采样到的等待 */
+    private final Map<String, Samples> waits = new ConcurrentHashMap<>();
+
+    public ZkLockProfiler() {
+        this(NoopZkMetrics.INSTANCE, 1);
+    }
+
+    /**
+     * @param delegate 被包装的指标实现
+     * @param sampleRate 每sampleRate次等待平均采样一次，1表示全部采样
+     */
+    public ZkLockProfiler(ZkMetrics delegate, int sampleRate) {
+        Preconditions.checkNotNull(delegate, "delegate null");
+        Preconditions.checkArgument(sampleRate > 0, "sampleRate invalid");
+        this.delegate = delegate;
+        this.sampleRate = sampleRate;
+    }
+
+    @Override
+    public void recordTime(ZkMetric metric, String path, long nanos) {
+        if ((metric == ZkMetric.LOCK_WAIT || metric == ZkMetric.LOCK_WAIT_FAILED)
+                && (sampleRate == 1 || ThreadLocalRandom.current().nextInt(sampleRate) == 0))
+            waits.computeIfAbsent(path, k -> new Samples()).record(nanos, metric == ZkMetric.LOCK_WAIT_FAILED);
+        delegate.recordTime(metric, path, nanos);
+    }
+
+    @Override
+    public void recordZkCalls(ZkMetric metric, String path, long calls) {
+        delegate.recordZkCalls(metric, path, calls);
+    }
+
+    @Override
+    public void incrementRetry(ZkMetric metric, String path) {
+        delegate.incrementRetry(metric, path);
+    }
+
+    /**
+     * @param n
+     * @return 按估计的总等待时间(包括获取失败的等待)从高到低排列的前n个锁
+     */
+    public List<LockWait> getHottest(int n) {
+        List<LockWait> list = new ArrayList<>(waits.size());
+        waits.forEach((path, samples) -> list.add(new LockWait(path, samples.nanos.sum() * sampleRate,
+                samples.count.sum() * sampleRate, samples.failedNanos.sum() * sampleRate,
+                samples.failedCount.sum() * sampleRate, samples.histogram)));
+        list.sort(Comparator.comparingLong(LockWait::getWaitNanos).reversed());
+        return list.size() > n ? new ArrayList<>(list.subList(0, n)) : list;
+    }
+
+    public void reset() {
+        waits.clear();
+    }
+
+    /**
+     * @return 每行一个锁，按总等待时间从高到低排列
+     */
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        for (LockWait wait : getHottest(Integer.MAX_VALUE))
+            sb.append(wait).append('\n');
+        return sb.toString();
+    }
+
+    /**
+     * 一个锁路径上采样到的等待的汇总，总量为按采样率放大后的估计值
+     */
+    public static class LockWait {
+
+        private final String path;
+
+        private final long waitNanos;
+
+        private final long count;
+
+        private final long failedWaitNanos;
+
+        private final long failedCount;
+
+        private final ZkHistogram histogram;
+
+        private LockWait(String path, long waitNanos, long count, long failedWaitNanos, long failedCount, ZkHistogram histogram) {
+            this.path = path;
+            this.waitNanos = waitNanos;
+            this.count = count;
+            this.failedWaitNanos = failedWaitNanos;
+            this.failedCount = failedCount;
+            this.histogram = histogram;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * @return 估计的总等待时间，包括获取失败的等待，纳秒
+         */
+        public long getWaitNanos() {
+            return waitNanos;
+        }
+
+        /**
+         * @return 估计的获取成功次数
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return 估计的获取失败的总等待时间，纳秒，已包含在{@link #getWaitNanos()}中
+         */
+        public long getFailedWaitNanos() {
+            return failedWaitNanos;
+        }
+
+        /**
+         * @return 估计的获取失败次数
+         */
+        public long getFailedCount() {
+            return failedCount;
+        }
+
+        /**
+         * @return 采样到的等待时间直方图，包括获取失败的等待，纳秒，随后续采样继续更新
+         */
+        public ZkHistogram getHistogram() {
+            return histogram;
+        }
+
+        @Override
+        public String toString() {
+            return path + " wait(ns)=" + waitNanos + " count=" + count + " failedWait(ns)=" + failedWaitNanos
+                    + " failedCount=" + failedCount + " [" + histogram + "]";
+        }
+    }
+
+    private static class Samples {
+
+        private final LongAdder nanos = new LongAdder();
+
+        private final LongAdder count = new LongAdder();
+
+        private final LongAdder failedNanos = new LongAdder();
+
+        private final LongAdder failedCount = new LongAdder();
+
+        private final ZkHistogram histogram = new ZkHistogram();
+
+        void record(long waitNanos, boolean failed) {
+            nanos.add(waitNanos);
+            if (failed) {
+                failedNanos.add(waitNanos);
+                failedCount.increment();
+            } else {
+                count.increment();
+            }
+            histogram.record(waitNanos);
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.nameof.zookeeper.tools.metrics;
+
+/**
+ * 原语上报的指标
+ * @Author: chengpan
+ * @Date: 2018/12/14
+ */
+public enum ZkMetric {
+    /** 从开始获取到获取锁成功的等待时间，只在获取成功时记录，失败的等待见{@link #LOCK_WAIT_FAILED} */
+    LOCK_WAIT,
+    /** 从开始获取到获取锁失败(tryLock失败、超时、被中断或出错)的等待时间 */
+    LOCK_WAIT_FAILED,
+    /** 从获取锁成功到释放锁的持有时间 */
+    LOCK_HOLD,
+    /** 从开始获取到获取信号量许可成功的等待时间，只在获取成功时记录 */
+    SEMAPHORE_ACQUIRE,
+    /** 入队耗时，不包含有界队列等待空间的时间 */
+    QUEUE_ENQUEUE,
+    /** 批量入队耗时，不包含有界队列等待空间的时间 */
+    QUEUE_ENQUEUE_BATCH,
+    /** 出队耗时，阻塞出队包含等待时间 */
+    QUEUE_DEQUEUE,
+    /** 批量出队耗时 */
+    QUEUE_DRAIN,
+    /** 进入栅栏到所有成员进入的耗时 */
+    BARRIER_ENTER,
+    /** 离开栅栏到所有成员离开的耗时 */
+    BARRIER_LEAVE,
+    /** 参与选举到成为master或standby的耗时 */
+    ELECTION_JOIN,
+    /** watch事件到达到等待者恢复执行的耗时 */
+    WATCH_WAKEUP
+}
@@ -0,0 +1,34 @@
+package com.nameof.zookeeper.tools.metrics;
+
+/**
+ * <p>指标SPI，所有原语通过{@link com.nameof.zookeeper.tools.common.ZkContext}统一上报
+ * <p>path为原语在zookeeper上的路径(锁路径、队列路径等)，用于区分同一类原语的不同实例
+ * <p>实现必须是线程安全的，且不能阻塞
+ * @Author: chengpan
+ * @Date: 2018/12/14
+ */
+public interface ZkMetrics {
+
+    /**
+     * 记录一次耗时
+     * @param metric
+     * @param path
+     * @param nanos 纳秒
+     */
+    void recordTime(ZkMetric metric, String path, long nanos);
+
+    /**
+     * 记录一次操作访问zookeeper的次数
+     * @param metric 操作对应的指标
+     * @param path
+     * @param calls
+     */
+    void recordZkCalls(ZkMetric metric, String path, long calls);
+
+    /**
+     * 记录一次竞争重试，如锁的前一个节点删除后重新检查、出队时元素已被其它消费者取走
+     * @param metric 操作对应的指标
+     * @param path
+     */
+    void incrementRetry(ZkMetric metric, String path);
+}
@@ -0,0 +1,22 @@
+package com.nameof.zookeeper.tools.metrics;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * 全局默认的指标实现，原语创建时使用，单个原语可通过{@link com.nameof.zookeeper.tools.common.ZkContext#setMetrics(ZkMetrics)}单独指定
+ * @Author: chengpan
+ * @Date: 2018/12/14
+ */
+public class ZkMetricsRegistry {
+
+    private static volatile ZkMetrics metrics = NoopZkMetrics.INSTANCE;
+
+    public static ZkMetrics getMetrics() {
+        return metrics;
+    }
+
+    public static void setMetrics(ZkMetrics metrics) {
+        Preconditions.checkNotNull(metrics, "metrics null");
+        ZkMetricsRegistry.metrics = metrics;
+    }
+}
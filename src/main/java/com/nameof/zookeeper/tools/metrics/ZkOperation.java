@@ -0,0 +1,51 @@
+package com.nameof.zookeeper.tools.metrics;
+
+/**
+ * 一次同步操作的计时，记录耗时和期间当前线程的zookeeper调用次数
+ * <p>not thread-safe，只能在发起操作的线程中使用
+ * @Author: chengpan
+ * @Date: 2018/12/14
+ */
+public class ZkOperation {
+
+    private static final ZkOperation NOOP = new ZkOperation(NoopZkMetrics.INSTANCE, null, null) {
+        @Override
+        public void end() { }
+
+        @Override
+        public void end(ZkMetric metric) { }
+    };
+
+    private final ZkMetrics metrics;
+    private final ZkMetric metric;
+    private final String path;
+    private final long startNanos;
+    private final long startCalls;
+
+    private ZkOperation(ZkMetrics metrics, ZkMetric metric, String path) {
+        this.metrics = metrics;
+        this.metric = metric;
+        this.path = path;
+        this.startNanos = System.nanoTime();
+        this.startCalls = ZkCallCounter.get();
+    }
+
+    public static ZkOperation begin(ZkMetrics metrics, ZkMetric metric, String path) {
+        if (metrics == NoopZkMetrics.INSTANCE)
+            return NOOP;
+        return new ZkOperation(metrics, metric, path);
+    }
+
+    public void end() {
+        end(metric);
+    }
+
+    /**
+     * 以另一个指标结束，如获取失败时记录为{@link ZkMetric#LOCK_WAIT_FAILED}
+     * @param metric
+     */
+    public void end(ZkMetric metric) {
+        metrics.recordTime(metric, path, System.nanoTime() - startNanos);
+        metrics.recordZkCalls(metric, path, ZkCallCounter.get() - startCalls);
+    }
+}
@@ -1,26 +1,109 @@
 package com.nameof.zookeeper.tools.queue;
 
 import com.google.common.base.Preconditions;
+import com.nameof.zookeeper.tools.common.ZkAsyncSupport;
+import com.nameof.zookeeper.tools.common.ZkChildrenCache;
 import com.nameof.zookeeper.tools.common.ZkContext;
+import com.nameof.zookeeper.tools.metrics.ZkMetric;
+import com.nameof.zookeeper.tools.metrics.ZkOperation;
 import com.nameof.zookeeper.tools.utils.ZkUtils;
+import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
 import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 /**
  * 基于zookeeper实现的基本无界队列
+ * <p>出队时无法解码的节点(批次格式错误、反序列化失败)不会交给调用方，也不留在队首阻塞所有消费者：
+ * 在一个multi事务中按读到的版本移入死信区{@link #DEAD_LETTER_NAMESPACE}/队列名，节点名为原节点名-序列号，数据不变，
+ * 记录警告日志后继续出队下一个元素；{@link #peek()}、{@link #element()}、{@link #toArray()}不移动节点，队首无法解码时抛出异常
  * @author chengpan
  */
 public abstract class AbstractZkQueue extends ZkContext implements Queue<Object>, Watcher {
 
     protected static final String NAMESPACE = "/zkqueue";
 
+    /** 无法解码的节点移入的死信区，与队列路径平级，不影响队列的子节点缓存 */
+    public static final String DEAD_LETTER_NAMESPACE = "/zkqueuedead";
+
+    /** 批量入队时一个multi事务的默认最大字节数，低于服务端jute.maxbuffer的默认值(1M) */
+    public static final int DEFAULT_BATCH_BYTES = 512 * 1024;
+
+    /** 批量入队时默认最多同时等待响应的multi事务数 */
+    public static final int DEFAULT_BATCH_WINDOW = 8;
+
+    /** 一个multi事务中最多的创建操作数 */
+    private static final int MAX_BATCH_OPS = 1000;
+
+    /** 估计的每个创建操作除路径和数据以外的请求字节数 */
+    private static final int OP_OVERHEAD = 64;
+
+    /** 批量出队时一轮最多同时发送的读取(删除)请求数 */
+    private static final int MAX_DRAIN_IN_FLIGHT = 1000;
+
+    /** 打包模式下批次节点名的前缀，其后为序列号，数据格式见{@link ZkPackedFrame} */
+    public static final String PACKED_PREFIX = "batch-";
+
     protected Serializer serializer;
 
     protected String queuePath;
 
+    protected String deadLetterPath;
+
+    protected ZkAsyncSupport zkAsyncSupport;
+
+    /** 队列路径的子节点缓存，用于查找队首元素 */
+    protected ZkChildrenCache childrenCache;
+
+    /** 出队时本地快照持有的队首元素个数 */
+    private volatile int headCandidates = 1;
+
+    /** 是否按顺序尝试快照中的候选 */
+    private volatile boolean strictFifo = true;
+
+    /** 出队候选的本地快照，按尝试顺序排列，候选用完时从子节点缓存重新加载 */
+    private final Deque<String> candidates = new ArrayDeque<>();
+
+    private volatile int batchBytes = DEFAULT_BATCH_BYTES;
+
+    private volatile int batchWindow = DEFAULT_BATCH_WINDOW;
+
+    /** 打包模式下一个批次的最大元素个数，不大于1表示不打包 */
+    private volatile int packItems = 1;
+
+    private volatile long packLingerMillis;
+
+    /** 打包模式下已入队、尚未写入zookeeper的元素 */
+    private final List<byte[]> packing = new ArrayList<>();
+
+    /** {@link #packing}编码后的字节数 */
+    private int packingBytes = ZkPackedFrame.HEADER_BYTES;
+
+    private ScheduledExecutorService packScheduler;
+
+    /** 累积时间达到{@link #packLingerMillis}时写入批次 */
+    private ScheduledFuture<?> lingerFlush;
+
+    /** 已从批次节点取出、尚未交给调用方的元素 */
+    private final Deque<Object> unpacked = new ArrayDeque<>();
+
     public AbstractZkQueue(String queueName, String connectString, Serializer serializer) throws IOException, InterruptedException, KeeperException {
         super(connectString);
         checkArgs(queueName, serializer);
@@ -35,10 +118,15 @@ public abstract class AbstractZkQueue extends ZkContext implements Queue<Object>
 
     private void init(String queueName, Serializer serializer) throws KeeperException, InterruptedException {
         this.queuePath = NAMESPACE + "/" + queueName;
+        this.deadLetterPath = DEAD_LETTER_NAMESPACE + "/" + queueName;
         this.serializer = serializer;
+        this.zkAsyncSupport = new ZkAsyncSupport(this);
+        this.childrenCache = session.getChildrenCache(queuePath);
         checkState();
         ZkUtils.createPersist(zk, NAMESPACE);
         ZkUtils.createPersist(zk, queuePath);
+        ZkUtils.createPersist(zk, DEAD_LETTER_NAMESPACE);
+        ZkUtils.createPersist(zk, deadLetterPath);
     }
 
     @Override
@@ -46,32 +134,559 @@ public abstract class AbstractZkQueue extends ZkContext implements Queue<Object>
         return offer(o);
     }
 
+    /**
+     * 通过{@link #offerAll(Collection)}批量入队，有元素失败时抛出下标最小的元素的失败原因，其它元素可能已入队
+     */
     @Override
     public boolean addAll(Collection<?> c) {
+        ZkBatchResult result = offerAll(c);
+        if (!result.isAllSucceeded()) {
+            Throwable e = result.getFailures().get(result.getFailures().firstKey());
+            if (e instanceof RuntimeException)
+                throw (RuntimeException) e;
+            throw new RuntimeException(e);
+        }
+        return true;
+    }
+
+    /**
+     * <p>批量入队：元素按顺序分组为multi事务，每个事务不超过{@link #setBatchBytes(int)}字节，通过异步API流水线发送，
+     * 最多{@link #setBatchWindow(int)}个事务同时等待响应，不再是每个元素一次网络往返
+     * <p>同一个会话的请求按发送顺序执行，批量中的元素在队列中保持原有顺序，其它生产者的元素可能插入批次之间
+     * <p>一个事务失败时其中的元素都未入队，其它事务不受影响；序列化失败只影响该元素。失败的元素在结果中按下标报告，不抛出异常
+     * <p>打包模式下先写入之前累积的元素，items直接打包为批次节点，不等待累积时间
+     * <p>不响应中断，返回前等待所有已发送的事务完成
+     * @param c
+     * @return
+     */
+    public ZkBatchResult offerAll(Collection<?> c) {
         Preconditions.checkNotNull(c);
-        for (Object o: c) {
-            this.add(o);
+        checkState();
+        List<Object> items = new ArrayList<>(c);
+        Map<Integer, Throwable> failures = new ConcurrentHashMap<>();
+        ZkOperation op = beginOperation(ZkMetric.QUEUE_ENQUEUE_BATCH, queuePath);
+        offerBatches(items, 0, failures, false);
+        op.end();
+        return new ZkBatchResult(items.size(), failures);
+    }
+
+    /**
+     * 把items按顺序分批流水线写入队列，返回前等待所有已发送的事务完成；打包模式下先写入之前累积的元素，再把items打包为批次节点
+     * @param items
+     * @param offset 失败的元素以 offset+在items中的下标 记入failures
+     * @param failures 在zookeeper事件线程中写入，必须是线程安全的
+     * @param interruptible 为true时，中断后不再发送剩余的批次，剩余元素以InterruptedException记为失败，并保留中断状态
+     */
+    void offerBatches(List<?> items, int offset, Map<Integer, Throwable> failures, boolean interruptible) {
+        int pack = packItems;
+        if (pack > 1) {
+            try {
+                synchronized (packing) {
+                    flushPacking();
+                }
+            } catch (Exception e) {
+                if (e instanceof InterruptedException)
+                    Thread.currentThread().interrupt();
+                for (int i = 0; i < items.size(); i++)
+                    failures.put(offset + i, e);
+                return;
+            }
+        }
+        BatchPipeline pipeline = new BatchPipeline(queuePath + "/" + (pack > 1 ? PACKED_PREFIX : ""), failures, interruptible);
+        List<byte[]> frame = new ArrayList<>();
+        List<Integer> frameIndexes = new ArrayList<>();
+        int frameBytes = ZkPackedFrame.HEADER_BYTES;
+        for (int i = 0; i < items.size(); i++) {
+            if (pipeline.interrupted) {
+                failures.put(offset + i, new InterruptedException());
+                continue;
+            }
+            byte[] data;
+            try {
+                data = serializer.serialize(Preconditions.checkNotNull(items.get(i)));
+            } catch (RuntimeException e) {
+                failures.put(offset + i, e);
+                continue;
+            }
+            if (pack <= 1) {
+                pipeline.add(data, Collections.singletonList(offset + i));
+                continue;
+            }
+            //超过批次字节数时先写入已累积的元素，单个元素超过时单独成为一个批次
+            if (!frame.isEmpty() && frameBytes + ZkPackedFrame.RECORD_OVERHEAD + data.length > batchBytes) {
+                pipeline.add(ZkPackedFrame.encode(frame), frameIndexes);
+                frame = new ArrayList<>();
+                frameIndexes = new ArrayList<>();
+                frameBytes = ZkPackedFrame.HEADER_BYTES;
+            }
+            frame.add(data);
+            frameIndexes.add(offset + i);
+            frameBytes += ZkPackedFrame.RECORD_OVERHEAD + data.length;
+            if (frame.size() >= pack) {
+                pipeline.add(ZkPackedFrame.encode(frame), frameIndexes);
+                frame = new ArrayList<>();
+                frameIndexes = new ArrayList<>();
+                frameBytes = ZkPackedFrame.HEADER_BYTES;
+            }
+        }
+        if (!frame.isEmpty())
+            pipeline.add(ZkPackedFrame.encode(frame), frameIndexes);
+        pipeline.finish();
+    }
+
+    /**
+     * 把节点数据按顺序分组为multi事务，每个事务不超过{@link #batchBytes}字节，最多{@link #batchWindow}个事务同时等待响应
+     */
+    private class BatchPipeline {
+
+        private final String prefix;
+
+        private final Map<Integer, Throwable> failures;
+
+        private final boolean interruptible;
+
+        private final int window = batchWindow;
+
+        private final Semaphore inFlight = new Semaphore(window);
+
+        private List<Op> ops = new ArrayList<>();
+
+        private List<Integer> indexes = new ArrayList<>();
+
+        private int bytes;
+
+        /** 等待发送窗口时被中断，之后的节点都不再发送 */
+        private boolean interrupted;
+
+        BatchPipeline(String prefix, Map<Integer, Throwable> failures, boolean interruptible) {
+            this.prefix = prefix;
+            this.failures = failures;
+            this.interruptible = interruptible;
+        }
+
+        /**
+         * @param data 一个节点的数据
+         * @param dataIndexes 节点包含的元素下标，节点未发送或事务失败时都记为失败
+         */
+        void add(byte[] data, List<Integer> dataIndexes) {
+            int size = prefix.length() + data.length + OP_OVERHEAD;
+            if (!interrupted && !ops.isEmpty() && (bytes + size > batchBytes || ops.size() >= MAX_BATCH_OPS)) {
+                interrupted = !sendBatch(ops, indexes, inFlight, failures, interruptible);
+                ops = new ArrayList<>();
+                indexes = new ArrayList<>();
+                bytes = 0;
+            }
+            if (interrupted) {
+                for (Integer index : dataIndexes)
+                    failures.put(index, new InterruptedException());
+                return;
+            }
+            ops.add(Op.create(prefix, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT_SEQUENTIAL));
+            indexes.addAll(dataIndexes);
+            bytes += size;
+        }
+
+        /**
+         * 发送剩余的事务并等待所有事务完成
+         */
+        void finish() {
+            if (!ops.isEmpty() && !interrupted)
+                interrupted = !sendBatch(ops, indexes, inFlight, failures, interruptible);
+            inFlight.acquireUninterruptibly(window);
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 等待发送窗口后异步发送一个multi事务，会话正在重建时等待重建完成，在新会话上发送
+     * @return 等待时被中断返回false，事务未发送，其中的元素已记为失败
+     */
+    private boolean sendBatch(List<Op> ops, List<Integer> indexes, Semaphore inFlight, Map<Integer, Throwable> failures, boolean interruptible) {
+        try {
+            if (interruptible)
+                inFlight.acquire();
+            else
+                inFlight.acquireUninterruptibly();
+        } catch (InterruptedException e) {
+            for (Integer index : indexes)
+                failures.put(index, e);
+            return false;
         }
+        try {
+            if (interruptible)
+                session.awaitRecovery(-1, TimeUnit.MILLISECONDS);
+            else
+                session.whenRecovered().join();
+        } catch (InterruptedException e) {
+            inFlight.release();
+            for (Integer index : indexes)
+                failures.put(index, e);
+            return false;
+        }
+        ZooKeeper zk = this.zk;
+        zk.multi(ops, (rc, path, ctx, results) -> {
+            if (rc != KeeperException.Code.OK.intValue()) {
+                KeeperException e = KeeperException.create(KeeperException.Code.get(rc));
+                for (Integer index : indexes)
+                    failures.put(index, e);
+            }
+            inFlight.release();
+        }, null);
         return true;
     }
 
+    /**
+     * 批量入队时一个multi事务的最大字节数，必须小于服务端的jute.maxbuffer，单个元素超过时单独成为一个事务
+     * @param batchBytes
+     */
+    public void setBatchBytes(int batchBytes) {
+        Preconditions.checkArgument(batchBytes > 0, "batchBytes invalid");
+        this.batchBytes = batchBytes;
+    }
+
+    /**
+     * 批量入队时最多同时等待响应的multi事务数
+     * @param batchWindow
+     */
+    public void setBatchWindow(int batchWindow) {
+        Preconditions.checkArgument(batchWindow > 0, "batchWindow invalid");
+        this.batchWindow = batchWindow;
+    }
+
+    /**
+     * 打包模式下元素先在本地累积，批次写满或累积时间到达时才写入zookeeper，见{@link #setPacking(int, long, TimeUnit)}
+     */
     @Override
     public boolean offer(Object o) {
         Preconditions.checkNotNull(o);
         checkState();
+        ZkOperation op = beginOperation(ZkMetric.QUEUE_ENQUEUE, queuePath);
         try {
-            ZkUtils.crecatePersistSeq(zk, queuePath + "/", serializer.serialize(o));
+            enqueue(o);
             return true;
         } catch (Exception e) {
             throw new RuntimeException(e);
+        } finally {
+            op.end();
+        }
+    }
+
+    /**
+     * 写入一个元素，打包模式下在本地累积
+     * @param o
+     */
+    protected void enqueue(Object o) throws KeeperException, InterruptedException {
+        byte[] data = serializer.serialize(o);
+        if (packItems > 1)
+            pack(data);
+        else
+            childrenCache.created(ZkUtils.crecatePersistSeq(zk, queuePath + "/", data));
+    }
+
+    /**
+     * <p>打包模式：生产者在本地累积最多maxItems个元素，或从第一个元素起累积linger时间后，把它们编码为一个批次节点写入队列，
+     * 批次也不超过{@link #setBatchBytes(int)}字节。大量小元素不再各自占用一个节点，减少zookeeper的内存、快照和列出子节点的开销
+     * <p>批次节点名为{@link #PACKED_PREFIX}加序列号，数据格式见{@link ZkPackedFrame}；消费者总是按节点名识别批次并拆开，
+     * 逐个交给调用方，与是否开启打包无关，同一个队列可以混合打包和不打包的生产者
+     * <p>代价：
+     * <ul>
+     *     <li>{@link #offer(Object)}返回时元素可能还在本地，{@link #flush()}或{@link #destory()}时写入，进程崩溃时丢失</li>
+     *     <li>消费者一次取走整个批次，尚未交给调用方的元素保存在本地，进程崩溃时丢失；多个消费者之间以批次为单位分配</li>
+     *     <li>{@link #size()}中一个批次只计为一个元素</li>
+     *     <li>{@link #offerAsync(Object)}不打包，直接写入单个元素节点</li>
+     * </ul>
+     * 累积时间到达时在后台线程写入，失败时保留元素并在下一个累积时间后重试
+     * @param maxItems 不大于1表示关闭打包，关闭时写入已累积的元素
+     * @param linger 累积时间，0表示只在批次写满或调用{@link #flush()}时写入
+     * @param unit
+     */
+    public void setPacking(int maxItems, long linger, TimeUnit unit) {
+        Preconditions.checkArgument(linger >= 0, "linger invalid");
+        checkState();
+        synchronized (packing) {
+            this.packItems = maxItems;
+            this.packLingerMillis = unit.toMillis(linger);
+            if (maxItems > 1 && packScheduler == null) {
+                packScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread t = new Thread(r, "zk-queue-packer");
+                    t.setDaemon(true);
+                    return t;
+                });
+            }
+            if (maxItems <= 1)
+                flush();
+        }
+    }
+
+    /**
+     * 打包模式下立即写入本地累积的元素
+     */
+    public void flush() {
+        checkState();
+        synchronized (packing) {
+            try {
+                flushPacking();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    private void pack(byte[] data) throws KeeperException, InterruptedException {
+        synchronized (packing) {
+            int size = ZkPackedFrame.RECORD_OVERHEAD + data.length;
+            if (!packing.isEmpty() && packingBytes + size > batchBytes)
+                flushPacking();
+            packing.add(data);
+            packingBytes += size;
+            if (packing.size() >= packItems)
+                flushPacking();
+            else if (lingerFlush == null && packLingerMillis > 0)
+                lingerFlush = packScheduler.schedule(this::lingerFlush, packLingerMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void lingerFlush() {
+        synchronized (packing) {
+            lingerFlush = null;
+            try {
+                flushPacking();
+            } catch (Exception e) {
+                logger.warn("flush packed items of " + queuePath + " failed", e);
+                if (!packing.isEmpty() && packLingerMillis > 0 && packScheduler != null)
+                    lingerFlush = packScheduler.schedule(this::lingerFlush, packLingerMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * 把累积的元素写为一个批次节点，调用方持有{@link #packing}的锁，写入期间其它生产者等待，批次之间保持入队顺序
+     */
+    private void flushPacking() throws KeeperException, InterruptedException {
+        if (packing.isEmpty())
+            return;
+        ZkOperation op = beginOperation(ZkMetric.QUEUE_ENQUEUE_BATCH, queuePath);
+        try {
+            childrenCache.created(ZkUtils.crecatePersistSeq(zk, queuePath + "/" + PACKED_PREFIX, ZkPackedFrame.encode(packing)));
+        } finally {
+            op.end();
+        }
+        packing.clear();
+        packingBytes = ZkPackedFrame.HEADER_BYTES;
+        if (lingerFlush != null) {
+            lingerFlush.cancel(false);
+            lingerFlush = null;
+        }
+    }
+
+    /**
+     * 节点是否为打包模式写入的批次
+     */
+    protected static boolean isPacked(String nodeName) {
+        return nodeName.startsWith(PACKED_PREFIX);
+    }
+
+    /**
+     * 反序列化节点中的元素，批次节点按{@link ZkPackedFrame}拆开
+     * @param nodeName
+     * @param data
+     * @return 按入队顺序排列的元素
+     */
+    protected List<Object> unpack(String nodeName, byte[] data) {
+        if (!isPacked(nodeName))
+            return Collections.singletonList(data == null ? null : serializer.deserialize(data));
+        List<byte[]> records = ZkPackedFrame.decode(data);
+        List<Object> items = new ArrayList<>(records.size());
+        for (byte[] record : records)
+            items.add(serializer.deserialize(record));
+        return items;
+    }
+
+    /**
+     * 把无法解码的节点在一个multi事务中按读到的版本移入死信区，数据不变
+     * @param nodeName
+     * @param data 读到的数据
+     * @param version 读到的版本，-1表示不检查
+     * @param cause 解码失败的原因
+     * @return 是否由本次调用移走，已被其它消费者取走或移走时为false
+     */
+    protected CompletableFuture<Boolean> moveToDeadLetterAsync(String nodeName, byte[] data, int version, RuntimeException cause) {
+        List<Op> ops = Arrays.asList(
+                Op.create(deadLetterPath + "/" + nodeName + "-", data, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT_SEQUENTIAL),
+                Op.delete(queuePath + "/" + nodeName, version));
+        return zkAsyncSupport.multi(ops).handle((results, e) -> {
+            if (e == null) {
+                childrenCache.deleted(nodeName);
+                logger.warn("move undecodable " + queuePath + "/" + nodeName + " to " + deadLetterPath, cause);
+                return true;
+            }
+            Throwable error = ZkAsyncSupport.unwrap(e);
+            if (error instanceof KeeperException.NoNodeException || error instanceof KeeperException.BadVersionException) {
+                childrenCache.removed(nodeName);
+                return false;
+            }
+            throw new CompletionException(error);
+        });
+    }
+
+    /**
+     * 同步移入死信区，见{@link #moveToDeadLetterAsync(String, byte[], int, RuntimeException)}；
+     * 事务发出后不响应中断，节点不会因为中断而停留在队首
+     */
+    protected boolean moveToDeadLetter(String nodeName, byte[] data, int version, RuntimeException cause) throws KeeperException {
+        CompletableFuture<Boolean> moved = moveToDeadLetterAsync(nodeName, data, version, cause);
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return moved.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    Throwable error = ZkAsyncSupport.unwrap(e.getCause());
+                    if (error instanceof KeeperException)
+                        throw (KeeperException) error;
+                    throw new RuntimeException(error);
+                }
+            }
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 把批次中尚未交给调用方的元素保存在本地
+     */
+    void keepUnpacked(List<Object> items) {
+        if (items.isEmpty())
+            return;
+        synchronized (unpacked) {
+            unpacked.addAll(items);
+        }
+    }
+
+    private Object pollUnpacked() {
+        synchronized (unpacked) {
+            return unpacked.poll();
+        }
+    }
+
+    /**
+     * 取出本地保存的批次元素加入c
+     * @return 取出的元素个数
+     */
+    int drainUnpacked(Collection<? super Object> c, int maxElements) {
+        int taken = 0;
+        synchronized (unpacked) {
+            while (taken < maxElements && !unpacked.isEmpty()) {
+                c.add(unpacked.poll());
+                taken++;
+            }
+        }
+        return taken;
+    }
+
+    /**
+     * 写入本地累积的元素后卸载
+     */
+    @Override
+    public void destory() {
+        synchronized (packing) {
+            try {
+                flushPacking();
+            } catch (Exception e) {
+                logger.warn("flush packed items of " + queuePath + " failed, " + packing.size() + " items lost", e);
+            }
+            if (packScheduler != null) {
+                packScheduler.shutdownNow();
+                packScheduler = null;
+            }
         }
+        super.destory();
+    }
+
+    /**
+     * 异步入队，不占用调用线程
+     * @param o
+     * @return
+     */
+    public CompletableFuture<Boolean> offerAsync(Object o) {
+        Preconditions.checkNotNull(o);
+        checkState();
+        long start = System.nanoTime();
+        return zkAsyncSupport.create(queuePath + "/", serializer.serialize(o), CreateMode.PERSISTENT_SEQUENTIAL)
+                .thenApply(path -> {
+                    getMetrics().recordTime(ZkMetric.QUEUE_ENQUEUE, queuePath, System.nanoTime() - start);
+                    return true;
+                });
+    }
+
+    /**
+     * 异步出队，队列为空时以null完成
+     * @return
+     */
+    public CompletableFuture<Object> pollAsync() {
+        checkState();
+        Object o = pollUnpacked();
+        if (o != null)
+            return CompletableFuture.completedFuture(o);
+        CompletableFuture<Object> result = new CompletableFuture<>();
+        long start = System.nanoTime();
+        result.thenRun(() -> getMetrics().recordTime(ZkMetric.QUEUE_DEQUEUE, queuePath, System.nanoTime() - start));
+        pollAsyncStep(result);
+        return result;
+    }
+
+    private void pollAsyncStep(CompletableFuture<Object> result) {
+        zkAsyncSupport.getChildren(queuePath, null).thenCompose(children -> {
+            if (children.isEmpty()) {
+                result.complete(null);
+                return CompletableFuture.completedFuture(null);
+            }
+            String min = Collections.min(children, Comparator.comparingLong(ZkUtils::parseSequence));
+            String minPath = queuePath + "/" + min;
+            return zkAsyncSupport.getData(minPath).thenCompose(data -> {
+                //删除前解码，无法解码的节点移入死信区后重试
+                List<Object> items;
+                try {
+                    items = unpack(min, data);
+                } catch (RuntimeException e) {
+                    return moveToDeadLetterAsync(min, data, -1, e)
+                            .thenRun(() -> ZkAsyncSupport.execute(() -> pollAsyncStep(result)));
+                }
+                return zkAsyncSupport.delete(minPath, -1).thenAccept(v -> {
+                    keepUnpacked(items.subList(1, items.size()));
+                    result.complete(items.get(0));
+                });
+            });
+        }).whenComplete((v, e) -> {
+            if (e == null)
+                return;
+            Throwable cause = ZkAsyncSupport.unwrap(e);
+            //已被其它消费者取走，或会话已重建，重试
+            if (cause instanceof KeeperException.NoNodeException || cause instanceof KeeperException.SessionExpiredException) {
+                getMetrics().incrementRetry(ZkMetric.QUEUE_DEQUEUE, queuePath);
+                ZkAsyncSupport.execute(() -> pollAsyncStep(result));
+            }
+            else
+                result.completeExceptionally(cause);
+        });
     }
 
+    /**
+     * 打包模式下一个批次节点只计为一个元素，另加本地已取出、尚未交给调用方的元素
+     */
     @Override
     public int size() {
         checkState();
         try {
-            return zk.getChildren(queuePath, null).size();
+            int local;
+            synchronized (unpacked) {
+                local = unpacked.size();
+            }
+            return local + zk.getChildren(queuePath, null).size();
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
@@ -80,6 +695,13 @@ public abstract class AbstractZkQueue extends ZkContext implements Queue<Object>
     @Override
     public void clear() {
         checkState();
+        synchronized (packing) {
+            packing.clear();
+            packingBytes = ZkPackedFrame.HEADER_BYTES;
+        }
+        synchronized (unpacked) {
+            unpacked.clear();
+        }
         try {
             ZkUtils.deleteChildren(zk, queuePath);
         } catch (Exception e) {
@@ -95,8 +717,19 @@ public abstract class AbstractZkQueue extends ZkContext implements Queue<Object>
     @Override
     public Object[] toArray() {
         checkState();
+        List<Object> all;
+        synchronized (unpacked) {
+            all = new ArrayList<>(unpacked);
+        }
         try {
-            return ZkUtils.getAllChildrenData(zk, queuePath, serializer).toArray();
+            List<String> children = ZkUtils.getChildren(zk, queuePath);
+            children.sort(Comparator.comparingLong(ZkUtils::parseSequence));
+            for (String child : children) {
+                try {
+                    all.addAll(unpack(child, zk.getData(queuePath + "/" + child, false, null)));
+                } catch (KeeperException.NoNodeException ignore) { }
+            }
+            return all.toArray();
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
@@ -118,42 +751,233 @@ public abstract class AbstractZkQueue extends ZkContext implements Queue<Object>
     @Override
     public Object remove() {
         checkState();
+        ZkOperation op = beginOperation(ZkMetric.QUEUE_DEQUEUE, queuePath);
+        Object o;
         try {
-            for(;;) {
-                String min = ZkUtils.getMinSeqChild(zk, queuePath);
-                if (min == null) throw new NoSuchElementException();
-                try {
-                    return ZkUtils.getNodeDataWithDelete(zk, queuePath + "/" + min, serializer);
-                } catch (KeeperException.NoNodeException ignore) { }
-            }
+            o = pollInternal();
         } catch (Exception e) {
             throw new RuntimeException(e);
+        } finally {
+            op.end();
         }
+        if (o == null) throw new NoSuchElementException();
+        return o;
     }
 
     @Override
     public Object poll() {
         checkState();
+        ZkOperation op = beginOperation(ZkMetric.QUEUE_DEQUEUE, queuePath);
         try {
-            for(;;) {
-                String min = ZkUtils.getMinSeqChild(zk, queuePath);
-                if (min == null) return null;
-                try {
-                    return ZkUtils.getNodeDataWithDelete(zk, queuePath + "/" + min, serializer);
-                } catch (KeeperException.NoNodeException ignore) { }
-            }
+            return pollInternal();
         } catch (Exception e) {
             throw new RuntimeException(e);
+        } finally {
+            op.end();
+        }
+    }
+
+    /**
+     * 取出队首元素，元素已被其它消费者取走时尝试下一个候选，见{@link #setHeadSelection(int, boolean)}；
+     * 取走批次节点时返回第一个元素，其余元素保存在本地，之后优先交给调用方
+     * @return 队列为空时返回null
+     */
+    protected Object pollInternal() throws KeeperException, InterruptedException {
+        Object local = pollUnpacked();
+        if (local != null)
+            return local;
+        for(;;) {
+            String min = nextCandidate();
+            if (min == null) return null;
+            try {
+                //删除前解码，无法解码的节点移入死信区，不会丢失，也不会阻塞队首
+                Stat stat = new Stat();
+                byte[] data = zk.getData(queuePath + "/" + min, false, stat);
+                List<Object> items;
+                try {
+                    items = unpack(min, data);
+                } catch (RuntimeException e) {
+                    moveToDeadLetter(min, data, stat.getVersion(), e);
+                    continue;
+                }
+                if (ZkUtils.deleteNode(zk, queuePath + "/" + min)) {
+                    childrenCache.deleted(min);
+                    keepUnpacked(items.subList(1, items.size()));
+                    return items.get(0);
+                }
+            } catch (KeeperException.NoNodeException ignore) { }
+            //已被其它消费者取走
+            childrenCache.removed(min);
+            getMetrics().incrementRetry(ZkMetric.QUEUE_DEQUEUE, queuePath);
+        }
+    }
+
+    /**
+     * 从本地快照取出下一个候选，快照用完时从子节点缓存加载队首的{@link #headCandidates}个元素，
+     * 子节点缓存只在watch触发后才访问zookeeper，竞争失败时不重新列出子节点
+     * @return 队列为空时返回null
+     */
+    private String nextCandidate() throws KeeperException, InterruptedException {
+        synchronized (candidates) {
+            if (candidates.isEmpty()) {
+                List<String> head = childrenCache.first(headCandidates);
+                if (!strictFifo)
+                    Collections.shuffle(head, ThreadLocalRandom.current());
+                candidates.addAll(head);
+            }
+            return candidates.poll();
+        }
+    }
+
+    /**
+     * <p>多个消费者并发出队时的队首选择方式：每个消费者在本地持有队首candidates个元素的快照，依次尝试取走，
+     * 被其它消费者取走时直接尝试快照中的下一个，不重新列出子节点，快照用完后才重新加载
+     * <ul>
+     *     <li>strictFifo：按序列号顺序尝试，总是取走仍存在的最小元素，多个消费者竞争同一个队首</li>
+     *     <li>relaxed FIFO：以随机顺序尝试，多个消费者分散在队首的candidates个元素上，竞争失败大幅减少，
+     *     出队吞吐随消费者数量增长；出队顺序只在candidates个元素的范围内被打乱</li>
+     * </ul>
+     * 默认为(1, true)，每次出队都从子节点缓存取最小的元素
+     * @param candidates 快照中的队首元素个数，relaxed FIFO时通常不小于消费者个数
+     * @param strictFifo
+     */
+    public void setHeadSelection(int candidates, boolean strictFifo) {
+        Preconditions.checkArgument(candidates > 0, "candidates invalid");
+        synchronized (this.candidates) {
+            this.headCandidates = candidates;
+            this.strictFifo = strictFifo;
+            this.candidates.clear();
+        }
+    }
+
+    /**
+     * <p>按队列顺序批量取出最多maxElements个元素加入c：每一轮并发读取一组队首元素，再按读到的数据版本并发删除，
+     * 只有删除成功的元素才算取到，被其它消费者取走的元素直接跳过，每轮只需两次网络往返
+     * <p>只遍历一次当前的子节点，期间新入队的元素留到下一次调用
+     * <p>删除请求发出后不响应中断，等待删除结果，已取到的元素不会丢失；出现其它错误时，已取到的元素加入c后抛出异常
+     * <p>先取出本地保存的批次元素；批次中超过maxElements的元素保存在本地，留到下一次出队
+     * @param c
+     * @param maxElements
+     * @return 取出的元素个数
+     */
+    protected int drainInternal(Collection<? super Object> c, int maxElements) throws KeeperException, InterruptedException {
+        if (maxElements <= 0)
+            return 0;
+        int taken = drainUnpacked(c, maxElements);
+        if (taken >= maxElements || childrenCache.first() == null)
+            return taken;
+        List<String> children = childrenCache.getSortedChildren();
+        int next = 0;
+        while (taken < maxElements && next < children.size()) {
+            int n = Math.min(children.size() - next, Math.min(maxElements - taken, MAX_DRAIN_IN_FLIGHT));
+            taken += drainRound(children.subList(next, next + n), c, maxElements - taken);
+            next += n;
+        }
+        return taken;
+    }
+
+    /**
+     * @param limit 最多加入c的元素个数，批次中超出的元素保存在本地
+     */
+    private int drainRound(List<String> names, Collection<? super Object> c, int limit) throws KeeperException, InterruptedException {
+        int n = names.size();
+        ZooKeeper zk = this.zk;
+        byte[][] data = new byte[n][];
+        int[] versions = new int[n];
+        int[] codes = new int[n];
+        CountDownLatch read = new CountDownLatch(n);
+        for (int i = 0; i < n; i++) {
+            int index = i;
+            zk.getData(queuePath + "/" + names.get(i), false, (rc, path, ctx, bytes, stat) -> {
+                codes[index] = rc;
+                if (rc == KeeperException.Code.OK.intValue()) {
+                    data[index] = bytes;
+                    versions[index] = stat.getVersion();
+                }
+                read.countDown();
+            }, null);
         }
+        //还没有删除任何元素，可以直接响应中断
+        read.await();
+
+        //删除前解码，无法解码的节点移入死信区
+        List<List<Object>> decoded = new ArrayList<>(Collections.nCopies(n, null));
+        for (int i = 0; i < n; i++) {
+            if (codes[i] != KeeperException.Code.OK.intValue())
+                continue;
+            try {
+                decoded.set(i, unpack(names.get(i), data[i]));
+            } catch (RuntimeException e) {
+                moveToDeadLetter(names.get(i), data[i], versions[i], e);
+            }
+        }
+
+        CountDownLatch delete = new CountDownLatch(n);
+        for (int i = 0; i < n; i++) {
+            int index = i;
+            if (codes[i] != KeeperException.Code.OK.intValue() || decoded.get(i) == null) {
+                delete.countDown();
+                continue;
+            }
+            zk.delete(queuePath + "/" + names.get(i), versions[i], (rc, path, ctx) -> {
+                codes[index] = rc;
+                delete.countDown();
+            }, null);
+        }
+        boolean interrupted = false;
+        while (true) {
+            try {
+                delete.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+
+        KeeperException error = null;
+        int taken = 0;
+        for (int i = 0; i < n; i++) {
+            KeeperException.Code code = KeeperException.Code.get(codes[i]);
+            if (code == KeeperException.Code.OK && decoded.get(i) == null) {
+                continue;
+            } else if (code == KeeperException.Code.OK) {
+                childrenCache.deleted(names.get(i));
+                List<Object> items = decoded.get(i);
+                int accepted = Math.min(items.size(), limit - taken);
+                c.addAll(items.subList(0, accepted));
+                keepUnpacked(items.subList(accepted, items.size()));
+                taken += accepted;
+            } else if (code == KeeperException.Code.NONODE || code == KeeperException.Code.BADVERSION) {
+                //已被其它消费者取走
+                childrenCache.removed(names.get(i));
+                getMetrics().incrementRetry(ZkMetric.QUEUE_DRAIN, queuePath);
+            } else if (error == null) {
+                error = KeeperException.create(code, queuePath + "/" + names.get(i));
+            }
+        }
+        if (error != null)
+            throw error;
+        return taken;
     }
 
     @Override
     public Object element() {
         checkState();
         try {
-            String min = ZkUtils.getMinSeqChild(zk, queuePath);
-            if (min == null) throw new NoSuchElementException();
-            return ZkUtils.getNodeData(zk, queuePath + "/" + min, serializer);
+            synchronized (unpacked) {
+                if (!unpacked.isEmpty())
+                    return unpacked.peek();
+            }
+            for(;;) {
+                String min = childrenCache.first();
+                if (min == null) throw new NoSuchElementException();
+                try {
+                    return unpack(min, zk.getData(queuePath + "/" + min, false, null)).get(0);
+                } catch (KeeperException.NoNodeException ignore) { }
+                childrenCache.removed(min);
+            }
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
@@ -163,9 +987,18 @@ public abstract class AbstractZkQueue extends ZkContext implements Queue<Object>
     public Object peek() {
         checkState();
         try {
-            String min = ZkUtils.getMinSeqChild(zk, queuePath);
-            if (min == null) return null;
-            return ZkUtils.getNodeData(zk, queuePath + "/" + min, serializer);
+            synchronized (unpacked) {
+                if (!unpacked.isEmpty())
+                    return unpacked.peek();
+            }
+            for(;;) {
+                String min = childrenCache.first();
+                if (min == null) return null;
+                try {
+                    return unpack(min, zk.getData(queuePath + "/" + min, false, null)).get(0);
+                } catch (KeeperException.NoNodeException ignore) { }
+                childrenCache.removed(min);
+            }
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
@@ -1,9 +1,18 @@
 package com.nameof.zookeeper.tools.queue;
 
+import com.google.common.base.Preconditions;
 import com.nameof.zookeeper.tools.common.WaitDuration;
+import com.nameof.zookeeper.tools.metrics.ZkMetric;
+import com.nameof.zookeeper.tools.metrics.ZkOperation;
 import org.apache.zookeeper.KeeperException;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
@@ -47,6 +56,80 @@ public class BoundedZkBlockingQueue extends ZkBlockingQueue {
         return false;
     }
 
+    /**
+     * 容量按节点个数计算，本地累积的元素和批次节点都无法按元素计入容量，不支持打包模式
+     */
+    @Override
+    public void setPacking(int maxItems, long linger, TimeUnit unit) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * 最多接受剩余容量个元素，其余元素以IllegalStateException报告失败
+     * @see AbstractZkQueue#offerAll(Collection)
+     */
+    @Override
+    public ZkBatchResult offerAll(Collection<?> c) {
+        Preconditions.checkNotNull(c);
+        checkState();
+        List<Object> items = new ArrayList<>(c);
+        Map<Integer, Throwable> failures = new ConcurrentHashMap<>();
+        int accepted = Math.max(0, Math.min(items.size(), size - size()));
+        ZkOperation op = beginOperation(ZkMetric.QUEUE_ENQUEUE_BATCH, queuePath);
+        offerBatches(items.subList(0, accepted), 0, failures, false);
+        op.end();
+        for (int i = accepted; i < items.size(); i++)
+            failures.put(i, new IllegalStateException("Queue full"));
+        return new ZkBatchResult(items.size(), failures);
+    }
+
+    /**
+     * 队列已满时等待，每次最多写入剩余容量个元素
+     * @see ZkBlockingQueue#putAll(Collection)
+     */
+    @Override
+    public ZkBatchResult putAll(Collection<?> c) throws InterruptedException {
+        Preconditions.checkNotNull(c);
+        if (Thread.interrupted())
+            throw new InterruptedException();
+        checkState();
+        List<Object> items = new ArrayList<>(c);
+        Map<Integer, Throwable> failures = new ConcurrentHashMap<>();
+        int offered = 0;
+        while (offered < items.size()) {
+            int remaining = size - size();
+            if (remaining <= 0) {
+                try {
+                    zkPrimitiveSupport.waitChildren(queuePath);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            } else {
+                int end = Math.min(items.size(), offered + remaining);
+                ZkOperation op = beginOperation(ZkMetric.QUEUE_ENQUEUE_BATCH, queuePath);
+                offerBatches(items.subList(offered, end), offered, failures, true);
+                op.end();
+                offered = end;
+            }
+            if (Thread.currentThread().isInterrupted()) {
+                for (int i = offered; i < items.size(); i++)
+                    failures.putIfAbsent(i, new InterruptedException());
+                break;
+            }
+        }
+        return new ZkBatchResult(items.size(), failures);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> offerAsync(Object o) {
+        checkState();
+        return zkAsyncSupport.getChildren(queuePath, null).thenCompose(children -> {
+            if (children.size() < size)
+                return super.offerAsync(o);
+            return CompletableFuture.completedFuture(false);
+        });
+    }
+
     @Override
     public boolean offer(Object o, long timeout, TimeUnit unit) throws InterruptedException {
         WaitDuration duration = WaitDuration.from(unit.toMillis(timeout));
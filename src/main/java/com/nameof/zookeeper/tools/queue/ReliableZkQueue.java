@@ -0,0 +1,555 @@
+package com.nameof.zookeeper.tools.queue;
+
+import com.google.common.base.Preconditions;
+import com.nameof.zookeeper.tools.common.WaitDuration;
+import com.nameof.zookeeper.tools.metrics.ZkMetric;
+import com.nameof.zookeeper.tools.metrics.ZkOperation;
+import com.nameof.zookeeper.tools.utils.ZkUtils;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.OpResult;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * <p>至少一次(at-least-once)投递的无界阻塞队列：
+ * <pre>
+ *     ReliableZkQueue queue = new ReliableZkQueue(queueName, connectString, mySerializer);
+ *     ZkDelivery delivery = queue.takeDelivery();
+ *     process(delivery.getItem());
+ *     delivery.ack();
+ * </pre>
+ * <p>出队时在一个multi事务中检查当前消费者的临时节点、在在途区创建元素、按读到的数据版本删除队列中的元素，
+ * 元素不会在消费者崩溃时丢失，处理完成后{@link ZkDelivery#ack()}才从在途区删除
+ * <p>在途区位于{@link #INFLIGHT_NAMESPACE}/队列名 下：consumers/消费者id 为消费者的临时节点，
+ * items/消费者id-节点名-序列号 为在途元素，数据与原元素相同；每次取走都创建新的顺序节点，同一个元素被重新投递时，
+ * 旧的{@link ZkDelivery}不会确认、退回或续约新的投递
+ * <p>每个实例在后台定期巡检在途区，以下在途元素在一个multi事务中以原来的节点名回到队列，并按版本删除在途节点，
+ * 多个实例同时巡检时只有一个成功：
+ * <ul>
+ *     <li>所属消费者的临时节点已不存在：会话过期、进程崩溃或已{@link #destory()}</li>
+ *     <li>开启租约时，巡检者在本地时钟上连续一个租约时长内观察到版本没有变化，即没有确认也没有{@link ZkDelivery#renew()}，
+ *     与{@link com.nameof.zookeeper.tools.lock.ZkLockLease}相同，不依赖各节点时钟同步</li>
+ * </ul>
+ * <p>序列号不会被重新分配，回到队列的元素保持原来的出队顺序
+ * <p>预取：一次并发取走队首最多{@link #setPrefetch(int)}个元素放入本地缓冲，依次交给调用方；缓冲中的元素已经在途，租约应当覆盖等待时间
+ * <p>打包模式写入的批次节点整体投递一次，{@link ZkDelivery#getItem()}为按入队顺序排列的元素列表，整体确认
+ * <p>{@link #poll()}、{@link #take()}等{@link java.util.Queue}方法仍直接删除元素，不经过在途区
+ * <p>thread-safe
+ * @Author: chengpan
+ * @Date: 2018/12/24
+ */
+public class ReliableZkQueue extends ZkBlockingQueue {
+
+    static final String INFLIGHT_NAMESPACE = "/zkqueueinflight";
+
+    /** 默认巡检间隔 */
+    public static final long DEFAULT_SWEEP_MILLIS = 1_000;
+
+    private final String consumerId = UUID.randomUUID().toString().replace("-", "");
+
+    private final String itemsPath;
+
+    private final String consumersPath;
+
+    private final String consumerPath;
+
+    private volatile int prefetch = 1;
+
+    /** 租约时长，0表示不开启租约 */
+    private volatile long leaseNanos;
+
+    /** 已取走、尚未交给调用方的元素 */
+    private final Deque<ZkDelivery> buffer = new ArrayDeque<>();
+
+    /** 已交给调用方、尚未确认或退回的元素 */
+    private final Set<ZkDelivery> outstanding = ConcurrentHashMap.newKeySet();
+
+    /** 在途节点名 -> {观察到的版本, 第一次观察到该版本的本地时间}，只在巡检线程中访问 */
+    private final Map<String, long[]> observed = new HashMap<>();
+
+    private final ScheduledExecutorService scheduler;
+
+    private ScheduledFuture<?> sweeper;
+
+    private volatile boolean destory;
+
+    public ReliableZkQueue(String queueName, String connectString, Serializer serializer) throws IOException, InterruptedException, KeeperException {
+        super(queueName, connectString, serializer);
+        String inflightPath = INFLIGHT_NAMESPACE + "/" + queueName;
+        this.itemsPath = inflightPath + "/items";
+        this.consumersPath = inflightPath + "/consumers";
+        this.consumerPath = consumersPath + "/" + consumerId;
+        ZkUtils.createPersist(zk, INFLIGHT_NAMESPACE);
+        ZkUtils.createPersist(zk, inflightPath);
+        ZkUtils.createPersist(zk, itemsPath);
+        ZkUtils.createPersist(zk, consumersPath);
+        registerConsumer();
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "zk-queue-sweeper");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduleSweep();
+    }
+
+    private void registerConsumer() throws KeeperException, InterruptedException {
+        ZkUtils.createTemp(zk, consumerPath);
+        trackEphemeral(consumerPath);
+    }
+
+    /**
+     * 会话过期期间巡检者已可能退回本消费者的在途元素，之后确认这些元素返回false；
+     * 以相同的消费者id重建临时节点，尚未被退回的在途元素仍属于本消费者
+     */
+    @Override
+    protected void onSessionRecovered() throws KeeperException, InterruptedException {
+        if (destory)
+            return;
+        registerConsumer();
+    }
+
+    /**
+     * 取出队首元素放入在途区，不阻塞
+     * @return 队列为空时返回null
+     */
+    public ZkDelivery pollDelivery() {
+        checkState();
+        ZkOperation op = beginOperation(ZkMetric.QUEUE_DEQUEUE, queuePath);
+        try {
+            return nextDelivery();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        } finally {
+            op.end();
+        }
+    }
+
+    /**
+     * @see #pollDelivery()
+     * @param timeout
+     * @param unit
+     * @return 超时返回null
+     * @throws InterruptedException
+     */
+    public ZkDelivery pollDelivery(long timeout, TimeUnit unit) throws InterruptedException {
+        checkState();
+        ZkDelivery delivery;
+        WaitDuration duration = WaitDuration.from(unit.toMillis(timeout));
+        ZkOperation op = beginOperation(ZkMetric.QUEUE_DEQUEUE, queuePath);
+        while ((delivery = nextDeliveryBlocking()) == null) {
+            try {
+                zkPrimitiveSupport.waitChildren(queuePath, duration);
+            } catch (TimeoutException e) {
+                break;
+            }
+        }
+        op.end();
+        return delivery;
+    }
+
+    /**
+     * 取出队首元素放入在途区，队列为空时等待元素入队
+     * @return
+     * @throws InterruptedException
+     */
+    public ZkDelivery takeDelivery() throws InterruptedException {
+        checkState();
+        ZkOperation op = beginOperation(ZkMetric.QUEUE_DEQUEUE, queuePath);
+        ZkDelivery delivery;
+        while ((delivery = nextDeliveryBlocking()) == null) {
+            zkPrimitiveSupport.waitChildren(queuePath);
+        }
+        op.end();
+        return delivery;
+    }
+
+    private ZkDelivery nextDeliveryBlocking() throws InterruptedException {
+        checkState();
+        try {
+            return nextDelivery();
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * 本地缓冲为空时取走队首最多{@link #prefetch}个元素，都被其它消费者取走时重新从子节点缓存加载
+     * @return 队列为空时返回null
+     */
+    private ZkDelivery nextDelivery() throws KeeperException, InterruptedException {
+        synchronized (buffer) {
+            while (buffer.isEmpty()) {
+                List<String> head = childrenCache.first(prefetch);
+                if (head.isEmpty())
+                    return null;
+                claim(head);
+            }
+            ZkDelivery delivery = buffer.poll();
+            outstanding.add(delivery);
+            return delivery;
+        }
+    }
+
+    /**
+     * 并发读取一组队首元素，再并发发送移动到在途区的multi事务，只需两次网络往返，取到的元素按队列顺序加入本地缓冲
+     * <p>事务发出后不响应中断，等待事务结果，已取到的元素不会遗留在在途区无人处理
+     */
+    private void claim(List<String> names) throws KeeperException, InterruptedException {
+        int n = names.size();
+        ZooKeeper zk = this.zk;
+        byte[][] data = new byte[n][];
+        int[] versions = new int[n];
+        int[] codes = new int[n];
+        CountDownLatch read = new CountDownLatch(n);
+        for (int i = 0; i < n; i++) {
+            int index = i;
+            zk.getData(queuePath + "/" + names.get(i), false, (rc, path, ctx, bytes, stat) -> {
+                codes[index] = rc;
+                if (rc == KeeperException.Code.OK.intValue()) {
+                    data[index] = bytes;
+                    versions[index] = stat.getVersion();
+                }
+                read.countDown();
+            }, null);
+        }
+        //还没有移动任何元素，可以直接响应中断
+        read.await();
+
+        //移动前解码，无法解码的节点移入死信区，不进入在途区
+        Object[] items = new Object[n];
+        boolean[] decoded = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            if (codes[i] != KeeperException.Code.OK.intValue())
+                continue;
+            try {
+                List<Object> unpacked = unpack(names.get(i), data[i]);
+                items[i] = isPacked(names.get(i)) ? unpacked : unpacked.get(0);
+                decoded[i] = true;
+            } catch (RuntimeException e) {
+                moveToDeadLetter(names.get(i), data[i], versions[i], e);
+            }
+        }
+
+        String[] inflightPaths = new String[n];
+        boolean[] consumerLost = new boolean[n];
+        CountDownLatch move = new CountDownLatch(n);
+        for (int i = 0; i < n; i++) {
+            int index = i;
+            if (codes[i] != KeeperException.Code.OK.intValue() || !decoded[i]) {
+                move.countDown();
+                continue;
+            }
+            String name = names.get(i);
+            List<Op> ops = Arrays.asList(
+                    Op.check(consumerPath, -1),
+                    Op.create(inflightPrefixOf(name), data[i], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT_SEQUENTIAL),
+                    Op.delete(queuePath + "/" + name, versions[i]));
+            zk.multi(ops, (rc, path, ctx, results) -> {
+                codes[index] = rc;
+                if (rc == KeeperException.Code.OK.intValue())
+                    inflightPaths[index] = ((OpResult.CreateResult) results.get(1)).getPath();
+                else if (results != null && !results.isEmpty()
+                        && results.get(0) instanceof OpResult.ErrorResult)
+                    consumerLost[index] = ((OpResult.ErrorResult) results.get(0)).getErr() == KeeperException.Code.NONODE.intValue();
+                move.countDown();
+            }, null);
+        }
+        boolean interrupted = false;
+        while (true) {
+            try {
+                move.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+
+        KeeperException error = null;
+        boolean reregister = false;
+        for (int i = 0; i < n; i++) {
+            String name = names.get(i);
+            KeeperException.Code code = KeeperException.Code.get(codes[i]);
+            if (code == KeeperException.Code.OK && !decoded[i]) {
+                continue;
+            } else if (code == KeeperException.Code.OK) {
+                childrenCache.deleted(name);
+                buffer.add(new ZkDelivery(this, name, inflightPaths[i], data[i], items[i]));
+            } else if (consumerLost[i]) {
+                //会话过期后临时节点已失效，重建后下一轮再取
+                reregister = true;
+            } else if (code == KeeperException.Code.NONODE || code == KeeperException.Code.BADVERSION) {
+                //已被其它消费者取走
+                childrenCache.removed(name);
+                getMetrics().incrementRetry(ZkMetric.QUEUE_DEQUEUE, queuePath);
+            } else if (error == null) {
+                error = KeeperException.create(code, queuePath + "/" + name);
+            }
+        }
+        if (reregister)
+            registerConsumer();
+        if (error != null)
+            throw error;
+    }
+
+    private String inflightPrefixOf(String nodeName) {
+        return itemsPath + "/" + consumerId + "-" + nodeName + "-";
+    }
+
+    boolean ack(ZkDelivery delivery) {
+        checkState();
+        outstanding.remove(delivery);
+        try {
+            return ZkUtils.deleteNodeIgnoreInterrupt(zk, delivery.getInflightPath());
+        } catch (KeeperException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    boolean nack(ZkDelivery delivery) {
+        checkState();
+        outstanding.remove(delivery);
+        String path = delivery.getInflightPath();
+        try {
+            return returnToQueue(path.substring(path.lastIndexOf('/') + 1), delivery.getData(), -1);
+        } catch (KeeperException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    boolean renew(ZkDelivery delivery) {
+        checkState();
+        try {
+            zk.setData(delivery.getInflightPath(), delivery.getData(), -1);
+            return true;
+        } catch (KeeperException.NoNodeException e) {
+            return false;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * 在一个multi事务中以原来的节点名重建队列元素，并按版本删除在途节点，忽略中断
+     * @param inflightNode 在途节点名，消费者id-节点名-序列号
+     * @param data
+     * @param version 在途节点的版本，-1表示不检查
+     * @return 在途节点已不存在或版本已变化(已确认、已退回、已续约)时返回false
+     */
+    private boolean returnToQueue(String inflightNode, byte[] data, int version) throws KeeperException {
+        String name = inflightNode.substring(inflightNode.indexOf('-') + 1, inflightNode.lastIndexOf('-'));
+        List<Op> ops = Arrays.asList(
+                Op.create(queuePath + "/" + name, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT),
+                Op.delete(itemsPath + "/" + inflightNode, version));
+        boolean interrupt = false;
+        try {
+            do {
+                try {
+                    zk.multi(ops);
+                    //子节点缓存在下次访问时重新校验
+                    childrenCache.created(name);
+                    return true;
+                } catch (KeeperException.NodeExistsException e) {
+                    //中断后重试时已存在说明之前的请求已经成功，否则已被其它巡检者退回
+                    return interrupt;
+                } catch (KeeperException.NoNodeException | KeeperException.BadVersionException e) {
+                    return false;
+                } catch (InterruptedException ignore) {
+                    interrupt = true;
+                }
+            } while (true);
+        } finally {
+            if (interrupt) Thread.currentThread().interrupt();
+        }
+    }
+
+    private void sweep() {
+        if (destory)
+            return;
+        try {
+            sweepInflight();
+        } catch (Exception e) {
+            logger.warn("sweep in-flight items of " + queuePath + " failed", e);
+        }
+    }
+
+    /**
+     * 先列出在途元素再列出消费者，在途元素创建时其消费者节点一定存在，之后列出的消费者中没有它说明消费者已失效
+     * <p>在途元素的版本和待退回元素的数据都并发读取，每次巡检的网络往返次数与在途元素数量无关，
+     * 只有确实需要退回的元素逐个发送multi事务
+     */
+    private void sweepInflight() throws KeeperException, InterruptedException {
+        ZooKeeper zk = this.zk;
+        List<String> items = zk.getChildren(itemsPath, false);
+        if (items.isEmpty()) {
+            observed.clear();
+            return;
+        }
+        Set<String> consumers = new HashSet<>(zk.getChildren(consumersPath, false));
+        long lease = leaseNanos;
+        List<String> owned = new ArrayList<>();
+        List<String> expired = new ArrayList<>();
+        for (String item : items) {
+            int sep = item.indexOf('-');
+            if (sep < 0 || sep == item.lastIndexOf('-'))
+                continue;
+            if (!consumers.contains(item.substring(0, sep)))
+                expired.add(item);
+            else if (lease > 0)
+                owned.add(item);
+        }
+
+        //租约未到期时只读取版本，不读取数据
+        int[] ownedVersions = readInflight(zk, owned, null);
+        long now = System.nanoTime();
+        Set<String> watching = new HashSet<>();
+        for (int i = 0; i < ownedVersions.length; i++) {
+            String item = owned.get(i);
+            if (ownedVersions[i] < 0)
+                continue;
+            watching.add(item);
+            long[] seen = observed.get(item);
+            if (seen == null || seen[0] != ownedVersions[i])
+                observed.put(item, new long[]{ownedVersions[i], now});
+            else if (now - seen[1] >= lease)
+                expired.add(item);
+        }
+        observed.keySet().retainAll(watching);
+        if (expired.isEmpty())
+            return;
+
+        byte[][] data = new byte[expired.size()][];
+        int[] versions = readInflight(zk, expired, data);
+        for (int i = 0; i < versions.length; i++) {
+            if (versions[i] < 0)
+                continue;
+            String item = expired.get(i);
+            //按观察到的版本退回，期间续约过的元素退回失败
+            long[] seen = observed.get(item);
+            int version = seen != null ? (int) seen[0] : versions[i];
+            if (returnToQueue(item, data[i], version)) {
+                logger.info("return in-flight item " + itemsPath + "/" + item + (seen != null ? ", lease expired" : ", consumer lost"));
+                getMetrics().incrementRetry(ZkMetric.QUEUE_DEQUEUE, queuePath);
+            }
+        }
+    }
+
+    /**
+     * 并发读取一组在途节点，一次网络往返
+     * @param zk
+     * @param items 在途节点名
+     * @param data 不为null时同时读取数据，按items的顺序填入
+     * @return 按items的顺序排列的节点版本，节点已不存在时为-1
+     */
+    private int[] readInflight(ZooKeeper zk, List<String> items, byte[][] data) throws KeeperException, InterruptedException {
+        int n = items.size();
+        int[] versions = new int[n];
+        int[] codes = new int[n];
+        CountDownLatch read = new CountDownLatch(n);
+        for (int i = 0; i < n; i++) {
+            int index = i;
+            String path = itemsPath + "/" + items.get(i);
+            if (data == null) {
+                zk.exists(path, false, (rc, p, ctx, stat) -> {
+                    codes[index] = rc;
+                    if (rc == KeeperException.Code.OK.intValue())
+                        versions[index] = stat.getVersion();
+                    read.countDown();
+                }, null);
+            } else {
+                zk.getData(path, false, (rc, p, ctx, bytes, stat) -> {
+                    codes[index] = rc;
+                    if (rc == KeeperException.Code.OK.intValue()) {
+                        data[index] = bytes;
+                        versions[index] = stat.getVersion();
+                    }
+                    read.countDown();
+                }, null);
+            }
+        }
+        read.await();
+        for (int i = 0; i < n; i++) {
+            KeeperException.Code code = KeeperException.Code.get(codes[i]);
+            if (code == KeeperException.Code.NONODE)
+                versions[i] = -1;
+            else if (code != KeeperException.Code.OK)
+                throw KeeperException.create(code, itemsPath + "/" + items.get(i));
+        }
+        return versions;
+    }
+
+    private synchronized void scheduleSweep() {
+        if (sweeper != null)
+            sweeper.cancel(false);
+        long lease = TimeUnit.NANOSECONDS.toMillis(leaseNanos);
+        long period = lease > 0 ? Math.max(1, Math.min(DEFAULT_SWEEP_MILLIS, lease / 4)) : DEFAULT_SWEEP_MILLIS;
+        sweeper = scheduler.scheduleWithFixedDelay(this::sweep, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 每次取走的队首元素个数，默认为1
+     * @param prefetch
+     */
+    public void setPrefetch(int prefetch) {
+        Preconditions.checkArgument(prefetch > 0, "prefetch invalid");
+        this.prefetch = prefetch;
+    }
+
+    /**
+     * 在途元素的租约，超过租约时长没有确认或续约的元素回到队列，误差不超过一个巡检间隔(租约的1/4，最多{@link #DEFAULT_SWEEP_MILLIS})
+     * @param time 0表示不开启租约，只在消费者失效时退回，默认不开启
+     * @param unit
+     */
+    public void setLease(long time, TimeUnit unit) {
+        Preconditions.checkArgument(time >= 0, "lease invalid");
+        this.leaseNanos = unit.toNanos(time);
+        scheduleSweep();
+    }
+
+    /**
+     * 退回本地缓冲中的元素和已交给调用方但未确认的元素，之后对这些元素的确认返回false，再删除消费者临时节点
+     */
+    @Override
+    public void destory() {
+        destory = true;
+        scheduler.shutdownNow();
+        List<ZkDelivery> pending;
+        synchronized (buffer) {
+            pending = new ArrayList<>(buffer);
+            buffer.clear();
+        }
+        pending.addAll(outstanding);
+        for (ZkDelivery delivery : pending) {
+            try {
+                nack(delivery);
+            } catch (RuntimeException e) {
+                logger.warn("return " + delivery.getInflightPath() + " failed", e);
+            }
+        }
+        super.destory();
+    }
+}
@@ -0,0 +1,49 @@
+package com.nameof.zookeeper.tools.queue;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * <p>批量入队的结果，见{@link AbstractZkQueue#offerAll(java.util.Collection)}
+ * <p>失败按元素在批量中的下标记录；连接断开(ConnectionLoss)导致的失败不确定元素是否已入队，与{@link AbstractZkQueue#offer(Object)}相同
+ * <p>immutable
+ * @Author: chengpan
+ * @Date: 2018/12/23
+ */
+public class ZkBatchResult {
+
+    private final int total;
+
+    private final SortedMap<Integer, Throwable> failures;
+
+    ZkBatchResult(int total, Map<Integer, Throwable> failures) {
+        this.total = total;
+        this.failures = Collections.unmodifiableSortedMap(new TreeMap<>(failures));
+    }
+
+    public int getTotal() {
+        return total;
+    }
+
+    public int getSucceeded() {
+        return total - failures.size();
+    }
+
+    public boolean isAllSucceeded() {
+        return failures.isEmpty();
+    }
+
+    /**
+     * @return 元素下标 -> 失败原因，按下标排序
+     */
+    public SortedMap<Integer, Throwable> getFailures() {
+        return failures;
+    }
+
+    @Override
+    public String toString() {
+        return "total=" + total + ", succeeded=" + getSucceeded() + ", failures=" + failures;
+    }
+}
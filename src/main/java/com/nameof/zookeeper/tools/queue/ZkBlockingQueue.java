@@ -1,14 +1,24 @@
 package com.nameof.zookeeper.tools.queue;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
 import com.nameof.zookeeper.tools.common.WaitDuration;
+import com.nameof.zookeeper.tools.common.ZkAsyncSupport;
 import com.nameof.zookeeper.tools.common.ZkPrimitiveSupport;
+import com.nameof.zookeeper.tools.metrics.ZkMetric;
+import com.nameof.zookeeper.tools.metrics.ZkOperation;
 import com.nameof.zookeeper.tools.utils.ZkUtils;
 import org.apache.zookeeper.KeeperException;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
@@ -22,7 +32,7 @@ public class ZkBlockingQueue extends AbstractZkBlockingQueue {
 
     public ZkBlockingQueue(String queueName, String connectString, Serializer serializer) throws IOException, InterruptedException, KeeperException {
         super(queueName, connectString, serializer);
-        zkPrimitiveSupport = new ZkPrimitiveSupport(zk);
+        zkPrimitiveSupport = new ZkPrimitiveSupport(this);
     }
 
     @Override
@@ -31,7 +41,7 @@ public class ZkBlockingQueue extends AbstractZkBlockingQueue {
     }
 
     /**
-     * never blocking
+     * never blocking，打包模式下见{@link #offer(Object)}
      * @param o
      * @throws InterruptedException
      */
@@ -39,15 +49,38 @@ public class ZkBlockingQueue extends AbstractZkBlockingQueue {
     public void put(Object o) throws InterruptedException {
         Preconditions.checkNotNull(o);
         checkState();
+        ZkOperation op = beginOperation(ZkMetric.QUEUE_ENQUEUE, queuePath);
         try {
-            ZkUtils.crecatePersistSeq(zk, queuePath + "/", serializer.serialize(o));
+            enqueue(o);
         } catch (InterruptedException e) {
             throw e;
         } catch (Exception e) {
             throw new RuntimeException(e);
+        } finally {
+            op.end();
         }
     }
 
+    /**
+     * 批量入队，无界队列不阻塞，见{@link #offerAll(Collection)}
+     * <p>响应中断：中断后不再发送剩余的批次，等待已发送的批次完成后返回，剩余元素以InterruptedException报告失败，并保留中断状态
+     * @param c
+     * @return
+     * @throws InterruptedException 调用时已被中断，没有元素入队
+     */
+    public ZkBatchResult putAll(Collection<?> c) throws InterruptedException {
+        Preconditions.checkNotNull(c);
+        if (Thread.interrupted())
+            throw new InterruptedException();
+        checkState();
+        List<Object> items = new ArrayList<>(c);
+        Map<Integer, Throwable> failures = new ConcurrentHashMap<>();
+        ZkOperation op = beginOperation(ZkMetric.QUEUE_ENQUEUE_BATCH, queuePath);
+        offerBatches(items, 0, failures, true);
+        op.end();
+        return new ZkBatchResult(items.size(), failures);
+    }
+
     /**
      * @see #put(Object)
      * @param o
@@ -64,10 +97,13 @@ public class ZkBlockingQueue extends AbstractZkBlockingQueue {
 
     @Override
     public Object take() throws InterruptedException {
+        checkState();
+        ZkOperation op = beginOperation(ZkMetric.QUEUE_DEQUEUE, queuePath);
         Object o = null;
-        while ((o = poll()) == null) {
+        while ((o = pollBlocking()) == null) {
             zkPrimitiveSupport.waitChildren(queuePath);
         }
+        op.end();
         return o;
     }
 
@@ -76,26 +112,40 @@ public class ZkBlockingQueue extends AbstractZkBlockingQueue {
         checkState();
         Object o = null;
         WaitDuration duration = WaitDuration.from(unit.toMillis(timeout));
-        while ((o = poll()) == null) {
+        ZkOperation op = beginOperation(ZkMetric.QUEUE_DEQUEUE, queuePath);
+        while ((o = pollBlocking()) == null) {
             try {
                 zkPrimitiveSupport.waitChildren(queuePath, duration);
             } catch (TimeoutException e) {
                 break;
             }
         }
+        op.end();
         return o;
     }
 
+    private Object pollBlocking() throws InterruptedException {
+        checkState();
+        try {
+            return pollInternal();
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     @Override
     public int drainTo(Collection<? super Object> c) {
         checkDrainToArgs(c);
         checkState();
+        ZkOperation op = beginOperation(ZkMetric.QUEUE_DRAIN, queuePath);
         try {
-            List<Object> all = ZkUtils.takeAllChildrenData(zk, queuePath, serializer);
-            c.addAll(all);
-            return all.size();
+            return drainInternal(c, Integer.MAX_VALUE);
         } catch (Exception e) {
             throw new RuntimeException(e);
+        } finally {
+            op.end();
         }
     }
 
@@ -103,15 +153,124 @@ public class ZkBlockingQueue extends AbstractZkBlockingQueue {
     public int drainTo(Collection<? super Object> c, int maxElements) {
         checkDrainToArgs(c);
         checkState();
+        ZkOperation op = beginOperation(ZkMetric.QUEUE_DRAIN, queuePath);
         try {
-            List<Object> all = ZkUtils.takeAllChildrenData(zk, queuePath, serializer, maxElements);
-            c.addAll(all);
-            return all.size();
+            return drainInternal(c, maxElements);
         } catch (Exception e) {
             throw new RuntimeException(e);
+        } finally {
+            op.end();
         }
     }
 
+    /**
+     * 阻塞批量出队：队列为空时等待元素入队，一旦有元素就在同一轮中取出最多max个元素后返回，出队方式见{@link #drainTo(Collection, int)}
+     * @param max
+     * @param timeout
+     * @param unit
+     * @return 按出队顺序排列的元素，超时时为空
+     * @throws InterruptedException
+     */
+    public List<Object> takeBatch(int max, long timeout, TimeUnit unit) throws InterruptedException {
+        Preconditions.checkArgument(max > 0, "max invalid");
+        checkState();
+        WaitDuration duration = WaitDuration.from(unit.toMillis(timeout));
+        List<Object> taken = new ArrayList<>();
+        ZkOperation op = beginOperation(ZkMetric.QUEUE_DRAIN, queuePath);
+        try {
+            while (drainInternal(taken, max) == 0) {
+                zkPrimitiveSupport.waitChildren(queuePath, List::isEmpty, duration);
+            }
+        } catch (TimeoutException e) {
+            //超时，返回空列表
+        } catch (KeeperException e) {
+            throw new RuntimeException(e);
+        }
+        op.end();
+        return taken;
+    }
+
+    /**
+     * 异步出队，队列为空时等待元素入队，等待期间不占用线程
+     * @return
+     */
+    public CompletableFuture<Object> takeAsync() {
+        checkState();
+        CompletableFuture<Object> result = new CompletableFuture<>();
+        takeAsyncStep(result);
+        return result;
+    }
+
+    private void takeAsyncStep(CompletableFuture<Object> result) {
+        pollAsync().thenCompose(o -> {
+            if (o != null) {
+                result.complete(o);
+                return CompletableFuture.completedFuture(null);
+            }
+            return zkAsyncSupport.waitChildren(queuePath);
+        }).whenComplete((v, e) -> {
+            if (e != null)
+                result.completeExceptionally(ZkAsyncSupport.unwrap(e));
+            else if (!result.isDone())
+                ZkAsyncSupport.execute(() -> takeAsyncStep(result));
+        });
+    }
+
+    /**
+     * @see #drainToAsync(Collection, int)
+     */
+    public CompletableFuture<Integer> drainToAsync(Collection<? super Object> c) {
+        return drainToAsync(c, Integer.MAX_VALUE);
+    }
+
+    /**
+     * 异步取出最多maxElements个元素，完成时按出队顺序加入c，忽略被并发取走的元素
+     * @param c
+     * @param maxElements
+     * @return 取出的元素个数
+     */
+    public CompletableFuture<Integer> drainToAsync(Collection<? super Object> c, int maxElements) {
+        checkDrainToArgs(c);
+        checkState();
+        List<Object> taken = Lists.newArrayList();
+        drainUnpacked(taken, maxElements);
+        return zkAsyncSupport.getChildren(queuePath, null).thenCompose(children -> {
+            children.sort(Comparator.comparingLong(ZkUtils::parseSequence));
+            return drainAsyncStep(children.iterator(), taken, maxElements).thenApply(v -> {
+                c.addAll(taken);
+                return taken.size();
+            });
+        });
+    }
+
+    private CompletableFuture<Void> drainAsyncStep(Iterator<String> children, List<Object> taken, int maxElements) {
+        if (taken.size() >= maxElements || !children.hasNext())
+            return CompletableFuture.completedFuture(null);
+        String child = children.next();
+        String childPath = queuePath + "/" + child;
+        return zkAsyncSupport.getData(childPath)
+                .thenCompose(data -> {
+                    //删除前解码，无法解码的节点移入死信区后继续
+                    List<Object> items;
+                    try {
+                        items = unpack(child, data);
+                    } catch (RuntimeException e) {
+                        return moveToDeadLetterAsync(child, data, -1, e).thenAccept(moved -> { });
+                    }
+                    return zkAsyncSupport.delete(childPath, -1).thenAccept(v -> {
+                        int accepted = Math.min(items.size(), maxElements - taken.size());
+                        taken.addAll(items.subList(0, accepted));
+                        keepUnpacked(items.subList(accepted, items.size()));
+                    });
+                })
+                .handle((v, e) -> {
+                    if (e != null && !(ZkAsyncSupport.unwrap(e) instanceof KeeperException.NoNodeException))
+                        throw new IllegalStateException(ZkAsyncSupport.unwrap(e));
+                    return null;
+                })
+                .thenCompose(v -> drainAsyncStep(children, taken, maxElements));
+    }
+
     private void checkDrainToArgs(Collection<? super Object> c) {
         Preconditions.checkNotNull(c);
         Preconditions.checkArgument(c != this, "the specified collection is this queue");
@@ -0,0 +1,84 @@
+package com.nameof.zookeeper.tools.queue;
+
+/**
+ * <p>{@link ReliableZkQueue}投递出的一个元素，处理完成后调用{@link #ack()}确认，元素才从在途区删除
+ * <p>未确认的元素在消费者会话失效、{@link ReliableZkQueue#destory()}或租约过期后回到队列，被重新投递，
+ * 因此同一个元素可能被处理多次(at-least-once)，处理逻辑应当是幂等的
+ * <p>thread-safe
+ * @Author: chengpan
+ * @Date: 2018/12/24
+ */
+public class ZkDelivery {
+
+    private final ReliableZkQueue queue;
+
+    /** 元素在队列中的节点名 */
+    private final String nodeName;
+
+    /** 在途区中的节点路径 */
+    private final String inflightPath;
+
+    private final byte[] data;
+
+    private final Object item;
+
+    ZkDelivery(ReliableZkQueue queue, String nodeName, String inflightPath, byte[] data, Object item) {
+        this.queue = queue;
+        this.nodeName = nodeName;
+        this.inflightPath = inflightPath;
+        this.data = data;
+        this.item = item;
+    }
+
+    /**
+     * @return 元素；批次节点为按入队顺序排列的元素列表
+     */
+    public Object getItem() {
+        return item;
+    }
+
+    /**
+     * @return 元素在队列中的节点名，重新投递时不变，可用于处理逻辑去重
+     */
+    public String getNodeName() {
+        return nodeName;
+    }
+
+    /**
+     * 确认元素已处理完成，从在途区删除
+     * @return 这次投递已不在在途区(已确认、已退回或已因租约过期回到队列)时返回false，此时元素可能被重新投递，
+     * 重新投递是新的在途节点，不受这次投递的确认、退回和续约影响
+     */
+    public boolean ack() {
+        return queue.ack(this);
+    }
+
+    /**
+     * 放弃处理，元素以原来的节点名回到队列，保持原来的出队顺序
+     * @return 元素已不在在途区时返回false
+     */
+    public boolean nack() {
+        return queue.nack(this);
+    }
+
+    /**
+     * 续约，重新开始租约计时，处理时间可能超过租约时长时定期调用，见{@link ReliableZkQueue#setLease(long, java.util.concurrent.TimeUnit)}
+     * @return 元素已不在在途区时返回false，不应再确认
+     */
+    public boolean renew() {
+        return queue.renew(this);
+    }
+
+    String getInflightPath() {
+        return inflightPath;
+    }
+
+    byte[] getData() {
+        return data;
+    }
+
+    @Override
+    public String toString() {
+        return nodeName + "=" + item;
+    }
+}
@@ -0,0 +1,77 @@
+package com.nameof.zookeeper.tools.queue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>打包模式下批次节点的数据格式，见{@link AbstractZkQueue#setPacking(int, long, java.util.concurrent.TimeUnit)}。
+ * 批次节点名为{@link AbstractZkQueue#PACKED_PREFIX}加序列号，与普通元素节点按序列号统一排序
+ * <pre>
+ *     +-------+---------+-------+--------+--------+--------+--------+-----
+ *     | magic | version | count | length | record | length | record | ...
+ *     | 2     | 1       | 4     | 4      | length | 4      | length |
+ *     +-------+---------+-------+--------+--------+--------+--------+-----
+ * </pre>
+ * <ul>
+ *     <li>magic：固定为0x5A50("ZP")</li>
+ *     <li>version：格式版本，当前为{@link #VERSION}，以后的版本只能在count之后追加字段或改变记录格式，读取时按版本解析</li>
+ *     <li>count：记录个数，大于0</li>
+ *     <li>length、record：每个元素{@link Serializer#serialize(Object)}的结果及其字节数，按入队顺序排列</li>
+ * </ul>
+ * 整数均为大端序。magic不匹配或版本未知时抛出IllegalStateException，不会把批次当作单个元素交给调用方
+ * <p>出队时无法解码的批次整体移入死信区，不阻塞队列，见{@link AbstractZkQueue}
+ * @Author: chengpan
+ * @Date: 2018/12/25
+ */
+final class ZkPackedFrame {
+
+    static final short MAGIC = 0x5A50;
+
+    static final byte VERSION = 1;
+
+    /** magic、version、count */
+    static final int HEADER_BYTES = 7;
+
+    /** 每个记录的长度字段 */
+    static final int RECORD_OVERHEAD = 4;
+
+    private ZkPackedFrame() { }
+
+    static byte[] encode(List<byte[]> records) {
+        int size = HEADER_BYTES;
+        for (byte[] record : records)
+            size += RECORD_OVERHEAD + record.length;
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putShort(MAGIC).put(VERSION).putInt(records.size());
+        for (byte[] record : records)
+            buffer.putInt(record.length).put(record);
+        return buffer.array();
+    }
+
+    static List<byte[]> decode(byte[] frame) {
+        if (frame == null || frame.length < HEADER_BYTES)
+            throw new IllegalStateException("packed frame truncated");
+        ByteBuffer buffer = ByteBuffer.wrap(frame);
+        if (buffer.getShort() != MAGIC)
+            throw new IllegalStateException("packed frame magic mismatch");
+        byte version = buffer.get();
+        if (version != VERSION)
+            throw new IllegalStateException("unsupported packed frame version : " + version);
+        int count = buffer.getInt();
+        if (count <= 0 || count > (frame.length - HEADER_BYTES) / RECORD_OVERHEAD)
+            throw new IllegalStateException("packed frame count invalid : " + count);
+        List<byte[]> records = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            if (buffer.remaining() < RECORD_OVERHEAD)
+                throw new IllegalStateException("packed frame truncated");
+            int length = buffer.getInt();
+            if (length < 0 || length > buffer.remaining())
+                throw new IllegalStateException("packed frame truncated");
+            byte[] record = new byte[length];
+            buffer.get(record);
+            records.add(record);
+        }
+        return records;
+    }
+}
@@ -0,0 +1,527 @@
+package com.nameof.zookeeper.tools.semaphore;
+
+import com.google.common.base.Preconditions;
+import com.nameof.zookeeper.tools.common.WaitDuration;
+import com.nameof.zookeeper.tools.common.ZkAsyncSupport;
+import com.nameof.zookeeper.tools.common.ZkChildrenCache;
+import com.nameof.zookeeper.tools.common.ZkContext;
+import com.nameof.zookeeper.tools.common.ZkPrimitiveSupport;
+import com.nameof.zookeeper.tools.metrics.ZkMetric;
+import com.nameof.zookeeper.tools.metrics.ZkOperation;
+import com.nameof.zookeeper.tools.utils.ZkUtils;
+import org.apache.zookeeper.KeeperException;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * <p>分布式计数信号量，同一个信号量名的所有客户端共享maxPermits个许可，用于限制整个集群的并发数
+ * <p>每次获取在信号量路径下创建一个临时顺序节点，节点名前缀为获取的许可数(如3-0000000012)。
+ * 按序列号排队，当前节点及之前所有节点的许可数之和不超过maxPermits时获取成功，先到先得，许可多的请求不会被许可少的请求插队
+ * <p>等待者只watch一个目标，不会引起羊群效应：
+ * <ul>
+ *     <li>前一个节点也在等待时，只watch前一个节点。每个节点获取成功时写一次自己的节点数据，唤醒排在后面的一个等待者</li>
+ *     <li>之前的节点都已持有许可时，是整个队列中排在最前面的等待者，watch子节点列表等待任意持有者释放，同一时间只有一个这样的等待者</li>
+ * </ul>
+ * <p>许可不属于任何线程，可由任意线程释放；只释放节点的部分许可时，在一个multi事务中以相同序列号、更少的许可数重建节点，不重新排队
+ * <p>批量租借(batchSize大于1)：许可不足时先尝试不等待地向zookeeper获取batchSize个许可，多出的留在本地，
+ * 之后本地线程获取、归还许可只是本地计数，不访问zookeeper。本地没有线程使用许可、本地空闲许可超过batchSize，
+ * 或zookeeper上有其它等待者时，把空闲许可归还给zookeeper
+ * <p>会话过期时已获取的许可随临时节点一起丢失
+ * <p>thread-safe
+ * @Author: chengpan
+ * @Date: 2018/12/19
+ */
+public class ZkSemaphore extends ZkContext {
+
+    private static final String NAMESPACE = "/zksemaphore";
+
+    /** 获取成功时写入节点的数据，只用于唤醒watch该节点的等待者 */
+    private static final byte[] GRANTED = new byte[0];
+
+    private String semaphorePath;
+
+    private int maxPermits;
+
+    /** 每次向zookeeper租借的许可数，1表示不租借 */
+    private int batchSize;
+
+    private ZkPrimitiveSupport zkPrimitiveSupport;
+
+    private ZkAsyncSupport zkAsyncSupport;
+
+    private ZkChildrenCache childrenCache;
+
+    /** 已获取许可的节点，按获取顺序，受this锁保护 */
+    private final Deque<Node> held = new ArrayDeque<>();
+
+    /** 已从zookeeper获取、尚未被使用的许可，受this锁保护 */
+    private int localAvailable;
+
+    /** 已交给调用方使用的许可，受this锁保护 */
+    private int localInUse;
+
+    private volatile boolean destory = false;
+
+    public ZkSemaphore(String semaphoreName, String connectString, int maxPermits) throws IOException, InterruptedException, KeeperException {
+        this(semaphoreName, connectString, maxPermits, 1);
+    }
+
+    /**
+     * @param semaphoreName
+     * @param connectString
+     * @param maxPermits 集群的总许可数，同一个信号量名的所有客户端必须一致
+     * @param batchSize 每次向zookeeper租借的许可数，1表示不租借
+     */
+    public ZkSemaphore(String semaphoreName, String connectString, int maxPermits, int batchSize) throws IOException, InterruptedException, KeeperException {
+        super(connectString);
+        checkArgs(semaphoreName, maxPermits, batchSize);
+        try {
+            init(semaphoreName, maxPermits, batchSize);
+        } catch (KeeperException | InterruptedException | RuntimeException e) {
+            super.destory();
+            throw e;
+        }
+    }
+
+    private void checkArgs(String semaphoreName, int maxPermits, int batchSize) {
+        Preconditions.checkNotNull(semaphoreName, "semaphoreName null");
+        Preconditions.checkArgument(!semaphoreName.contains("/"), "semaphoreName invalid");
+        Preconditions.checkArgument(maxPermits > 0, "maxPermits invalid");
+        Preconditions.checkArgument(batchSize > 0 && batchSize <= maxPermits, "batchSize invalid");
+    }
+
+    private void init(String semaphoreName, int maxPermits, int batchSize) throws KeeperException, InterruptedException {
+        this.semaphorePath = NAMESPACE + "/" + semaphoreName;
+        this.maxPermits = maxPermits;
+        this.batchSize = batchSize;
+        this.zkPrimitiveSupport = new ZkPrimitiveSupport(this);
+        this.zkAsyncSupport = new ZkAsyncSupport(this);
+        this.childrenCache = session.getChildrenCache(semaphorePath);
+
+        checkState();
+        ZkUtils.createPersist(zk, NAMESPACE);
+        //总许可数记录在信号量节点上，拒绝与已有客户端不一致的配置
+        ZkUtils.createPersist(zk, semaphorePath, String.valueOf(maxPermits).getBytes(StandardCharsets.UTF_8));
+        byte[] data = zk.getData(semaphorePath, false, null);
+        if (data != null) {
+            int existing = Integer.parseInt(new String(data, StandardCharsets.UTF_8));
+            Preconditions.checkArgument(existing == maxPermits, "maxPermits %s conflicts with existing %s", maxPermits, existing);
+        }
+    }
+
+    public void acquire() throws InterruptedException {
+        acquire(1);
+    }
+
+    /**
+     * 阻塞，直到获取permits个许可
+     * @param permits
+     * @throws InterruptedException
+     */
+    public void acquire(int permits) throws InterruptedException {
+        acquire(permits, null);
+    }
+
+    public boolean tryAcquire() {
+        return tryAcquire(1);
+    }
+
+    /**
+     * 不等待，许可不足时立即返回false
+     * @param permits
+     * @return
+     */
+    public boolean tryAcquire(int permits) {
+        try {
+            return acquire(permits, WaitDuration.from(0));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    public boolean tryAcquire(long time, TimeUnit unit) throws InterruptedException {
+        return tryAcquire(1, time, unit);
+    }
+
+    public boolean tryAcquire(int permits, long time, TimeUnit unit) throws InterruptedException {
+        return acquire(permits, WaitDuration.from(unit.toMillis(time)));
+    }
+
+    /**
+     * @param duration null表示不限时
+     * @return 是否在超时时间内获取成功
+     */
+    private boolean acquire(int permits, WaitDuration duration) throws InterruptedException {
+        Preconditions.checkArgument(permits > 0 && permits <= maxPermits, "permits invalid");
+        checkState();
+        if (takeLocal(permits))
+            return true;
+        ZkOperation op = beginOperation(ZkMetric.SEMAPHORE_ACQUIRE, semaphorePath);
+        boolean acquired;
+        if (batchSize > permits) {
+            //集群许可不足时不等待整批，只获取需要的数量
+            acquired = acquireNode(batchSize, permits, WaitDuration.from(0))
+                    || acquireNode(permits, permits, duration);
+        } else {
+            acquired = acquireNode(permits, permits, duration);
+        }
+        if (acquired)
+            op.end();
+        return acquired;
+    }
+
+    /**
+     * 从本地租借的空闲许可中获取
+     */
+    private synchronized boolean takeLocal(int permits) {
+        purgeLost();
+        if (localAvailable < permits)
+            return false;
+        localAvailable -= permits;
+        localInUse += permits;
+        return true;
+    }
+
+    /**
+     * 在zookeeper上排队获取permits个许可
+     * @param permits 节点的许可数
+     * @param used 获取成功后交给调用方的许可数，其余留在本地
+     * @param duration null表示不限时
+     * @return 是否在超时时间内获取成功
+     */
+    private boolean acquireNode(int permits, int used, WaitDuration duration) throws InterruptedException {
+        String name = null;
+        long generation = 0;
+        //被唤醒后本地缓存可能还未收到子节点变化事件，直接从服务端读取
+        boolean fresh = false;
+        try {
+            while (true) {
+                try {
+                    if (name == null || generation != session.getGeneration()) {
+                        checkState();
+                        generation = session.getGeneration();
+                        name = createNode(permits);
+                        fresh = false;
+                    }
+                    List<String> children = fresh ? ZkUtils.getChildren(zk, semaphorePath) : childrenCache.getSortedChildren();
+                    Position position = Position.of(children, name);
+                    if (!position.exists) {
+                        //节点已被删除，重新排队
+                        untrackEphemeral(semaphorePath + "/" + name);
+                        name = null;
+                        continue;
+                    }
+                    if (position.ahead + permits <= maxPermits) {
+                        acquired(name, permits, used, generation);
+                        name = null;
+                        return true;
+                    }
+                    if (duration != null && duration.getDuration() <= 0)
+                        return false;
+
+                    fresh = true;
+                    if (position.ahead > maxPermits) {
+                        //前一个节点也在等待，等它获取成功或被删除
+                        zkPrimitiveSupport.waitChanged(semaphorePath + "/" + position.preced, stat -> stat.getVersion() == 0, duration);
+                    } else {
+                        String node = name;
+                        zkPrimitiveSupport.waitChildren(semaphorePath, list -> {
+                            Position p = Position.of(list, node);
+                            return p.exists && p.ahead + permits > maxPermits;
+                        }, duration);
+                    }
+                    getMetrics().incrementRetry(ZkMetric.SEMAPHORE_ACQUIRE, semaphorePath);
+                } catch (KeeperException.SessionExpiredException e) {
+                    checkState();
+                }
+            }
+        } catch (TimeoutException e) {
+            return false;
+        } catch (KeeperException e) {
+            throw new RuntimeException(e);
+        } finally {
+            if (name != null)
+                abandon(name, generation);
+        }
+    }
+
+    private String createNode(int permits) throws KeeperException, InterruptedException {
+        String prefix = permits + "-";
+        String name = prefix + ZkUtils.createTempAndGetSeq(zk, semaphorePath + "/" + prefix);
+        childrenCache.created(name);
+        trackEphemeral(semaphorePath + "/" + name);
+        return name;
+    }
+
+    /**
+     * 记录获取到的节点，并写一次节点数据唤醒watch该节点的等待者
+     */
+    private void acquired(String name, int permits, int used, long generation) {
+        zkAsyncSupport.setData(semaphorePath + "/" + name, GRANTED, 0);
+        synchronized (this) {
+            held.addLast(new Node(name, permits, generation));
+            localAvailable += permits - used;
+            localInUse += used;
+        }
+    }
+
+    /**
+     * 获取失败或超时，删除排队的节点
+     */
+    private void abandon(String name, long generation) {
+        String path = semaphorePath + "/" + name;
+        untrackEphemeral(path);
+        if (generation != session.getGeneration())
+            return;
+        try {
+            if (ZkUtils.deleteNodeIgnoreInterrupt(zk, path))
+                childrenCache.deleted(name);
+        } catch (KeeperException e) {
+            logger.warn("delete semaphore node " + path + " failed", e);
+        }
+    }
+
+    public void release() {
+        release(1);
+    }
+
+    /**
+     * 归还permits个许可，批量租借模式下可能只归还到本地
+     * @param permits
+     * @throws IllegalStateException 当前实例使用中的许可少于permits
+     */
+    public synchronized void release(int permits) {
+        Preconditions.checkArgument(permits > 0, "permits invalid");
+        if (permits > localInUse)
+            throw new IllegalStateException("release " + permits + " permits, but " + localInUse + " in use");
+        localInUse -= permits;
+        localAvailable += permits;
+        int surplus = localAvailable - retained();
+        if (surplus > 0)
+            returnPermits(surplus);
+    }
+
+    /**
+     * 本地保留的空闲许可数：本地仍有许可在使用，且zookeeper上没有其它等待者时，最多保留batchSize个
+     */
+    private int retained() {
+        if (batchSize == 1 || localInUse == 0 || destory)
+            return 0;
+        return hasWaiters() ? 0 : Math.min(localAvailable, batchSize);
+    }
+
+    private boolean hasWaiters() {
+        try {
+            int total = 0;
+            for (String child : childrenCache.getSortedChildren()) {
+                total += permitsOf(child);
+                if (total > maxPermits)
+                    return true;
+            }
+            return false;
+        } catch (KeeperException e) {
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return true;
+        }
+    }
+
+    /**
+     * 从最近获取的节点开始归还count个空闲许可，节点上的许可多于需要归还的数量时缩小节点
+     */
+    private void returnPermits(int count) {
+        localAvailable -= count;
+        while (count > 0 && !held.isEmpty()) {
+            Node node = held.pollLast();
+            String path = semaphorePath + "/" + node.name;
+            if (node.generation != session.getGeneration()) {
+                //节点已随过期的会话删除
+                count -= node.permits;
+                continue;
+            }
+            try {
+                if (node.permits <= count) {
+                    if (ZkUtils.deleteNodeIgnoreInterrupt(zk, path))
+                        childrenCache.deleted(node.name);
+                    untrackEphemeral(path);
+                    count -= node.permits;
+                } else {
+                    Node shrunk = node.shrink(node.permits - count);
+                    try {
+                        ZkUtils.moveTempIgnoreInterrupt(zk, path, semaphorePath + "/" + shrunk.name);
+                        //以相同序列号新建了节点，缓存失效，下次查询时重新加载
+                        childrenCache.removed(node.name);
+                        childrenCache.created(shrunk.name);
+                        trackEphemeral(semaphorePath + "/" + shrunk.name);
+                        held.addLast(shrunk);
+                    } catch (KeeperException.NoNodeException ignore) {
+                        //节点已被删除，许可已经丢失
+                    }
+                    untrackEphemeral(path);
+                    count = 0;
+                }
+            } catch (KeeperException e) {
+                held.addLast(node);
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * 会话重建后，移除随旧会话删除的节点，丢失的许可先从本地空闲许可中扣除
+     */
+    private void purgeLost() {
+        long generation = session.getGeneration();
+        int lost = 0;
+        for (Iterator<Node> it = held.iterator(); it.hasNext(); ) {
+            Node node = it.next();
+            if (node.generation != generation) {
+                lost += node.permits;
+                it.remove();
+            }
+        }
+        localAvailable = Math.max(0, localAvailable - lost);
+    }
+
+    /**
+     * @return 集群中空闲的许可数，加上本地租借的空闲许可数
+     */
+    public int availablePermits() throws InterruptedException {
+        checkState();
+        int holding = 0;
+        try {
+            for (String child : childrenCache.getSortedChildren()) {
+                int permits = permitsOf(child);
+                if (holding + permits > maxPermits)
+                    break;
+                holding += permits;
+            }
+        } catch (KeeperException e) {
+            throw new RuntimeException(e);
+        }
+        synchronized (this) {
+            return maxPermits - holding + localAvailable;
+        }
+    }
+
+    public int getMaxPermits() {
+        return maxPermits;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * @return 当前实例已交给调用方使用的许可数
+     */
+    public synchronized int getPermitsInUse() {
+        return localInUse;
+    }
+
+    @Override
+    protected void onSessionExpired() {
+        if (localInUse > 0 || localAvailable > 0)
+            logger.warn("permits of semaphore {} lost, zookeeper session expired", semaphorePath);
+    }
+
+    /**
+     * 归还所有许可并从共享会话上卸载，重复调用无副作用
+     */
+    @Override
+    public void destory() {
+        synchronized (this) {
+            if (destory)
+                return;
+            destory = true;
+            held.clear();
+            localAvailable = 0;
+            localInUse = 0;
+        }
+        super.destory();
+    }
+
+    @Override
+    protected void checkState() {
+        if (destory)
+            throw new IllegalStateException("semaphore destoryed");
+        super.checkState();
+    }
+
+    private static int permitsOf(String nodeName) {
+        return Integer.parseInt(nodeName.substring(0, nodeName.indexOf('-')));
+    }
+
+    /**
+     * 节点在队列中的位置
+     */
+    private static class Position {
+
+        private boolean exists;
+
+        /** 排在前面的所有节点的许可数之和 */
+        private int ahead;
+
+        /** 最近的前一个节点 */
+        private String preced;
+
+        /**
+         * 只遍历一次子节点、比较解析出的序列号，不排序
+         * @param children 未排序的子节点
+         * @param nodeName
+         */
+        static Position of(List<String> children, String nodeName) {
+            Position position = new Position();
+            long seq = ZkUtils.parseSequence(nodeName);
+            long precedSeq = Long.MIN_VALUE;
+            for (String child : children) {
+                long childSeq = ZkUtils.parseSequence(child);
+                if (childSeq == seq) {
+                    position.exists = true;
+                } else if (childSeq < seq) {
+                    position.ahead += permitsOf(child);
+                    if (childSeq > precedSeq) {
+                        position.preced = child;
+                        precedSeq = childSeq;
+                    }
+                }
+            }
+            return position;
+        }
+    }
+
+    /**
+     * 持有许可的节点
+     */
+    private static class Node {
+
+        private final String name;
+
+        private final int permits;
+
+        /** 创建节点时的会话代数 */
+        private final long generation;
+
+        Node(String name, int permits, long generation) {
+            this.name = name;
+            this.permits = permits;
+            this.generation = generation;
+        }
+
+        /**
+         * @return 相同序列号、许可数为permits的节点
+         */
+        Node shrink(int permits) {
+            return new Node(permits + "-" + name.substring(name.length() - 10), permits, generation);
+        }
+    }
+}
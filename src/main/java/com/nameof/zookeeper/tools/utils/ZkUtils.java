@@ -5,15 +5,39 @@ import com.nameof.zookeeper.tools.queue.Serializer;
 import org.apache.zookeeper.*;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 public class ZkUtils {
 
+    /** 会话超时时间，也是建立连接的最长等待时间 */
+    private static final int SESSION_TIMEOUT_MILLIS = 10_000;
+
+    @FunctionalInterface
+    public interface ZooKeeperFactory {
+        ZooKeeper create(String connectString, int sessionTimeout, Watcher watcher) throws IOException;
+    }
+
     public static ZooKeeper createSync(String zkQuorum, Watcher watcher) throws InterruptedException, IOException {
+        return createSync(zkQuorum, watcher, ZooKeeper::new);
+    }
+
+    /**
+     * 创建zookeeper客户端并等待首个连接事件，最多等待一个会话超时时间
+     * @param zkQuorum
+     * @param watcher
+     * @param factory 用于创建zookeeper客户端子类
+     * @return
+     * @throws InterruptedException
+     * @throws IOException 等待超时，服务端不可达
+     */
+    public static ZooKeeper createSync(String zkQuorum, Watcher watcher, ZooKeeperFactory factory) throws InterruptedException, IOException {
         CountDownLatch cdl = new CountDownLatch(1);
-        ZooKeeper zk = new ZooKeeper(zkQuorum, 10_000, new Watcher() {
+        ZooKeeper zk = factory.create(zkQuorum, SESSION_TIMEOUT_MILLIS, new Watcher() {
             @Override
             public void process(WatchedEvent event) {
                 if (watcher != null)
@@ -21,12 +45,17 @@ public class ZkUtils {
                 cdl.countDown();
             }
         });
+        boolean connected;
         try {
-            cdl.await();
+            connected = cdl.await(SESSION_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
         } catch (InterruptedException e) {
             zk.close();
             throw e;
         }
+        if (!connected) {
+            zk.close();
+            throw new IOException("connect to " + zkQuorum + " timed out");
+        }
         return zk;
     }
 
@@ -36,8 +65,21 @@ public class ZkUtils {
         } catch (KeeperException.NodeExistsException ignore) { }
     }
 
-    public static void crecatePersistSeq(ZooKeeper zk, String path, byte[] data) throws KeeperException, InterruptedException {
-        zk.create(path, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT_SEQUENTIAL);
+    /**
+     * 创建持久节点，节点已存在时不修改其数据
+     */
+    public static void createPersist(ZooKeeper zk, String path, byte[] data) throws KeeperException, InterruptedException {
+        try {
+            zk.create(path, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        } catch (KeeperException.NodeExistsException ignore) { }
+    }
+
+    /**
+     * @return 创建的节点名
+     */
+    public static String crecatePersistSeq(ZooKeeper zk, String path, byte[] data) throws KeeperException, InterruptedException {
+        String s = zk.create(path, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT_SEQUENTIAL);
+        return s.substring(s.lastIndexOf('/') + 1);
     }
 
     public static void createTemp(ZooKeeper zk, String path) throws KeeperException, InterruptedException {
@@ -47,10 +89,39 @@ public class ZkUtils {
     }
 
     public static String createTempAndGetSeq(ZooKeeper zk, String path) throws KeeperException, InterruptedException {
-        String s = zk.create(path, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL);
+        return createTempAndGetSeq(zk, path, null);
+    }
+
+    public static String createTempAndGetSeq(ZooKeeper zk, String path, byte[] data) throws KeeperException, InterruptedException {
+        String s = zk.create(path, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL);
         return s.substring(path.length());
     }
 
+    public static String parentOf(String path) {
+        int idx = path.lastIndexOf('/');
+        return idx <= 0 ? "/" : path.substring(0, idx);
+    }
+
+    /**
+     * 解析顺序节点名末尾10位的序列号
+     * @param nodeName
+     * @return
+     */
+    public static long parseSequence(String nodeName) {
+        int i = nodeName.length() - 10;
+        boolean negative = nodeName.charAt(i) == '-';
+        if (negative)
+            i++;
+        long seq = 0;
+        for (; i < nodeName.length(); i++) {
+            int digit = nodeName.charAt(i) - '0';
+            if (digit < 0 || digit > 9)
+                throw new NumberFormatException("invalid sequence node name : " + nodeName);
+            seq = seq * 10 + digit;
+        }
+        return negative ? -seq : seq;
+    }
+
     public static void deleteChildren(ZooKeeper zk, String path) throws KeeperException, InterruptedException {
         List<String> cs = zk.getChildren(path, false);
         for (String c: cs) {
@@ -67,9 +138,13 @@ public class ZkUtils {
         return o;
     }
 
+    /**
+     * 读取并删除节点，节点被并发删除时抛出NoNodeException，保证同一个节点的数据只被一个调用方取走
+     */
     public static Object getNodeDataWithDelete(ZooKeeper zk, String path, Serializer serializer) throws KeeperException, InterruptedException {
         Object o = getNodeData(zk, path, serializer);
-        ZkUtils.deleteNode(zk, path);
+        if (!ZkUtils.deleteNode(zk, path))
+            throw new KeeperException.NoNodeException(path);
         return o;
     }
 
@@ -78,6 +153,63 @@ public class ZkUtils {
         return list.isEmpty() ? null : list.get(0);
     }
 
+    /**
+     * 在一个multi事务中，为每个前缀创建临时顺序节点
+     * @param zk
+     * @param prefixes 节点除序列号以外的完整路径
+     * @return 与prefixes一一对应的序列号
+     */
+    public static List<String> createTempAndGetSeqs(ZooKeeper zk, List<String> prefixes) throws KeeperException, InterruptedException {
+        return createTempAndGetSeqs(zk, prefixes, null);
+    }
+
+    /**
+     * @see #createTempAndGetSeqs(ZooKeeper, List)
+     * @param data 写入每个节点的数据
+     */
+    public static List<String> createTempAndGetSeqs(ZooKeeper zk, List<String> prefixes, byte[] data) throws KeeperException, InterruptedException {
+        List<Op> ops = new ArrayList<>(prefixes.size());
+        for (String prefix : prefixes)
+            ops.add(Op.create(prefix, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL));
+        List<OpResult> results = zk.multi(ops);
+        List<String> seqs = new ArrayList<>(prefixes.size());
+        for (int i = 0; i < prefixes.size(); i++)
+            seqs.add(((OpResult.CreateResult) results.get(i)).getPath().substring(prefixes.get(i).length()));
+        return seqs;
+    }
+
+    /**
+     * 在一个multi事务中删除所有节点，部分节点已不存在时逐个删除其余节点，忽略中断
+     * @param zk
+     * @param paths
+     * @return 与paths一一对应，节点是否由本次调用删除
+     */
+    public static boolean[] deleteNodesIgnoreInterrupt(ZooKeeper zk, List<String> paths) throws KeeperException {
+        boolean[] deleted = new boolean[paths.size()];
+        List<Op> ops = new ArrayList<>(paths.size());
+        for (String path : paths)
+            ops.add(Op.delete(path, -1));
+        boolean interrupt = false;
+        try {
+            do {
+                try {
+                    zk.multi(ops);
+                    Arrays.fill(deleted, true);
+                    return deleted;
+                } catch (KeeperException.NoNodeException e) {
+                    break;
+                } catch (InterruptedException ignore) {
+                    interrupt = true;
+                }
+            } while (true);
+        } finally {
+            if (interrupt) Thread.currentThread().interrupt();
+        }
+        for (int i = 0; i < paths.size(); i++)
+            deleted[i] = deleteNodeIgnoreInterrupt(zk, paths.get(i));
+        return deleted;
+    }
+
     public static boolean deleteNode(ZooKeeper zk, String s) throws KeeperException, InterruptedException {
         try {
             zk.delete(s, -1);
@@ -105,6 +237,44 @@ public class ZkUtils {
         }
     }
 
+    /**
+     * 在一个multi事务中以to创建临时节点并删除from，忽略中断
+     * @param zk
+     * @param from
+     * @param to 只由调用方创建的节点，中断后重试时已存在说明之前的请求已经成功
+     * @throws KeeperException from不存在时为NoNodeException，两个操作都不生效
+     */
+    public static void moveTempIgnoreInterrupt(ZooKeeper zk, String from, String to) throws KeeperException {
+        moveTempIgnoreInterrupt(zk, from, to, null);
+    }
+
+    /**
+     * @see #moveTempIgnoreInterrupt(ZooKeeper, String, String)
+     * @param data 写入to的数据
+     */
+    public static void moveTempIgnoreInterrupt(ZooKeeper zk, String from, String to, byte[] data) throws KeeperException {
+        List<Op> ops = Arrays.asList(
+                Op.create(to, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL),
+                Op.delete(from, -1));
+        boolean interrupt = false;
+        try {
+            do {
+                try {
+                    zk.multi(ops);
+                    return;
+                } catch (KeeperException.NodeExistsException e) {
+                    if (!interrupt)
+                        throw e;
+                    return;
+                } catch (InterruptedException ignore) {
+                    interrupt = true;
+                }
+            } while (true);
+        } finally {
+            if (interrupt) Thread.currentThread().interrupt();
+        }
+    }
+
     /**
      * 获取所有子节点数据，忽略被并发删除的节点
      * @param zk
@@ -197,13 +367,42 @@ public class ZkUtils {
      * @throws InterruptedException
      */
     public static String getSortedPrecedNodeName(ZooKeeper zk, String path, String nodeName) throws KeeperException, InterruptedException {
-        List<String> sortedChildren = getSortedChildren(zk, path);
-        boolean noOther = sortedChildren.isEmpty() || !sortedChildren.contains(nodeName)
-                || nodeName.equals(sortedChildren.get(0));
-        if (noOther)
-            return nodeName;
-
-        int nodeIdx = sortedChildren.indexOf(nodeName);
-        return sortedChildren.get(nodeIdx - 1);
+        return getSortedPrecedNodeName(getChildren(zk, path), nodeName);
+    }
+
+    /**
+     * @see #getSortedPrecedNodeName(ZooKeeper, String, String)
+     * @param children 未排序的子节点
+     * @param nodeName
+     * @return
+     */
+    public static String getSortedPrecedNodeName(List<String> children, String nodeName) {
+        return getPrecedNodeName(children, nodeName, null);
+    }
+
+    /**
+     * 按序列号获取排在nodeName之前，且节点名前缀为prefix的最近一个节点。
+     * 只遍历一次子节点、比较解析出的序列号，不排序，不创建中间对象
+     * @param children 未排序的子节点
+     * @param nodeName
+     * @param prefix 序列号之前的部分，null表示任意节点
+     * @return 没有满足条件的节点，或nodeName不在children中时返回nodeName
+     */
+    public static String getPrecedNodeName(List<String> children, String nodeName, String prefix) {
+        long seq = parseSequence(nodeName);
+        boolean exists = false;
+        String preced = null;
+        long precedSeq = Long.MIN_VALUE;
+        for (String child : children) {
+            long childSeq = parseSequence(child);
+            if (childSeq == seq) {
+                exists = true;
+            } else if (childSeq < seq && childSeq > precedSeq
+                    && (prefix == null || (child.startsWith(prefix) && child.length() - 10 == prefix.length()))) {
+                preced = child;
+                precedSeq = childSeq;
+            }
+        }
+        return !exists || preced == null ? nodeName : preced;
     }
 }
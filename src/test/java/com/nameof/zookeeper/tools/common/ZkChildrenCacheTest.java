@@ -0,0 +1,47 @@
+package com.nameof.zookeeper.tools.common;
+
+import com.nameof.zookeeper.tools.lock.ReentrantZkLock;
+import com.nameof.zookeeper.tools.utils.ZkUtils;
+import org.apache.zookeeper.ZooKeeper;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @Author: chengpan
+ * @Date: 2018/12/13
+ */
+public class ZkChildrenCacheTest {
+
+    @Test
+    public void testFollowOtherSession() throws Exception {
+        String path = "/zkcache";
+        ZooKeeper other = ZkUtils.createSync("172.16.98.129", null);
+        ZkContext holder = new ReentrantZkLock("cache", "172.16.98.129");
+        ZkSession session = holder.session;
+        try {
+            ZkUtils.createPersist(other, path);
+            ZkUtils.deleteChildren(other, path);
+            ZkChildrenCache cache = session.getChildrenCache(path);
+            Assert.assertNull(cache.first());
+
+            String first = ZkUtils.crecatePersistSeq(other, path + "/", null);
+            String second = ZkUtils.crecatePersistSeq(other, path + "/", null);
+            Assert.assertEquals(first, cache.first());
+            Assert.assertEquals(first, cache.lower(second));
+
+            ZkUtils.deleteNode(other, path + "/" + first);
+            cache.removed(first);
+            Assert.assertEquals(second, cache.first());
+
+            String mine = ZkUtils.crecatePersistSeq(session.getZk(), path + "/", null);
+            cache.created(mine);
+            //自己的创建使缓存失效，下次查询直接重新加载
+            Assert.assertFalse(cache.isWatched());
+            Assert.assertEquals(second, cache.lower(mine));
+            ZkUtils.deleteChildren(other, path);
+        } finally {
+            holder.destory();
+            other.close();
+        }
+    }
+}
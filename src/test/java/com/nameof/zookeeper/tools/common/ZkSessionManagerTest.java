@@ -0,0 +1,35 @@
+package com.nameof.zookeeper.tools.common;
+
+import com.nameof.zookeeper.tools.lock.ReentrantZkLock;
+import com.nameof.zookeeper.tools.lock.ReentrantZkReadWriteLock;
+import org.apache.zookeeper.ZooKeeper;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @Author: chengpan
+ * @Date: 2018/12/3
+ */
+public class ZkSessionManagerTest {
+
+    @Test
+    public void testShareSession() throws Exception {
+        ZkContext l1 = new ReentrantZkLock("s1", "172.16.98.129");
+        ZkContext l2 = new ReentrantZkLock("s2", "172.16.98.129");
+        Assert.assertSame(l1.zk, l2.zk);
+
+        ZooKeeper zk = l1.zk;
+        l1.destory();
+        l1.destory();
+        Assert.assertTrue(zk.getState().isAlive());
+        l2.destory();
+        Assert.assertFalse(zk.getState().isAlive());
+    }
+
+    @Test
+    public void testReadWriteLockShareSession() throws Exception {
+        ReentrantZkReadWriteLock lock = new ReentrantZkReadWriteLock("s3", "172.16.98.129");
+        Assert.assertSame(((ZkContext) lock.readLock()).zk, ((ZkContext) lock.writeLock()).zk);
+        lock.destory();
+    }
+}
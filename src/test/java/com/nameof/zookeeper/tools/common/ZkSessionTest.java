@@ -0,0 +1,43 @@
+package com.nameof.zookeeper.tools.common;
+
+import com.nameof.zookeeper.tools.lock.ReentrantZkLock;
+import org.apache.zookeeper.ZooKeeper;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @Author: chengpan
+ * @Date: 2018/12/3
+ */
+public class ZkSessionTest {
+
+    @Test
+    public void testRecoverAfterExpiry() throws Exception {
+        ReentrantZkLock lock = new ReentrantZkLock("s4", "172.16.98.129");
+        ZkSession session = ((ZkContext) lock).session;
+        ZooKeeper expired = session.getZk();
+        long generation = session.getGeneration();
+        try {
+            //用同一个会话id和密码连接后关闭，服务端关闭该会话，原客户端重连时收到Expired
+            ZooKeeper other = new ZooKeeper("172.16.98.129", 10_000, event -> { },
+                    expired.getSessionId(), expired.getSessionPasswd());
+            other.close();
+
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+            while (session.getGeneration() == generation && System.nanoTime() < deadline)
+                Thread.sleep(10);
+            Assert.assertEquals(generation + 1, session.getGeneration());
+            Assert.assertTrue(session.awaitRecovery(10, TimeUnit.SECONDS));
+            Assert.assertNotSame(expired, session.getZk());
+            Assert.assertSame(session.getZk(), ((ZkContext) lock).zk);
+
+            //原语在新会话上可用
+            Assert.assertTrue(lock.tryLock(10, TimeUnit.SECONDS));
+            lock.unlock();
+        } finally {
+            lock.destory();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.nameof.zookeeper.tools.common;
+
+import com.nameof.zookeeper.tools.common.ZkWatchDispatcher.WatchType;
+import com.nameof.zookeeper.tools.utils.ZkUtils;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @Author: chengpan
+ * @Date: 2018/12/12
+ */
+public class ZkWatchDispatcherTest {
+
+    @Test
+    public void testShareWatch() throws Exception {
+        String path = "/zkdispatcher";
+        ZooKeeper zk = ZkUtils.createSync("172.16.98.129", null);
+        ZkWatchDispatcher dispatcher = new ZkWatchDispatcher();
+        try {
+            ZkUtils.createPersist(zk, path);
+            ZkUtils.deleteChildren(zk, path);
+            AtomicInteger calls = new AtomicInteger();
+            CountDownLatch woken = new CountDownLatch(2);
+            AtomicBoolean removedWoken = new AtomicBoolean();
+            Runnable removed = () -> removedWoken.set(true);
+
+            List<String> first = dispatcher.watch(path, WatchType.CHILDREN, woken::countDown, w -> {
+                calls.incrementAndGet();
+                return zk.getChildren(path, w);
+            });
+            //第二个等待者复用已注册的watch和快照
+            List<String> second = dispatcher.watch(path, WatchType.CHILDREN, woken::countDown, w -> {
+                calls.incrementAndGet();
+                return zk.getChildren(path, w);
+            });
+            dispatcher.watch(path, WatchType.CHILDREN, removed, w -> {
+                calls.incrementAndGet();
+                return zk.getChildren(path, w);
+            });
+            Assert.assertEquals(1, calls.get());
+            Assert.assertSame(first, second);
+            Assert.assertEquals(1, dispatcher.getWatchCount());
+
+            //移除等待者后watch仍然保留
+            dispatcher.unwatch(path, WatchType.CHILDREN, removed);
+            Assert.assertEquals(1, dispatcher.getWatchCount());
+
+            ZkUtils.crecatePersistSeq(zk, path + "/", null);
+            Assert.assertTrue(woken.await(10, TimeUnit.SECONDS));
+            Assert.assertFalse(removedWoken.get());
+            Assert.assertEquals(0, dispatcher.getWatchCount());
+            ZkUtils.deleteChildren(zk, path);
+        } finally {
+            zk.close();
+        }
+    }
+
+    @Test
+    public void testNodeNotExists() throws Exception {
+        String path = "/zkdispatcher-none";
+        ZooKeeper zk = ZkUtils.createSync("172.16.98.129", null);
+        ZkWatchDispatcher dispatcher = new ZkWatchDispatcher();
+        try {
+            ZkUtils.deleteNode(zk, path);
+            AtomicBoolean woken = new AtomicBoolean();
+            Stat stat = dispatcher.watch(path, WatchType.EXISTS, () -> woken.set(true), w -> zk.exists(path, w));
+            //节点不存在时不保留watch，等待者立即被唤醒
+            Assert.assertNull(stat);
+            Assert.assertTrue(woken.get());
+            Assert.assertEquals(0, dispatcher.getWatchCount());
+        } finally {
+            zk.close();
+        }
+    }
+}
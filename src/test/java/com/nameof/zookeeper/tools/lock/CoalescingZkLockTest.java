@@ -0,0 +1,62 @@
+package com.nameof.zookeeper.tools.lock;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @Author: chengpan
+ * @Date: 2018/12/16
+ */
+public class CoalescingZkLockTest {
+
+    @Test
+    public void testLock() throws Exception {
+        final int concurrentSize = 20;
+        ExecutorService es = Executors.newFixedThreadPool(concurrentSize);
+        final CountDownLatch quit = new CountDownLatch(concurrentSize);
+        final AtomicInteger holders = new AtomicInteger();
+        for (int i = 0; i < concurrentSize; i++) {
+            final int no = i;
+            es.submit(()->{
+                CoalescingZkLock lock = null;
+                try {
+                    lock = new CoalescingZkLock("cl1", "172.16.98.129", 4);
+                    lock.lock();
+                    try {
+                        Assert.assertEquals(1, holders.incrementAndGet());
+                        System.out.println("get lock-" + no);
+                        holders.decrementAndGet();
+                    } finally {
+                        lock.unlock();
+                    }
+                } catch (Exception e) {
+                    Assert.fail(e.getMessage());
+                } finally {
+                    if (lock != null) lock.destory();
+                    quit.countDown();
+                }
+            });
+        }
+        quit.await();
+    }
+
+    @Test
+    public void testReentrant() throws Exception {
+        CoalescingZkLock lock = new CoalescingZkLock("cl1", "172.16.98.129");
+        try {
+            lock.lock();
+            Assert.assertTrue(lock.tryLock());
+            lock.unlock();
+            Assert.assertTrue(lock.isHeldByCurrentThread());
+            lock.unlock();
+            Assert.assertFalse(lock.isHeldByCurrentThread());
+        } finally {
+            lock.destory();
+        }
+    }
+}
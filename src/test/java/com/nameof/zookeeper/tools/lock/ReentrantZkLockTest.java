@@ -1,13 +1,19 @@
 package com.nameof.zookeeper.tools.lock;
 
 import com.nameof.zookeeper.tools.common.ZkContext;
+import com.nameof.zookeeper.tools.utils.ZkUtils;
+import org.apache.zookeeper.ZooKeeper;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 
 /**
@@ -61,6 +67,293 @@ public class ReentrantZkLockTest {
         ((ZkContext)lock).destory();
     }
 
+    @Test
+    public void testReentrant() throws Exception {
+        ReentrantZkLock lock = new ReentrantZkLock("l1", "172.16.98.129");
+        try {
+            lock.lock();
+            lock.lock();
+            Assert.assertEquals(2, lock.getHoldCount());
+            lock.unlock();
+            Assert.assertTrue(lock.isHeldByCurrentThread());
+            lock.unlock();
+            Assert.assertFalse(lock.isHeldByCurrentThread());
+        } finally {
+            lock.destory();
+        }
+    }
+
+    @Test
+    public void testFencingToken() throws Exception {
+        ReentrantZkLock lock = new ReentrantZkLock("l1", "172.16.98.129");
+        try {
+            lock.lock();
+            long first = lock.getFencingToken();
+            lock.unlock();
+            Assert.assertEquals(-1, lock.getFencingToken());
+            lock.lock();
+            Assert.assertTrue(lock.getFencingToken() > first);
+            lock.unlock();
+        } finally {
+            lock.destory();
+        }
+    }
+
+    @Test
+    public void testTryLockFastFail() throws Exception {
+        ReentrantZkLock lock = new ReentrantZkLock("l1", "172.16.98.129");
+        ReentrantZkLock other = new ReentrantZkLock("l1", "172.16.98.129");
+        try {
+            lock.lock();
+            long token = lock.getFencingToken();
+            Thread t = new Thread(() -> {
+                for (int i = 0; i < 100; i++)
+                    Assert.assertFalse(other.tryLock());
+            });
+            t.start();
+            t.join();
+            lock.unlock();
+            //失败的tryLock没有创建节点，序列号只随创建增加，只因本次的创建增加1
+            lock.lock();
+            Assert.assertEquals(token + 1, lock.getFencingToken());
+            lock.unlock();
+        } finally {
+            lock.destory();
+            other.destory();
+        }
+    }
+
+    @Test
+    public void testNonfair() throws Exception {
+        ReentrantZkLock lock = new ReentrantZkLock("l2", "172.16.98.129", false);
+        ReentrantZkLock other = new ReentrantZkLock("l2", "172.16.98.129", false);
+        other.setStarvationBound(100, TimeUnit.MILLISECONDS);
+        CountDownLatch tried = new CountDownLatch(1);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread t = new Thread(() -> {
+            try {
+                boolean acquired = other.tryLock();
+                try {
+                    if (acquired)
+                        throw new AssertionError("tryLock succeeded while the lock was held");
+                } finally {
+                    if (acquired)
+                        other.unlock();
+                    tried.countDown();
+                }
+                if (!other.tryLock(10, TimeUnit.SECONDS))
+                    throw new AssertionError("waiter timed out");
+                other.unlock();
+            } catch (Throwable e) {
+                failure.set(e);
+            }
+        });
+        try {
+            lock.lock();
+            long token = lock.getFencingToken();
+            t.start();
+            //等待另一个线程的tryLock失败后再释放
+            Assert.assertTrue(tried.await(10, TimeUnit.SECONDS));
+            lock.unlock();
+            //插队重新获取，或由超过饥饿上限的等待者预留
+            Assert.assertTrue(lock.tryLock(10, TimeUnit.SECONDS));
+            try {
+                Assert.assertTrue(lock.getFencingToken() > token);
+            } finally {
+                lock.unlock();
+            }
+            t.join(10_000);
+            Assert.assertFalse(t.isAlive());
+            Assert.assertNull(failure.get());
+        } finally {
+            lock.destory();
+            other.destory();
+        }
+    }
+
+    @Test
+    public void testLockAsync() throws Exception {
+        ReentrantZkLock lock = new ReentrantZkLock("l4", "172.16.98.129");
+        ReentrantZkLock other = new ReentrantZkLock("l4", "172.16.98.129");
+        ReentrantZkLock timed = new ReentrantZkLock("l4", "172.16.98.129");
+        try {
+            lock.lock();
+            CompletableFuture<Void> acquired = other.lockAsync();
+            Assert.assertFalse(timed.tryLockAsync(100, TimeUnit.MILLISECONDS).get(10, TimeUnit.SECONDS));
+            Assert.assertFalse(acquired.isDone());
+
+            lock.unlock();
+            acquired.get(10, TimeUnit.SECONDS);
+            other.unlock();
+            Assert.assertTrue(timed.tryLockAsync(10, TimeUnit.SECONDS).get(10, TimeUnit.SECONDS));
+            timed.unlock();
+        } finally {
+            lock.destory();
+            other.destory();
+            timed.destory();
+        }
+    }
+
+    @Test
+    public void testLeaseHandoff() throws Exception {
+        ReentrantZkLock first = new ReentrantZkLock("l5", "172.16.98.129");
+        ReentrantZkLock third = new ReentrantZkLock("l5", "172.16.98.129");
+        first.setLease(1, TimeUnit.SECONDS);
+        third.setLease(1, TimeUnit.SECONDS);
+        //第二个竞争者用独立的客户端模拟，成为持有者后只写入一次租约数据，之后停顿
+        ZooKeeper second = ZkUtils.createSync("172.16.98.129", null);
+        AtomicReference<Boolean> acquired = new AtomicReference<>();
+        Thread t = new Thread(() -> {
+            try {
+                acquired.set(third.tryLock(20, TimeUnit.SECONDS));
+            } catch (InterruptedException e) {
+                acquired.set(false);
+            }
+        });
+        try {
+            first.lock();
+            String lockPath = "/zklock/l5";
+            String secondPath = lockPath + "/" + ZkUtils.createTempAndGetSeq(second, lockPath + "/",
+                    ZkLockNodeInfo.current().getBytes(StandardCharsets.UTF_8));
+            t.start();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (ZkUtils.getChildren(second, lockPath).size() < 3 && System.nanoTime() < deadline)
+                Thread.sleep(10);
+            Assert.assertEquals(3, ZkUtils.getChildren(second, lockPath).size());
+
+            first.unlock();
+            second.setData(secondPath, ZkLockLease.encode(ZkLockNodeInfo.current(), 1000), -1);
+            long start = System.nanoTime();
+            t.join(20_000);
+            Assert.assertEquals(Boolean.TRUE, acquired.get());
+            //租约过期后接管，不必等到第二个竞争者的会话超时
+            Assert.assertTrue(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start) < 10);
+            Assert.assertNull(second.exists(secondPath, false));
+            third.unlock();
+        } finally {
+            t.join(20_000);
+            first.destory();
+            third.destory();
+            second.close();
+        }
+    }
+
+    @Test
+    public void testLocalWaiters() throws Exception {
+        ReentrantZkLock holder = new ReentrantZkLock("l6", "172.16.98.129");
+        ReentrantZkLock lock = new ReentrantZkLock("l6", "172.16.98.129");
+        Thread queued = new Thread(lock::lock, "l6-queued");
+        try {
+            holder.lock();
+            queued.start();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (lock.nodeNameSequence == null && System.nanoTime() < deadline)
+                Thread.sleep(10);
+            Assert.assertNotNull(lock.nodeNameSequence);
+
+            //同一实例上的其它线程不会阻塞在正在zookeeper上等待的线程之后
+            long start = System.nanoTime();
+            Assert.assertFalse(lock.tryLock());
+            Assert.assertFalse(lock.tryLock(200, TimeUnit.MILLISECONDS));
+            Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 2_000);
+
+            AtomicReference<Throwable> interrupted = new AtomicReference<>();
+            Thread waiter = new Thread(() -> {
+                try {
+                    lock.lockInterruptibly();
+                } catch (Throwable e) {
+                    interrupted.set(e);
+                }
+            });
+            waiter.start();
+            Thread.sleep(100);
+            waiter.interrupt();
+            waiter.join(10_000);
+            Assert.assertTrue(interrupted.get() instanceof InterruptedException);
+
+            holder.unlock();
+            queued.join(10_000);
+            Assert.assertFalse(queued.isAlive());
+        } finally {
+            holder.destory();
+            lock.destory();
+        }
+    }
+
+    @Test
+    public void testInspect() throws Exception {
+        ReentrantZkLock lock = new ReentrantZkLock("l3", "172.16.98.129");
+        ReentrantZkLock other = new ReentrantZkLock("l3", "172.16.98.129");
+        ZkLockInspector inspector = new ZkLockInspector("172.16.98.129");
+        inspector.startSampling("l3", 10, TimeUnit.MILLISECONDS);
+        Thread t = new Thread(() -> {
+            other.lock();
+            other.unlock();
+        }, "l3-waiter");
+        try {
+            lock.lock();
+            t.start();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            ZkLockSnapshot snapshot = inspector.inspect("l3");
+            while (snapshot.getQueueDepth() == 0 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+                snapshot = inspector.inspect("l3");
+            }
+            Assert.assertEquals(1, snapshot.getQueueDepth());
+            Assert.assertEquals(Thread.currentThread().getName(), snapshot.getHolder().getThread());
+            Assert.assertTrue(snapshot.getHolder().getPid() > 0);
+            Assert.assertEquals("l3-waiter", snapshot.getWaiters().get(0).getThread());
+            //至少经过一次采样再释放
+            Thread.sleep(100);
+            lock.unlock();
+            t.join(10_000);
+            Assert.assertFalse(t.isAlive());
+            //采样线程看到持有者变化后才记录持有时间
+            deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (inspector.getHoldTimes("l3").getCount() == 0 && System.nanoTime() < deadline)
+                Thread.sleep(10);
+            Assert.assertTrue(inspector.getHoldTimes("l3").getCount() > 0);
+        } finally {
+            inspector.destory();
+            lock.destory();
+            other.destory();
+        }
+    }
+
+    @Test
+    public void testCondition() throws Exception {
+        ReentrantZkLock lock = new ReentrantZkLock("l1", "172.16.98.129");
+        ReentrantZkLock other = new ReentrantZkLock("l1", "172.16.98.129");
+        CountDownLatch waiting = new CountDownLatch(1);
+        Thread t = new Thread(() -> {
+            other.lock();
+            try {
+                Condition ready = other.newCondition("ready");
+                waiting.countDown();
+                Assert.assertTrue(ready.await(10, TimeUnit.SECONDS));
+                Assert.assertTrue(other.isHeldByCurrentThread());
+            } catch (InterruptedException e) {
+                Assert.fail(e.getMessage());
+            } finally {
+                other.unlock();
+            }
+        });
+        try {
+            t.start();
+            waiting.await();
+            lock.lock();
+            try {
+                lock.newCondition("ready").signal();
+            } finally {
+                lock.unlock();
+            }
+            t.join();
+        } finally {
+            lock.destory();
+            other.destory();
+        }
+    }
+
     @Test
     public void testLock() throws Exception {
         final int concurrentSize = 20;
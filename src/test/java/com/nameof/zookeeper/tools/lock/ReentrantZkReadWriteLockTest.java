@@ -30,6 +30,47 @@ public class ReentrantZkReadWriteLockTest {
         Assert.assertTrue(t instanceof IllegalStateException);
     }
 
+    @Test
+    public void testDowngrade() throws Exception {
+        ReentrantZkReadWriteLock lock = new ReentrantZkReadWriteLock("l2", "172.16.98.129");
+        try {
+            lock.writeLock().lock();
+            long token = ((AbstractZkLock) lock.writeLock()).getFencingToken();
+            lock.downgrade();
+            //READ-节点与原WRITE-节点的序列号相同
+            Assert.assertEquals(token, ((AbstractZkLock) lock.readLock()).getFencingToken());
+            Assert.assertTrue(((AbstractZkLock) lock.readLock()).isHeldByCurrentThread());
+            Assert.assertFalse(((AbstractZkLock) lock.writeLock()).isHeldByCurrentThread());
+            lock.readLock().unlock();
+        } finally {
+            lock.destory();
+        }
+    }
+
+    @Test
+    public void testSharedReaders() throws Exception {
+        ReentrantZkReadWriteLock lock1 = new ReentrantZkReadWriteLock("l2", "172.16.98.129", true);
+        ReentrantZkReadWriteLock lock2 = new ReentrantZkReadWriteLock("l2", "172.16.98.129", true);
+        try {
+            lock1.readLock().lock();
+            long token = ((SharedZkReadLock) lock1.readLock()).getFencingToken();
+            Thread t = new Thread(() -> {
+                lock2.readLock().lock();
+                Assert.assertEquals(2, ((SharedZkReadLock) lock2.readLock()).getReadLockCount());
+                lock2.readLock().unlock();
+            });
+            t.start();
+            t.join();
+            //两个读者共享同一个READ-节点
+            Assert.assertEquals(token, ((SharedZkReadLock) lock2.readLock()).getFencingToken());
+            lock1.readLock().unlock();
+            Assert.assertEquals(-1, ((SharedZkReadLock) lock1.readLock()).getFencingToken());
+        } finally {
+            lock1.destory();
+            lock2.destory();
+        }
+    }
+
     @Test
     public void testLock() throws Exception {
         final int concurrentSize = 10;
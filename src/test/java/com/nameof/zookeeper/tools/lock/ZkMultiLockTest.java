@@ -0,0 +1,35 @@
+package com.nameof.zookeeper.tools.lock;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * @Author: chengpan
+ * @Date: 2018/12/17
+ */
+public class ZkMultiLockTest {
+
+    @Test
+    public void testExcludeSingleLock() throws Exception {
+        ZkMultiLock multiLock = new ZkMultiLock(Arrays.asList("m1", "m2", "m3"), "172.16.98.129");
+        ReentrantZkLock single = new ReentrantZkLock("m2", "172.16.98.129");
+        try {
+            multiLock.lock();
+            try {
+                Assert.assertFalse(single.tryLock());
+            } finally {
+                multiLock.unlock();
+            }
+            Assert.assertTrue(single.tryLock());
+            Assert.assertFalse(multiLock.tryLock(1, TimeUnit.SECONDS));
+            single.unlock();
+        } finally {
+            multiLock.destory();
+            single.destory();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.nameof.zookeeper.tools.lock;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * @Author: chengpan
+ * @Date: 2018/12/17
+ */
+public class ZkStripedLockTest {
+
+    @Test
+    public void testBulkGet() throws Exception {
+        ZkStripedLock striped = new ZkStripedLock("striped", "172.16.98.129", 8);
+        try {
+            List<String> keys = Arrays.asList("order-1", "order-2", "order-3", "order-1");
+            Assert.assertSame(striped.get("order-1"), striped.get("order-1"));
+            List<Lock> locks = striped.bulkGet(keys);
+            Assert.assertTrue(locks.size() <= 3);
+
+            Lock all = striped.getAll(keys);
+            all.lock();
+            try {
+                System.out.println("locked " + keys);
+            } finally {
+                all.unlock();
+            }
+        } finally {
+            striped.destory();
+        }
+    }
+
+    @Test
+    public void testSameStripeTimedTryLock() throws Exception {
+        ZkStripedLock holder = new ZkStripedLock("striped1", "172.16.98.129", 1);
+        ZkStripedLock striped = new ZkStripedLock("striped1", "172.16.98.129", 1);
+        Lock queuedLock = striped.get("order-1");
+        Thread queued = new Thread(queuedLock::lock);
+        try {
+            holder.get("order-0").lock();
+            queued.start();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (((ReentrantZkLock) queuedLock).nodeNameSequence == null && System.nanoTime() < deadline)
+                Thread.sleep(10);
+
+            //同一段上的其它key在超时时间内返回，不会阻塞在排队的线程之后
+            long start = System.nanoTime();
+            Assert.assertFalse(striped.get("order-2").tryLock(200, TimeUnit.MILLISECONDS));
+            Assert.assertFalse(striped.getAll(Arrays.asList("order-2", "order-3")).tryLock());
+            Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 2_000);
+
+            holder.get("order-0").unlock();
+            queued.join(10_000);
+            Assert.assertFalse(queued.isAlive());
+        } finally {
+            holder.destory();
+            striped.destory();
+        }
+    }
+}
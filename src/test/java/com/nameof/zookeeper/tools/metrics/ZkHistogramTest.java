@@ -0,0 +1,37 @@
+package com.nameof.zookeeper.tools.metrics;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @Author: chengpan
+ * @Date: 2018/12/14
+ */
+public class ZkHistogramTest {
+
+    @Test
+    public void testPercentile() {
+        ZkHistogram histogram = new ZkHistogram();
+        for (int i = 1; i <= 1000; i++)
+            histogram.record(i * 1000L);
+
+        Assert.assertEquals(1000, histogram.getCount());
+        Assert.assertEquals(1000_000L, histogram.getMax());
+        assertNear(500_000L, histogram.getValueAtPercentile(50));
+        assertNear(990_000L, histogram.getValueAtPercentile(99));
+        Assert.assertEquals(1000_000L, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void testBucketBounds() {
+        for (long v : new long[]{0, 1, 7, 8, 9, 15, 16, 1023, 1024, Long.MAX_VALUE}) {
+            int index = ZkHistogram.indexOf(v);
+            Assert.assertTrue(v <= ZkHistogram.upperBoundOf(index));
+            Assert.assertTrue(index == 0 || v > ZkHistogram.upperBoundOf(index - 1));
+        }
+    }
+
+    private static void assertNear(long expected, long actual) {
+        Assert.assertTrue(actual + " not near " + expected, Math.abs(actual - expected) <= expected / 8);
+    }
+}
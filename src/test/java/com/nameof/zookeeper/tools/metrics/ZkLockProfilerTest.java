@@ -0,0 +1,59 @@
+package com.nameof.zookeeper.tools.metrics;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+
+/**
+ * @Author: chengpan
+ * @Date: 2018/12/22
+ */
+public class ZkLockProfilerTest {
+
+    @Test
+    public void testHottest() {
+        InMemoryZkMetrics delegate = new InMemoryZkMetrics();
+        ZkLockProfiler profiler = new ZkLockProfiler(delegate, 1);
+        for (int i = 0; i < 10; i++) {
+            profiler.recordTime(ZkMetric.LOCK_WAIT, "/zklock/cold", 1_000);
+            profiler.recordTime(ZkMetric.LOCK_WAIT, "/zklock/hot", 1_000_000);
+            profiler.recordTime(ZkMetric.LOCK_HOLD, "/zklock/cold", 1_000_000_000);
+        }
+
+        List<ZkLockProfiler.LockWait> hottest = profiler.getHottest(1);
+        Assert.assertEquals(1, hottest.size());
+        Assert.assertEquals("/zklock/hot", hottest.get(0).getPath());
+        Assert.assertEquals(10_000_000L, hottest.get(0).getWaitNanos());
+        Assert.assertEquals(10, hottest.get(0).getCount());
+        Assert.assertEquals(2, profiler.getHottest(10).size());
+        //所有记录转发给被包装的实现
+        Assert.assertEquals(10, delegate.getTime(ZkMetric.LOCK_HOLD, "/zklock/cold").getCount());
+    }
+
+    @Test
+    public void testFailedWaits() {
+        ZkLockProfiler profiler = new ZkLockProfiler(NoopZkMetrics.INSTANCE, 1);
+        profiler.recordTime(ZkMetric.LOCK_WAIT, "/zklock/fast", 1_000_000);
+        //大部分调用方超时放弃的锁，失败的等待同样计入总等待时间
+        for (int i = 0; i < 10; i++)
+            profiler.recordTime(ZkMetric.LOCK_WAIT_FAILED, "/zklock/timeout", 1_000_000);
+
+        ZkLockProfiler.LockWait hottest = profiler.getHottest(1).get(0);
+        Assert.assertEquals("/zklock/timeout", hottest.getPath());
+        Assert.assertEquals(10_000_000L, hottest.getWaitNanos());
+        Assert.assertEquals(0, hottest.getCount());
+        Assert.assertEquals(10, hottest.getFailedCount());
+        Assert.assertEquals(10_000_000L, hottest.getFailedWaitNanos());
+    }
+
+    @Test
+    public void testSampling() {
+        ZkLockProfiler profiler = new ZkLockProfiler(NoopZkMetrics.INSTANCE, 10);
+        for (int i = 0; i < 100_000; i++)
+            profiler.recordTime(ZkMetric.LOCK_WAIT, "/zklock/test", 1_000);
+
+        long count = profiler.getHottest(1).get(0).getCount();
+        Assert.assertTrue(count + " not near 100000", Math.abs(count - 100_000) <= 10_000);
+    }
+}
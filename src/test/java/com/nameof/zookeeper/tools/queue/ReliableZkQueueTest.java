@@ -0,0 +1,103 @@
+package com.nameof.zookeeper.tools.queue;
+
+import org.apache.zookeeper.KeeperException;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @Author: chengpan
+ * @Date: 2018/12/24
+ */
+public class ReliableZkQueueTest {
+
+    private static final Serializer SERIALIZER = new Serializer() {
+        @Override
+        public byte[] serialize(Object obj) {
+            return obj.toString().getBytes();
+        }
+
+        @Override
+        public Object deserialize(byte[] bytes) {
+            return new String(bytes);
+        }
+    };
+
+    private ReliableZkQueue zkQueue;
+
+    @Before
+    public void before() throws InterruptedException, IOException, KeeperException {
+        zkQueue = new ReliableZkQueue("reliable", "172.16.98.129", SERIALIZER);
+        zkQueue.clear();
+    }
+
+    @After
+    public void after() {
+        zkQueue.destory();
+    }
+
+    @Test
+    public void testAck() throws InterruptedException {
+        zkQueue.add("1");
+        ZkDelivery delivery = zkQueue.takeDelivery();
+        Assert.assertEquals("1", delivery.getItem());
+        Assert.assertTrue(zkQueue.isEmpty());
+        Assert.assertTrue(delivery.ack());
+        Assert.assertFalse(delivery.ack());
+        Assert.assertNull(zkQueue.pollDelivery(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testNack() {
+        zkQueue.add("1");
+        zkQueue.add("2");
+        ZkDelivery delivery = zkQueue.pollDelivery();
+        Assert.assertTrue(delivery.nack());
+        //回到原来的位置
+        ZkDelivery again = zkQueue.pollDelivery();
+        Assert.assertEquals("1", again.getItem());
+        Assert.assertEquals(delivery.getNodeName(), again.getNodeName());
+        Assert.assertFalse(delivery.ack());
+        Assert.assertTrue(again.ack());
+    }
+
+    @Test
+    public void testConsumerLost() throws Exception {
+        ReliableZkQueue other = new ReliableZkQueue("reliable", "172.16.98.129", SERIALIZER);
+        other.setPrefetch(2);
+        zkQueue.add("1");
+        zkQueue.add("2");
+        ZkDelivery lost = other.takeDelivery();
+        Assert.assertEquals("1", lost.getItem());
+        Assert.assertTrue(zkQueue.isEmpty());
+        //已交出未确认的"1"和预取未交出的"2"都在卸载时退回
+        other.destory();
+        Assert.assertFalse(lost.ack());
+
+        ZkDelivery delivery = zkQueue.pollDelivery();
+        Assert.assertEquals("1", delivery.getItem());
+        Assert.assertTrue(delivery.ack());
+        Assert.assertEquals("2", zkQueue.pollDelivery().getItem());
+    }
+
+    @Test
+    public void testLease() throws InterruptedException {
+        zkQueue.setLease(1, TimeUnit.SECONDS);
+        zkQueue.add("1");
+        ZkDelivery delivery = zkQueue.takeDelivery();
+        for (int i = 0; i < 4; i++) {
+            Thread.sleep(500);
+            Assert.assertTrue(delivery.renew());
+        }
+        Assert.assertNull(zkQueue.pollDelivery());
+
+        ZkDelivery expired = zkQueue.pollDelivery(10, TimeUnit.SECONDS);
+        Assert.assertEquals("1", expired.getItem());
+        Assert.assertFalse(delivery.ack());
+        Assert.assertTrue(expired.ack());
+    }
+}
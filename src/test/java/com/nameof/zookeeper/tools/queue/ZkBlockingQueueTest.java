@@ -2,7 +2,11 @@ package com.nameof.zookeeper.tools.queue;
 
 import com.google.common.collect.Lists;
 import com.nameof.zookeeper.tools.common.ZkContext;
+import com.nameof.zookeeper.tools.utils.ZkUtils;
+import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
@@ -10,7 +14,11 @@ import org.junit.Test;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -48,6 +56,24 @@ public class ZkBlockingQueueTest {
         Assert.assertEquals(5, TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - l));
     }
 
+    @Test
+    public void testUndecodableHead() throws Exception {
+        zkQueue.clear();
+        ZooKeeper zk = ZkUtils.createSync("172.16.98.129", event -> { });
+        try {
+            String deadLetterPath = AbstractZkQueue.DEAD_LETTER_NAMESPACE + "/simple";
+            int dead = zk.getChildren(deadLetterPath, false).size();
+            zk.create(AbstractZkQueue.NAMESPACE + "/simple/" + AbstractZkQueue.PACKED_PREFIX, new byte[]{1, 2, 3},
+                    ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT_SEQUENTIAL);
+            zkQueue.add("1");
+            //无法解码的批次移入死信区，不阻塞后面的元素
+            Assert.assertEquals("1", zkQueue.poll());
+            Assert.assertEquals(dead + 1, zk.getChildren(deadLetterPath, false).size());
+        } finally {
+            zk.close();
+        }
+    }
+
     @Test
     public void testDrainTo() throws InterruptedException {
         zkQueue.clear();
@@ -58,6 +84,61 @@ public class ZkBlockingQueueTest {
         Assert.assertEquals(1, list.size());
     }
 
+    @Test
+    public void testPutAll() throws InterruptedException {
+        zkQueue.clear();
+        ZkBlockingQueue queue = (ZkBlockingQueue) zkQueue;
+        //每个事务只容纳少量元素，覆盖多个事务流水线发送的情况
+        queue.setBatchBytes(1024);
+        List<Object> items = new ArrayList<>();
+        for (int i = 0; i < 1000; i++)
+            items.add(String.valueOf(i));
+        items.add(500, null);
+
+        ZkBatchResult result = queue.putAll(items);
+        Assert.assertEquals(1000, result.getSucceeded());
+        Assert.assertEquals(Collections.singleton(500), result.getFailures().keySet());
+        ArrayList<Object> list = Lists.newArrayList();
+        zkQueue.drainTo(list);
+        items.remove(500);
+        Assert.assertEquals(items, list);
+    }
+
+    @Test
+    public void testTakeBatch() throws Exception {
+        zkQueue.clear();
+        ZkBlockingQueue queue = (ZkBlockingQueue) zkQueue;
+        Assert.assertTrue(queue.takeBatch(10, 100, TimeUnit.MILLISECONDS).isEmpty());
+
+        for (int i = 0; i < 5; i++)
+            zkQueue.add(String.valueOf(i));
+        Assert.assertEquals(Arrays.asList("0", "1", "2"), queue.takeBatch(3, 1, TimeUnit.SECONDS));
+        Assert.assertEquals(Arrays.asList("3", "4"), queue.takeBatch(3, 1, TimeUnit.SECONDS));
+
+        Thread t = new Thread(() -> zkQueue.add("5"));
+        t.start();
+        Assert.assertEquals(Collections.singletonList("5"), queue.takeBatch(3, 10, TimeUnit.SECONDS));
+        t.join();
+    }
+
+    @Test
+    public void testAsync() throws Exception {
+        zkQueue.clear();
+        ZkBlockingQueue queue = (ZkBlockingQueue) zkQueue;
+        Assert.assertNull(queue.pollAsync().get(10, TimeUnit.SECONDS));
+
+        CompletableFuture<Object> taken = queue.takeAsync();
+        Assert.assertTrue(queue.offerAsync("1").get(10, TimeUnit.SECONDS));
+        Assert.assertEquals("1", taken.get(10, TimeUnit.SECONDS));
+
+        Assert.assertTrue(queue.offerAsync("2").get(10, TimeUnit.SECONDS));
+        Assert.assertTrue(queue.offerAsync("3").get(10, TimeUnit.SECONDS));
+        Assert.assertEquals("2", queue.pollAsync().get(10, TimeUnit.SECONDS));
+        List<Object> list = new ArrayList<>();
+        Assert.assertEquals(1, (int) queue.drainToAsync(list).get(10, TimeUnit.SECONDS));
+        Assert.assertEquals(Collections.singletonList("3"), list);
+    }
+
     @Test
     public void testTake() throws InterruptedException {
         System.out.println(zkQueue.take());
@@ -0,0 +1,48 @@
+package com.nameof.zookeeper.tools.queue;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * @Author: chengpan
+ * @Date: 2018/12/25
+ */
+public class ZkPackedFrameTest {
+
+    @Test
+    public void testEncodeDecode() {
+        List<byte[]> records = Arrays.asList("a".getBytes(), new byte[0], "bcd".getBytes());
+        byte[] frame = ZkPackedFrame.encode(records);
+        Assert.assertEquals(ZkPackedFrame.HEADER_BYTES + 3 * ZkPackedFrame.RECORD_OVERHEAD + 4, frame.length);
+        Assert.assertEquals(0x5A, frame[0]);
+        Assert.assertEquals(0x50, frame[1]);
+        Assert.assertEquals(ZkPackedFrame.VERSION, frame[2]);
+
+        List<byte[]> decoded = ZkPackedFrame.decode(frame);
+        Assert.assertEquals(3, decoded.size());
+        for (int i = 0; i < records.size(); i++)
+            Assert.assertArrayEquals(records.get(i), decoded.get(i));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testUnknownVersion() {
+        byte[] frame = ZkPackedFrame.encode(Arrays.asList("a".getBytes()));
+        frame[2] = 2;
+        ZkPackedFrame.decode(frame);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testTruncated() {
+        byte[] frame = ZkPackedFrame.encode(Arrays.asList("abc".getBytes()));
+        ZkPackedFrame.decode(Arrays.copyOf(frame, frame.length - 1));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testEmpty() {
+        ZkPackedFrame.decode(ZkPackedFrame.encode(Collections.<byte[]>emptyList()));
+    }
+}
@@ -8,7 +8,13 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author chengpan
@@ -48,6 +54,65 @@ public class ZkQueueTest {
         Assert.assertEquals(0, zkQueue.size());
     }
 
+    @Test
+    public void testRelaxedHeadSelection() throws Exception {
+        zkQueue.clear();
+        ZkQueue other = new ZkQueue("simple", "172.16.98.129", new Serializer() {
+            @Override
+            public byte[] serialize(Object obj) {
+                return obj.toString().getBytes();
+            }
+
+            @Override
+            public Object deserialize(byte[] bytes) {
+                return new String(bytes);
+            }
+        });
+        try {
+            ((ZkQueue) zkQueue).setHeadSelection(4, false);
+            other.setHeadSelection(4, false);
+            Set<Object> expected = new HashSet<>();
+            for (int i = 0; i < 20; i++) {
+                zkQueue.add(String.valueOf(i));
+                expected.add(String.valueOf(i));
+            }
+            //两个消费者交替出队，每个元素只被取走一次
+            List<Object> taken = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                Object o = (i % 2 == 0 ? zkQueue : other).poll();
+                Assert.assertNotNull(o);
+                taken.add(o);
+            }
+            Assert.assertNull(zkQueue.poll());
+            Assert.assertEquals(expected, new HashSet<>(taken));
+        } finally {
+            other.destory();
+        }
+    }
+
+    @Test
+    public void testPacking() throws Exception {
+        zkQueue.clear();
+        ZkQueue queue = (ZkQueue) zkQueue;
+        queue.setPacking(3, 200, TimeUnit.MILLISECONDS);
+        for (int i = 0; i < 7; i++)
+            zkQueue.add(String.valueOf(i));
+        //两个写满的批次，最后一个元素还在本地
+        Assert.assertEquals(2, zkQueue.size());
+        Thread.sleep(500);
+        Assert.assertEquals(3, zkQueue.size());
+        Assert.assertEquals(Arrays.asList("0", "1", "2", "3", "4", "5", "6"), Arrays.asList(zkQueue.toArray()));
+
+        //批次拆开后逐个交给调用方，与不打包的元素按入队顺序混合
+        queue.setPacking(1, 0, TimeUnit.MILLISECONDS);
+        zkQueue.add("7");
+        Assert.assertEquals("0", zkQueue.poll());
+        Assert.assertEquals("1", zkQueue.peek());
+        for (int i = 1; i < 8; i++)
+            Assert.assertEquals(String.valueOf(i), zkQueue.poll());
+        Assert.assertNull(zkQueue.poll());
+    }
+
     @Test
     public void testToArray() {
         zkQueue.clear();
@@ -0,0 +1,84 @@
+package com.nameof.zookeeper.tools.semaphore;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @Author: chengpan
+ * @Date: 2018/12/19
+ */
+public class ZkSemaphoreTest {
+
+    @Test
+    public void testTryAcquire() throws Exception {
+        ZkSemaphore semaphore = new ZkSemaphore("s1", "172.16.98.129", 3);
+        ZkSemaphore other = new ZkSemaphore("s1", "172.16.98.129", 3);
+        try {
+            Assert.assertTrue(semaphore.tryAcquire(2));
+            Assert.assertFalse(other.tryAcquire(2));
+            Assert.assertTrue(other.tryAcquire(1));
+            Assert.assertFalse(other.tryAcquire(1, 1, TimeUnit.SECONDS));
+            semaphore.release(2);
+            Assert.assertTrue(other.tryAcquire(2, 1, TimeUnit.SECONDS));
+            other.release(3);
+        } finally {
+            semaphore.destory();
+            other.destory();
+        }
+    }
+
+    @Test
+    public void testConcurrency() throws Exception {
+        final int maxPermits = 3;
+        final int threads = 10;
+        ExecutorService es = Executors.newFixedThreadPool(threads);
+        AtomicInteger concurrent = new AtomicInteger();
+        AtomicInteger peak = new AtomicInteger();
+        CountDownLatch quit = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            es.submit(() -> {
+                ZkSemaphore semaphore = null;
+                try {
+                    semaphore = new ZkSemaphore("s2", "172.16.98.129", maxPermits);
+                    semaphore.acquire();
+                    try {
+                        peak.accumulateAndGet(concurrent.incrementAndGet(), Math::max);
+                        Thread.sleep(200);
+                        concurrent.decrementAndGet();
+                    } finally {
+                        semaphore.release();
+                    }
+                } catch (Exception e) {
+                    Assert.fail(e.getMessage());
+                } finally {
+                    if (semaphore != null) semaphore.destory();
+                    quit.countDown();
+                }
+            });
+        }
+        quit.await();
+        es.shutdown();
+        Assert.assertTrue(peak.get() <= maxPermits);
+    }
+
+    @Test
+    public void testBatch() throws Exception {
+        ZkSemaphore semaphore = new ZkSemaphore("s3", "172.16.98.129", 10, 4);
+        try {
+            semaphore.acquire();
+            //其余3个许可留在本地，不访问zookeeper
+            Assert.assertTrue(semaphore.tryAcquire(3));
+            Assert.assertEquals(4, semaphore.getPermitsInUse());
+            semaphore.release(4);
+            Assert.assertEquals(10, semaphore.availablePermits());
+        } finally {
+            semaphore.destory();
+        }
+    }
+}
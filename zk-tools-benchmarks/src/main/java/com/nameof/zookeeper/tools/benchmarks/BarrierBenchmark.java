@@ -0,0 +1,87 @@
+package com.nameof.zookeeper.tools.benchmarks;
+
+import com.nameof.zookeeper.tools.barrier.ZkBarrier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * N个参与方通过同一个{@link ZkBarrier}完成一次enter/leave的耗时，每次调用使用新的栅栏名
+ * @Author: chengpan
+ * @Date: 2018/12/15
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BarrierBenchmark {
+
+    @Param({"2", "4", "8"})
+    public int parties;
+
+    private String connectString;
+
+    private ExecutorService executor;
+
+    private int round;
+
+    private final List<ZkBarrier> barriers = new ArrayList<>();
+
+    @Setup(Level.Trial)
+    public void setup(ZkServerState server) {
+        connectString = server.connectString;
+        executor = Executors.newFixedThreadPool(parties);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Setup(Level.Invocation)
+    public void prepare() throws Exception {
+        String name = "bench-" + parties + "-" + round++;
+        for (int i = 0; i < parties; i++)
+            barriers.add(new ZkBarrier(name, connectString, parties));
+    }
+
+    @TearDown(Level.Invocation)
+    public void release() {
+        for (ZkBarrier barrier : barriers)
+            barrier.destory();
+        barriers.clear();
+    }
+
+    @Benchmark
+    public void enterLeave() throws Exception {
+        List<Future<?>> futures = new ArrayList<>(parties);
+        for (ZkBarrier barrier : barriers) {
+            futures.add(executor.submit(() -> {
+                barrier.enter();
+                barrier.leave();
+                return null;
+            }));
+        }
+        for (Future<?> future : futures)
+            future.get();
+    }
+}
@@ -0,0 +1,95 @@
+package com.nameof.zookeeper.tools.benchmarks;
+
+import com.nameof.zookeeper.tools.election.SimpleZkElector;
+import com.nameof.zookeeper.tools.election.ZkElectionListener;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link SimpleZkElector}的故障转移耗时：从master退出选举到standby收到onMaster为止，每次调用使用新的服务名
+ * @Author: chengpan
+ * @Date: 2018/12/15
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ElectionBenchmark {
+
+    private String connectString;
+
+    private int round;
+
+    private SimpleZkElector master;
+
+    private SimpleZkElector standby;
+
+    private CountDownLatch promoted;
+
+    @Setup(Level.Trial)
+    public void setup(ZkServerState server) {
+        connectString = server.connectString;
+    }
+
+    @Setup(Level.Invocation)
+    public void prepare() throws Exception {
+        String serviceName = "bench-" + round++;
+        CountDownLatch elected = new CountDownLatch(1);
+        master = new SimpleZkElector(serviceName, connectString, new LatchListener(elected));
+        master.joinElection();
+        elected.await();
+
+        promoted = new CountDownLatch(1);
+        standby = new SimpleZkElector(serviceName, connectString, new LatchListener(promoted));
+        standby.joinElection();
+    }
+
+    @TearDown(Level.Invocation)
+    public void release() throws Exception {
+        standby.quitElection();
+    }
+
+    @Benchmark
+    public void failover() throws Exception {
+        master.quitElection();
+        promoted.await();
+    }
+
+    private static class LatchListener implements ZkElectionListener {
+
+        private final CountDownLatch latch;
+
+        LatchListener(CountDownLatch latch) {
+            this.latch = latch;
+        }
+
+        @Override
+        public void onMaster() {
+            latch.countDown();
+        }
+
+        @Override
+        public void onSlave() {
+        }
+
+        @Override
+        public void onError(Throwable e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.nameof.zookeeper.tools.benchmarks;
+
+import org.apache.zookeeper.server.ServerCnxnFactory;
+import org.apache.zookeeper.server.ZooKeeperServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * 进程内的单机zookeeper 3.4服务端，使用临时目录和随机端口
+ * @Author: chengpan
+ * @Date: 2018/12/15
+ */
+public class EmbeddedZooKeeper {
+
+    private final Path dir;
+
+    private final ZooKeeperServer server;
+
+    private final ServerCnxnFactory factory;
+
+    private EmbeddedZooKeeper(Path dir, ZooKeeperServer server, ServerCnxnFactory factory) {
+        this.dir = dir;
+        this.server = server;
+        this.factory = factory;
+    }
+
+    public static EmbeddedZooKeeper start() throws IOException, InterruptedException {
+        Path dir = Files.createTempDirectory("zk-tools-benchmarks");
+        File file = dir.toFile();
+        ZooKeeperServer server = new ZooKeeperServer(file, file, 2000);
+        ServerCnxnFactory factory = ServerCnxnFactory.createFactory(new InetSocketAddress("127.0.0.1", 0), 1000);
+        factory.startup(server);
+        return new EmbeddedZooKeeper(dir, server, factory);
+    }
+
+    public String getConnectString() {
+        return "127.0.0.1:" + factory.getLocalPort();
+    }
+
+    public void stop() throws IOException {
+        factory.shutdown();
+        server.shutdown();
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+}
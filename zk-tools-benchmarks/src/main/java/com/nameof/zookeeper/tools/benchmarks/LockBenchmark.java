@@ -0,0 +1,85 @@
+package com.nameof.zookeeper.tools.benchmarks;
+
+import com.nameof.zookeeper.tools.lock.ReentrantZkLock;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ReentrantZkLock}加锁、解锁一次的耗时
+ * <p>uncontended：每个线程使用各自的锁名；contended：4个线程竞争同一个锁名，
+ * 每个线程持有独立的锁实例(同一JVM内共享一个zookeeper会话)，分别测量公平与非公平模式
+ * @Author: chengpan
+ * @Date: 2018/12/15
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LockBenchmark {
+
+    @State(Scope.Thread)
+    public static class UncontendedLock {
+
+        ReentrantZkLock lock;
+
+        @Setup(Level.Trial)
+        public void setup(ZkServerState server, ThreadParams thread) throws Exception {
+            lock = new ReentrantZkLock("uncontended-" + thread.getThreadIndex(), server.connectString);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            lock.destory();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ContendedLock {
+
+        /** 同一个锁名的所有客户端必须使用相同的模式，两种模式使用不同的锁名 */
+        @Param({"true", "false"})
+        boolean fair;
+
+        ReentrantZkLock lock;
+
+        @Setup(Level.Trial)
+        public void setup(ZkServerState server) throws Exception {
+            lock = new ReentrantZkLock("contended-" + (fair ? "fair" : "nonfair"), server.connectString, fair);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            lock.destory();
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void uncontended(UncontendedLock state) {
+        state.lock.lock();
+        state.lock.unlock();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void contended(ContendedLock state) {
+        state.lock.lock();
+        state.lock.unlock();
+    }
+}
@@ -0,0 +1,139 @@
+package com.nameof.zookeeper.tools.benchmarks;
+
+import com.nameof.zookeeper.tools.utils.ZkUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * waiters个等待者时，一次唤醒查找前一个节点的耗时，不访问zookeeper
+ * <p>legacy*为改进前的实现：排序整个子节点列表后contains、indexOf，读写锁为每个子节点创建对象后排序再向前扫描；
+ * 读锁场景下只有第一个节点是写锁，查找最后一个读锁节点之前的写锁，是向前扫描的最坏情况
+ * @Author: chengpan
+ * @Date: 2018/12/17
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PredecessorLookupBenchmark {
+
+    private static final String READ_PREFIX = "READ-";
+    private static final String WRITE_PREFIX = "WRITE-";
+
+    @Param({"100", "10000"})
+    public int waiters;
+
+    /** 排它锁的子节点，zookeeper返回的顺序是无序的 */
+    private List<String> children;
+
+    private String last;
+
+    /** 读写锁的子节点 */
+    private List<String> rwChildren;
+
+    private String lastReader;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        children = new ArrayList<>(waiters);
+        rwChildren = new ArrayList<>(waiters);
+        for (int i = 0; i < waiters; i++) {
+            String seq = String.format("%010d", i);
+            children.add(seq);
+            rwChildren.add((i == 0 ? WRITE_PREFIX : READ_PREFIX) + seq);
+        }
+        last = children.get(waiters - 1);
+        lastReader = rwChildren.get(waiters - 1);
+        Collections.shuffle(children, new Random(1));
+        Collections.shuffle(rwChildren, new Random(1));
+    }
+
+    @Benchmark
+    public String legacyExclusive() {
+        List<String> sortedChildren = new ArrayList<>(children);
+        Collections.sort(sortedChildren);
+        boolean noOther = sortedChildren.isEmpty() || !sortedChildren.contains(last)
+                || last.equals(sortedChildren.get(0));
+        if (noOther)
+            return last;
+        return sortedChildren.get(sortedChildren.indexOf(last) - 1);
+    }
+
+    @Benchmark
+    public String exclusive() {
+        return ZkUtils.getSortedPrecedNodeName(new ArrayList<>(children), last);
+    }
+
+    @Benchmark
+    public String legacyReader() {
+        List<LegacyEntry> entries = new ArrayList<>(rwChildren).stream()
+                .map(LegacyEntry::fromNodeName).collect(Collectors.toList());
+        Collections.sort(entries);
+        LegacyEntry current = LegacyEntry.fromNodeName(lastReader);
+        for (int i = entries.indexOf(current) - 1; i >= 0; i--) {
+            LegacyEntry entry = entries.get(i);
+            if (!entry.readNode)
+                return entry.getNodeName();
+        }
+        return lastReader;
+    }
+
+    @Benchmark
+    public String reader() {
+        return ZkUtils.getPrecedNodeName(new ArrayList<>(rwChildren), lastReader, WRITE_PREFIX);
+    }
+
+    private static class LegacyEntry implements Comparable<LegacyEntry> {
+        private final boolean readNode;
+        private final String nodeSeq;
+
+        LegacyEntry(boolean readNode, String nodeSeq) {
+            this.readNode = readNode;
+            this.nodeSeq = nodeSeq;
+        }
+
+        static LegacyEntry fromNodeName(String nodeName) {
+            if (nodeName.startsWith(WRITE_PREFIX))
+                return new LegacyEntry(false, nodeName.substring(WRITE_PREFIX.length()));
+            return new LegacyEntry(true, nodeName.substring(READ_PREFIX.length()));
+        }
+
+        String getNodeName() {
+            return readNode ? READ_PREFIX + nodeSeq : WRITE_PREFIX + nodeSeq;
+        }
+
+        @Override
+        public int compareTo(LegacyEntry o) {
+            return nodeSeq.compareTo(o.nodeSeq);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof LegacyEntry && nodeSeq.equals(((LegacyEntry) obj).nodeSeq);
+        }
+
+        @Override
+        public int hashCode() {
+            return nodeSeq.hashCode();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.nameof.zookeeper.tools.benchmarks;
+
+import com.nameof.zookeeper.tools.queue.Serializer;
+import com.nameof.zookeeper.tools.queue.ZkBlockingQueue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ZkBlockingQueue}在不同队列深度下的offer/poll、drainTo耗时
+ * <p>offerPoll入队、出队各一个元素，队列深度保持不变；drainTo每次调用前重新填充depth个元素，只统计drainTo本身
+ * <p>contendedPoll由多个消费者同时入队、出队，比较严格FIFO与在队首多个元素上分散竞争的出队方式
+ * @Author: chengpan
+ * @Date: 2018/12/15
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class QueueBenchmark {
+
+    private static final Serializer SERIALIZER = new Serializer() {
+        @Override
+        public byte[] serialize(Object obj) {
+            return obj.toString().getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public Object deserialize(byte[] bytes) {
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    };
+
+    @Param({"0", "100", "1000"})
+    public int depth;
+
+    private ZkBlockingQueue queue;
+
+    private final List<Object> drained = new ArrayList<>();
+
+    @Setup(Level.Trial)
+    public void setup(ZkServerState server) throws Exception {
+        queue = new ZkBlockingQueue("bench-" + depth, server.connectString, SERIALIZER);
+        queue.clear();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        queue.clear();
+        queue.destory();
+    }
+
+    @State(Scope.Benchmark)
+    public static class Filled {
+
+        @Setup(Level.Iteration)
+        public void fill(QueueBenchmark benchmark) {
+            benchmark.refill();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Refilled {
+
+        @Setup(Level.Invocation)
+        public void fill(QueueBenchmark benchmark) {
+            benchmark.refill();
+        }
+    }
+
+    private void refill() {
+        queue.clear();
+        for (int i = 0; i < depth; i++)
+            queue.offer("item-" + i);
+    }
+
+    @State(Scope.Thread)
+    public static class Consumer {
+
+        /** 1为严格FIFO，其余为在队首candidates个元素上分散竞争 */
+        @Param({"1", "16"})
+        int candidates;
+
+        ZkBlockingQueue queue;
+
+        @Setup(Level.Trial)
+        public void setup(ZkServerState server) throws Exception {
+            queue = new ZkBlockingQueue("bench-contended-" + candidates, server.connectString, SERIALIZER);
+            queue.setHeadSelection(candidates, candidates == 1);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            queue.destory();
+        }
+    }
+
+    @Benchmark
+    public Object offerPoll(Filled filled) {
+        queue.offer("item");
+        return queue.poll();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public Object contendedPoll(Consumer consumer) {
+        consumer.queue.offer("item");
+        return consumer.queue.poll();
+    }
+
+    @Benchmark
+    public int drainTo(Refilled refilled) {
+        drained.clear();
+        return queue.drainTo(drained);
+    }
+}
@@ -0,0 +1,63 @@
+package com.nameof.zookeeper.tools.benchmarks;
+
+import com.nameof.zookeeper.tools.lock.ReentrantZkReadWriteLock;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * {@link ReentrantZkReadWriteLock}在读多写少、写多读少两种负载下的加锁、解锁耗时，4个线程竞争同一个锁名
+ * @Author: chengpan
+ * @Date: 2018/12/15
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class ReadWriteLockBenchmark {
+
+    /** 读锁占全部加锁操作的比例 */
+    @Param({"0.9", "0.1"})
+    public double readRatio;
+
+    @State(Scope.Thread)
+    public static class ThreadLock {
+
+        ReentrantZkReadWriteLock lock;
+
+        @Setup(Level.Trial)
+        public void setup(ZkServerState server) throws Exception {
+            lock = new ReentrantZkReadWriteLock("rw", server.connectString);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            lock.destory();
+        }
+    }
+
+    @Benchmark
+    public void lockUnlock(ThreadLock state) {
+        Lock lock = ThreadLocalRandom.current().nextDouble() < readRatio ? state.lock.readLock() : state.lock.writeLock();
+        lock.lock();
+        lock.unlock();
+    }
+}
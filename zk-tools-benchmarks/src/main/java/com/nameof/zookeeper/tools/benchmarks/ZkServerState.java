@@ -0,0 +1,33 @@
+package com.nameof.zookeeper.tools.benchmarks;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+
+/**
+ * 每个benchmark trial启动一个独立的zookeeper服务端
+ * @Author: chengpan
+ * @Date: 2018/12/15
+ */
+@State(Scope.Benchmark)
+public class ZkServerState {
+
+    private EmbeddedZooKeeper server;
+
+    public String connectString;
+
+    @Setup(Level.Trial)
+    public void start() throws IOException, InterruptedException {
+        server = EmbeddedZooKeeper.start();
+        connectString = server.getConnectString();
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws IOException {
+        server.stop();
+    }
+}